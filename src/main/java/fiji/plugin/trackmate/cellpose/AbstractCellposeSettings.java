@@ -48,8 +48,58 @@ public abstract class AbstractCellposeSettings
 
 	public final boolean simplifyContours;
 
+	/**
+	 * The number of 224x224 tiles processed at once by the network. If 0, it
+	 * is chosen from the frame size, see {@link #autoBatchSize(long, long)}.
+	 */
+	public final int batchSize;
+
+	/**
+	 * Whether the images are split in overlapping tiles. Disabling it runs
+	 * the network on the whole image at once, which is faster but requires
+	 * more GPU memory.
+	 */
+	public final boolean tile;
+
+	/**
+	 * The fraction of overlap between tiles.
+	 */
+	public final double tileOverlap;
+
+	/**
+	 * Whether the dynamics are run on the image resized to the original
+	 * size, which is more accurate but slower for large diameters. May be
+	 * <code>null</code>, in which case the default of the installed tool
+	 * applies: on for cellpose 2.x, off for cellpose 1.x and omnipose.
+	 */
+	public final Boolean resample;
+
 	private final PretrainedModel model;
 
+	public static final int DEFAULT_BATCH_SIZE = 0;
+
+	public static final boolean DEFAULT_TILE = true;
+
+	public static final double DEFAULT_TILE_OVERLAP = 0.1;
+
+	/**
+	 * No explicit resampling: leave it to the installed tool.
+	 */
+	public static final Boolean DEFAULT_RESAMPLE = null;
+
+	/**
+	 * The size in pixels of the tiles processed by the cellpose network.
+	 */
+	private static final int TILE_SIZE = 224;
+
+	/**
+	 * The bounds of the automatic batch size. 8 is the cellpose default, and
+	 * 32 tiles still fit in the memory of common GPUs.
+	 */
+	private static final int MIN_AUTO_BATCH_SIZE = 8;
+
+	private static final int MAX_AUTO_BATCH_SIZE = 32;
+
 	protected AbstractCellposeSettings(
 			final String executablePath,
 			final PretrainedModel model,
@@ -59,6 +109,24 @@ public abstract class AbstractCellposeSettings
 			final double diameter,
 			final boolean useGPU,
 			final boolean simplifyContours )
+	{
+		this( executablePath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				DEFAULT_BATCH_SIZE, DEFAULT_TILE, DEFAULT_TILE_OVERLAP, DEFAULT_RESAMPLE );
+	}
+
+	protected AbstractCellposeSettings(
+			final String executablePath,
+			final PretrainedModel model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final int batchSize,
+			final boolean tile,
+			final double tileOverlap,
+			final Boolean resample )
 	{
 		this.executablePath = executablePath;
 		this.model = model;
@@ -68,6 +136,10 @@ public abstract class AbstractCellposeSettings
 		this.diameter = diameter;
 		this.useGPU = useGPU;
 		this.simplifyContours = simplifyContours;
+		this.batchSize = batchSize;
+		this.tile = tile;
+		this.tileOverlap = tileOverlap;
+		this.resample = resample;
 	}
 
 	/**
@@ -78,7 +150,90 @@ public abstract class AbstractCellposeSettings
 	 */
 	public abstract String getExecutableName();
 
+	/**
+	 * Returns the pretrained or custom model used by these settings.
+	 * 
+	 * @return the model.
+	 */
+	public PretrainedModel getModel()
+	{
+		return model;
+	}
+
+	/**
+	 * Returns the batch size to use for frames of the specified size, in
+	 * pixels. If the batch size of these settings is 0, it is the number of
+	 * tiles in a frame once rescaled to the nominal cellpose diameter, so
+	 * that a frame is processed in a single batch, within bounds.
+	 * 
+	 * @param width
+	 *            the frame width, in pixels.
+	 * @param height
+	 *            the frame height, in pixels.
+	 * @return the batch size.
+	 */
+	public int autoBatchSize( final long width, final long height )
+	{
+		return autoBatchSize( width, height, diameter );
+	}
+
+	/**
+	 * Returns the batch size to use for images of the specified size, in
+	 * pixels, segmented with the specified cell diameter, as when the frames
+	 * are downsampled or split in patches.
+	 * 
+	 * @param width
+	 *            the image width, in pixels.
+	 * @param height
+	 *            the image height, in pixels.
+	 * @param diameter
+	 *            the cell diameter passed to cellpose, in pixels of the
+	 *            image, or 0 if it is estimated by cellpose.
+	 * @return the batch size.
+	 * @see #autoBatchSize(long, long)
+	 */
+	public int autoBatchSize( final long width, final long height, final double diameter )
+	{
+		if ( batchSize > 0 )
+			return batchSize;
+
+		final double scale = ( diameter > 0 ) ? 30. / diameter : 1.;
+		final long nTiles = nTiles( width * scale ) * nTiles( height * scale );
+		return ( int ) Math.max( MIN_AUTO_BATCH_SIZE, Math.min( MAX_AUTO_BATCH_SIZE, nTiles ) );
+	}
+
+	private long nTiles( final double size )
+	{
+		if ( !tile || size <= TILE_SIZE )
+			return 1;
+		final double step = TILE_SIZE * ( 1. - Math.min( 0.5, Math.max( 0., tileOverlap ) ) );
+		return 1 + ( long ) Math.ceil( ( size - TILE_SIZE ) / step );
+	}
+
+	/**
+	 * Returns the command line to run cellpose on the images in the specified
+	 * folder, in the default dialect of the tool.
+	 * 
+	 * @param imagesDir
+	 *            the folder containing the images to segment.
+	 * @return a new list of arguments.
+	 */
 	public List< String > toCmdLine( final String imagesDir )
+	{
+		return toCmdLine( imagesDir, CommandDialect.defaultFor( getExecutableName() ) );
+	}
+
+	/**
+	 * Returns the command line to run cellpose on the images in the specified
+	 * folder, in the specified dialect.
+	 * 
+	 * @param imagesDir
+	 *            the folder containing the images to segment.
+	 * @param dialect
+	 *            the dialect of the cellpose installation.
+	 * @return a new list of arguments.
+	 */
+	public List< String > toCmdLine( final String imagesDir, final CommandDialect dialect )
 	{
 		final List< String > cmd = new ArrayList<>();
 
@@ -144,11 +299,44 @@ public abstract class AbstractCellposeSettings
 		else
 			cmd.add( model.getPath() );
 
-		// Export results as PNG.
-		cmd.add( "--save_png" );
+		// Export results as PNG or TIFF.
+		cmd.add( dialect.getMaskFormat().getFlag() );
 
 		// Do not save Numpy files.
-		cmd.add( "--no_npy" );
+		if ( dialect.supportsNoNpy() )
+			cmd.add( "--no_npy" );
+
+		// Tiling, if the installation knows about it.
+		if ( batchSize > 0 && dialect.supports( "batch_size" ) )
+		{
+			cmd.add( "--batch_size" );
+			cmd.add( "" + batchSize );
+		}
+		if ( !tile && dialect.supports( "no_tile" ) )
+			cmd.add( "--no_tile" );
+		if ( tile && tileOverlap != DEFAULT_TILE_OVERLAP && dialect.supports( "tile_overlap" ) )
+		{
+			cmd.add( "--tile_overlap" );
+			cmd.add( "" + tileOverlap );
+		}
+
+		/*
+		 * Resampling. Only pass the flag that departs from the default of the
+		 * installed tool: cellpose 2.x resamples unless told not to, cellpose
+		 * 1.x and omnipose only resample when asked to.
+		 */
+		if ( resample != null )
+		{
+			if ( dialect.supports( "no_resample" ) )
+			{
+				if ( !resample )
+					cmd.add( "--no_resample" );
+			}
+			else if ( resample && dialect.supports( "resample" ) )
+			{
+				cmd.add( "--resample" );
+			}
+		}
 
 		return Collections.unmodifiableList( cmd );
 	}
@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs a cellpose or omnipose detector on several movies at once.
+ * <p>
+ * All the movies are configured with the same settings map, and go through
+ * the same stages as a single detection: reuse of the spot file, memory
+ * plan, diameter estimation, provenance and result files. Movies for which
+ * the detector ends up with the same cellpose command line are segmented
+ * together: their frames are exported in the same folders and segmented by
+ * the same cellpose processes, so that the model is loaded only once for all
+ * of them. The results are then split back per movie. Movies resumed from a
+ * work folder keep their own cellpose run.
+ * <p>
+ * Typical use from a script:
+ *
+ * <pre>
+ * final CellposeBatchRunner&lt; T &gt; runner = new CellposeBatchRunner&lt;&gt;( new CellposeDetectorFactory&lt;&gt;(), settings, logger );
+ * final List&lt; SpotCollection &gt; results = runner.runFiles( paths );
+ * runner.writeReport( new File( "report.txt" ) );
+ * </pre>
+ *
+ * @param <T>
+ *            the pixel type of the movies.
+ */
+public class CellposeBatchRunner< T extends RealType< T > & NativeType< T > > implements Cancelable
+{
+
+	private final CellposeDetectorFactory< T > factory;
+
+	private final Map< String, Object > settings;
+
+	private final Logger logger;
+
+	private final List< CellposeDetector< T > > detectors = new ArrayList<>();
+
+	private final List< MovieReport > reports = new ArrayList<>();
+
+	private String errorMessage;
+
+	private volatile boolean isCanceled;
+
+	private String cancelReason;
+
+	private long processingTime;
+
+	/**
+	 * Creates a new batch runner.
+	 *
+	 * @param factory
+	 *            the detector factory to use. Can be any of the cellpose or
+	 *            omnipose factories.
+	 * @param settings
+	 *            the detector settings map, shared by all movies.
+	 * @param logger
+	 *            a logger to report progress to. Can be <code>null</code>.
+	 */
+	public CellposeBatchRunner(
+			final CellposeDetectorFactory< T > factory,
+			final Map< String, Object > settings,
+			final Logger logger )
+	{
+		this.factory = factory;
+		this.settings = settings;
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	/**
+	 * Opens the movies at the specified paths and runs the detection on each
+	 * of them, over their full extent.
+	 *
+	 * @param paths
+	 *            the paths to the movies.
+	 * @return the list of spot collections, one per movie, in the order of the
+	 *         input list. Returns <code>null</code> if there was a problem. In
+	 *         that case the error message is set.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public List< SpotCollection > runFiles( final List< String > paths )
+	{
+		final List< ImgPlus< T > > imgs = new ArrayList<>( paths.size() );
+		for ( final String path : paths )
+		{
+			final ImagePlus imp = IJ.openImage( path );
+			if ( imp == null )
+			{
+				errorMessage = "Could not open image file: " + path;
+				return null;
+			}
+			imgs.add( TMUtils.rawWraps( imp ) );
+		}
+		return run( imgs );
+	}
+
+	/**
+	 * Runs the detection on each of the specified movies, over their full
+	 * extent.
+	 *
+	 * @param imgs
+	 *            the movies.
+	 * @return the list of spot collections, one per movie, in the order of the
+	 *         input list. Returns <code>null</code> if there was a problem. In
+	 *         that case the error message is set.
+	 */
+	public List< SpotCollection > run( final List< ImgPlus< T > > imgs )
+	{
+		final long start = System.currentTimeMillis();
+		isCanceled = false;
+		cancelReason = null;
+		errorMessage = null;
+		detectors.clear();
+		reports.clear();
+
+		/*
+		 * Configure one detector per movie.
+		 */
+
+		for ( int i = 0; i < imgs.size(); i++ )
+		{
+			final ImgPlus< T > img = imgs.get( i );
+			if ( !factory.setTarget( img, settings ) )
+			{
+				errorMessage = "Problem with the settings for movie " + img.getName() + ":\n" + factory.getErrorMessage();
+				return null;
+			}
+			final Interval interval = CellposeUtils.getFullIntervalWithTime( img );
+			final CellposeDetector< T > detector = ( CellposeDetector< T > ) factory.getDetector( interval );
+			detector.setNumThreads();
+			detector.setFramePrefix( String.format( "m%d_", i ) );
+			if ( !detector.checkInput() )
+			{
+				errorMessage = detector.getErrorMessage();
+				return null;
+			}
+			detectors.add( detector );
+			reports.add( new MovieReport( img.getName() ) );
+		}
+
+		final List< SpotCollection > results = new ArrayList<>( imgs.size() );
+		for ( int i = 0; i < imgs.size(); i++ )
+			results.add( null );
+
+		/*
+		 * Start each detection, and prepare the frames of the ones whose
+		 * spots cannot be reused.
+		 */
+
+		final List< List< ImagePlus > > movieImps = new ArrayList<>( detectors.size() );
+		for ( int i = 0; i < detectors.size(); i++ )
+		{
+			if ( isCanceled )
+				return null;
+
+			final CellposeDetector< T > detector = detectors.get( i );
+			final long movieStart = System.currentTimeMillis();
+			if ( !detector.startDetection() )
+			{
+				errorMessage = detector.getErrorMessage();
+				return null;
+			}
+			if ( detector.isReused() )
+			{
+				final SpotCollection spots = detector.getResult();
+				results.set( i, spots );
+				final MovieReport report = reports.get( i );
+				report.nFrames = spots.keySet().size();
+				report.nSpots = spots.getNSpots( false );
+				report.readTime = System.currentTimeMillis() - movieStart;
+				logger.log( report.toString() + '\n' );
+				movieImps.add( null );
+				continue;
+			}
+			final List< ImagePlus > imps = detector.prepareDetection();
+			if ( imps == null )
+			{
+				errorMessage = detector.getErrorMessage();
+				return null;
+			}
+			reports.get( i ).nFrames = detector.getNFrames();
+			movieImps.add( imps );
+		}
+
+		/*
+		 * Group movies that end up with identical cellpose arguments. They
+		 * can be run by the same processes.
+		 */
+
+		final Map< List< String >, List< Integer > > groups = new LinkedHashMap<>();
+		for ( int i = 0; i < detectors.size(); i++ )
+		{
+			if ( movieImps.get( i ) == null )
+				continue;
+			final CellposeDetector< T > detector = detectors.get( i );
+			final List< String > key = new ArrayList<>( detector.getCommandKey() );
+			// Resumable detections keep their own checkpoint.
+			if ( detector.isResumable() )
+				key.add( "#" + i );
+			groups.computeIfAbsent( key, k -> new ArrayList<>() ).add( Integer.valueOf( i ) );
+		}
+		logger.log( "Processing " + imgs.size() + " movies in " + groups.size() + " cellpose run(s).\n" );
+
+		for ( final List< Integer > group : groups.values() )
+		{
+			if ( isCanceled )
+				return null;
+
+			/*
+			 * Export frames of all movies in the group and run them at once.
+			 */
+
+			final long groupStart = System.currentTimeMillis();
+			final List< List< ImagePlus > > groupImps = new ArrayList<>( group.size() );
+			final List< ImagePlus > allImps = new ArrayList<>();
+			for ( final Integer i : group )
+			{
+				final List< ImagePlus > imps = movieImps.get( i );
+				groupImps.add( imps );
+				allImps.addAll( imps );
+			}
+
+			final CellposeDetector< T > runner = detectors.get( group.get( 0 ) );
+			final List< String > resultDirs = runner.runDetection( allImps );
+			if ( resultDirs == null )
+			{
+				errorMessage = runner.getErrorMessage();
+				return null;
+			}
+			final long inferenceTime = System.currentTimeMillis() - groupStart;
+
+			/*
+			 * Split results back per movie.
+			 */
+
+			for ( int j = 0; j < group.size(); j++ )
+			{
+				final int i = group.get( j );
+				final CellposeDetector< T > detector = detectors.get( i );
+				final List< ImagePlus > imps = groupImps.get( j );
+				final long readStart = System.currentTimeMillis();
+				if ( !detector.finishDetection( imps, resultDirs, groupStart ) )
+				{
+					errorMessage = detector.getErrorMessage();
+					return null;
+				}
+				final SpotCollection spots = detector.getResult();
+				results.set( i, spots );
+
+				final MovieReport report = reports.get( i );
+				report.nSpots = spots.getNSpots( false );
+				// Inference time is shared proportionally to the frame count.
+				report.inferenceTime = inferenceTime * imps.size() / Math.max( 1, allImps.size() );
+				report.readTime = System.currentTimeMillis() - readStart;
+				logger.log( report.toString() + '\n' );
+			}
+		}
+
+		processingTime = System.currentTimeMillis() - start;
+		logger.log( String.format( "Batch done in %.1f s.\n", processingTime / 1000. ) );
+		return results;
+	}
+
+	/**
+	 * Writes a summary throughput report of the last run to the specified
+	 * file, as tab-separated values.
+	 *
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void writeReport( final File file ) throws IOException
+	{
+		try (final PrintWriter writer = new PrintWriter( Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) ))
+		{
+			writer.println( "Movie\tFrames\tSpots\tInference (s)\tReading (s)\tFrames/s" );
+			int totalFrames = 0;
+			int totalSpots = 0;
+			for ( final MovieReport report : reports )
+			{
+				writer.println( String.format( "%s\t%d\t%d\t%.2f\t%.2f\t%.3f",
+						report.name,
+						report.nFrames,
+						report.nSpots,
+						report.inferenceTime / 1000.,
+						report.readTime / 1000.,
+						report.framesPerSecond() ) );
+				totalFrames += report.nFrames;
+				totalSpots += report.nSpots;
+			}
+			writer.println( String.format( "Total\t%d\t%d\t\t\t%.3f",
+					totalFrames,
+					totalSpots,
+					1000. * totalFrames / Math.max( 1, processingTime ) ) );
+		}
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	// --- org.scijava.Cancelable methods ---
+
+	@Override
+	public boolean isCanceled()
+	{
+		return isCanceled;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		isCanceled = true;
+		cancelReason = reason;
+		for ( final CellposeDetector< T > detector : detectors )
+			detector.cancel( reason );
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	// --- private classes ---
+
+	private static final class MovieReport
+	{
+
+		private final String name;
+
+		private int nFrames;
+
+		private int nSpots;
+
+		private long inferenceTime;
+
+		private long readTime;
+
+		private MovieReport( final String name )
+		{
+			this.name = name;
+		}
+
+		private double framesPerSecond()
+		{
+			return 1000. * nFrames / Math.max( 1, inferenceTime + readTime );
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( " - %s: %d frames, %d spots, %.3f frames/s.", name, nFrames, nSpots, framesPerSecond() );
+		}
+	}
+}
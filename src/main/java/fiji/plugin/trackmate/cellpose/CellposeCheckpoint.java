@@ -0,0 +1,374 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import ij.ImagePlus;
+
+/**
+ * Keeps the results of a cellpose detection in a durable folder, so that a
+ * detection interrupted by a crash can be resumed where it stopped.
+ * <p>
+ * Each detection gets its own run folder in the work folder, named after a
+ * hash of everything that determines its results, the same key as its
+ * {@link CellposeProvenance}: the cellpose command line, the model, the
+ * source image and the detection interval. Cellpose tasks write their
+ * frames and masks in sub-folders of the run folder, which are not deleted
+ * when Fiji quits. A manifest file records the detection settings and the
+ * tasks that completed.
+ * <p>
+ * Each task folder holds one cellpose batch, and is recorded in the manifest
+ * as soon as its batch returns: as complete if every frame has a mask, as
+ * trimmed otherwise, its masks being whole. When the same detection is run
+ * again, frames that already have a mask are not segmented again. For the
+ * folders of a batch that did not return, the masks of the last frame
+ * written are removed once, as they may be only partially written, and the
+ * folder is then recorded as trimmed.
+ * <p>
+ * The cell diameter estimated on a sample of frames before the detection is
+ * recorded too, so that a resumed detection segments the remaining frames
+ * with the same diameter without estimating it again.
+ */
+public class CellposeCheckpoint
+{
+
+	private static final String MANIFEST = "manifest.properties";
+
+	private static final String COMPLETE_PREFIX = "complete.";
+
+	private static final String TRIMMED_PREFIX = "trimmed.";
+
+	private static final String DIAMETER = "diameter";
+
+	private static final String[] MASK_SUFFIXES = new String[] { "_cp_masks.png", "_cp_masks.tif", "_cp_masks.npy" };
+
+	private final Path runDir;
+
+	private final Properties manifest;
+
+	private CellposeCheckpoint( final Path runDir, final Properties manifest )
+	{
+		this.runDir = runDir;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Opens the checkpoint of the detection with the specified key in the
+	 * specified work folder, creating it if needed.
+	 *
+	 * @param workDir
+	 *            the work folder.
+	 * @param key
+	 *            a string that identifies the detection: two detections with
+	 *            the same key must give the same results.
+	 * @param description
+	 *            a human-readable description of the detection, stored in the
+	 *            manifest.
+	 * @return the checkpoint.
+	 * @throws IOException
+	 *             if the run folder cannot be created.
+	 */
+	public static CellposeCheckpoint open( final File workDir, final String key, final String description ) throws IOException
+	{
+		final Path runDir = workDir.toPath().resolve( hash( key ) );
+		Files.createDirectories( runDir );
+
+		final Properties manifest = new Properties();
+		final Path manifestFile = runDir.resolve( MANIFEST );
+		if ( Files.exists( manifestFile ) )
+		{
+			try (InputStream is = Files.newInputStream( manifestFile ))
+			{
+				manifest.load( is );
+			}
+		}
+		else
+		{
+			manifest.setProperty( "key", key );
+			manifest.setProperty( "description", description );
+			manifest.setProperty( "created", new Date().toString() );
+		}
+		final CellposeCheckpoint checkpoint = new CellposeCheckpoint( runDir, manifest );
+		checkpoint.store();
+		return checkpoint;
+	}
+
+	/**
+	 * Returns the folder in which cellpose tasks should create their own
+	 * folder.
+	 *
+	 * @return the run folder.
+	 */
+	public Path getRunDir()
+	{
+		return runDir;
+	}
+
+	/**
+	 * Returns whether a cell diameter estimate was recorded for this
+	 * detection.
+	 *
+	 * @return <code>true</code> if a diameter was recorded.
+	 */
+	public synchronized boolean hasDiameter()
+	{
+		return manifest.getProperty( DIAMETER ) != null;
+	}
+
+	/**
+	 * Returns the cell diameter estimated for this detection.
+	 *
+	 * @return the diameter in pixels, negative if it could not be estimated
+	 *         or was not recorded.
+	 */
+	public synchronized double getDiameter()
+	{
+		try
+		{
+			return Double.parseDouble( manifest.getProperty( DIAMETER, "-1" ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1.;
+		}
+	}
+
+	/**
+	 * Records the cell diameter estimated for this detection.
+	 *
+	 * @param diameter
+	 *            the diameter in pixels, negative if it could not be
+	 *            estimated.
+	 * @throws IOException
+	 *             if the manifest cannot be written.
+	 */
+	public synchronized void setDiameter( final double diameter ) throws IOException
+	{
+		manifest.setProperty( DIAMETER, Double.toString( diameter ) );
+		store();
+	}
+
+	/**
+	 * Returns the task folders of the run.
+	 *
+	 * @return the paths to the task folders.
+	 * @throws IOException
+	 *             if the run folder cannot be read.
+	 */
+	public List< String > getTaskDirs() throws IOException
+	{
+		final List< String > dirs = new ArrayList<>();
+		try (DirectoryStream< Path > stream = Files.newDirectoryStream( runDir ))
+		{
+			for ( final Path path : stream )
+				if ( Files.isDirectory( path ) )
+					dirs.add( path.toString() );
+		}
+		return dirs;
+	}
+
+	/**
+	 * Returns the frames of the specified list that do not have a valid mask
+	 * yet.
+	 *
+	 * @param imps
+	 *            the frames of the detection.
+	 * @return a new list, with the frames to segment.
+	 * @throws IOException
+	 *             if the run folder cannot be read.
+	 */
+	public synchronized List< ImagePlus > getPendingFrames( final List< ImagePlus > imps ) throws IOException
+	{
+		final Set< String > segmented = new HashSet<>();
+		boolean trimmed = false;
+		for ( final String dir : getTaskDirs() )
+		{
+			final String dirName = new File( dir ).getName();
+			final boolean checked = isComplete( dirName ) || isTrimmed( dirName );
+			if ( !checked )
+			{
+				// Only trimmed once, the remaining masks are whole.
+				manifest.setProperty( TRIMMED_PREFIX + dirName, "true" );
+				trimmed = true;
+			}
+			final File[] masks = new File( dir ).listFiles( ( d, name ) -> isMask( name ) );
+			if ( masks == null || masks.length == 0 )
+				continue;
+
+			/*
+			 * The last frame of a batch that did not return may have been
+			 * partially written. We remove its masks so that it is segmented
+			 * again.
+			 */
+			String partial = null;
+			if ( !checked )
+			{
+				File latest = null;
+				for ( final File mask : masks )
+					if ( latest == null || mask.lastModified() > latest.lastModified() )
+						latest = mask;
+				partial = frameName( latest.getName() );
+			}
+
+			for ( final File mask : masks )
+			{
+				final String frame = frameName( mask.getName() );
+				if ( frame.equals( partial ) )
+					Files.deleteIfExists( mask.toPath() );
+				else
+					segmented.add( frame );
+			}
+		}
+
+		if ( trimmed )
+			store();
+
+		final List< ImagePlus > pending = new ArrayList<>();
+		for ( final ImagePlus imp : imps )
+			if ( !segmented.contains( imp.getShortTitle() ) )
+				pending.add( imp );
+		return pending;
+	}
+
+	/**
+	 * Records that the cellpose batches that wrote in the specified folders
+	 * returned. A folder is marked complete only if every frame saved in it
+	 * has a mask, so that the frames a crashed cellpose did not segment are
+	 * segmented again when the detection is resumed. Otherwise it is marked
+	 * trimmed: its masks are whole and are kept. Called as soon as each batch
+	 * returns, so that a later crash does not affect the folders already
+	 * recorded.
+	 *
+	 * @param dirs
+	 *            the task folders.
+	 * @return the names of the frames without a mask, empty if all the
+	 *         folders were marked complete.
+	 * @throws IOException
+	 *             if the manifest cannot be written.
+	 */
+	public synchronized List< String > markComplete( final List< String > dirs ) throws IOException
+	{
+		final List< String > missing = new ArrayList<>();
+		for ( final String dir : dirs )
+		{
+			final String dirName = new File( dir ).getName();
+			final List< String > dirMissing = getFramesWithoutMask( new File( dir ) );
+			if ( dirMissing.isEmpty() )
+				manifest.setProperty( COMPLETE_PREFIX + dirName, "true" );
+			else
+				manifest.setProperty( TRIMMED_PREFIX + dirName, "true" );
+			missing.addAll( dirMissing );
+		}
+		store();
+		return missing;
+	}
+
+	/**
+	 * Returns the names of the frames saved in the specified task folder that
+	 * do not have a mask. Frames are the TIFF files that are not cellpose
+	 * outputs.
+	 */
+	private static List< String > getFramesWithoutMask( final File dir )
+	{
+		final List< String > missing = new ArrayList<>();
+		final String[] names = dir.list();
+		if ( names == null )
+			return missing;
+
+		final Set< String > masked = new HashSet<>();
+		for ( final String name : names )
+			if ( isMask( name ) )
+				masked.add( frameName( name ) );
+		for ( final String name : names )
+		{
+			if ( !name.endsWith( ".tif" ) || name.contains( "_cp_" ) )
+				continue;
+			final String frame = name.substring( 0, name.length() - ".tif".length() );
+			if ( !masked.contains( frame ) )
+				missing.add( frame );
+		}
+		return missing;
+	}
+
+	private boolean isComplete( final String dirName )
+	{
+		return Boolean.parseBoolean( manifest.getProperty( COMPLETE_PREFIX + dirName ) );
+	}
+
+	private boolean isTrimmed( final String dirName )
+	{
+		return Boolean.parseBoolean( manifest.getProperty( TRIMMED_PREFIX + dirName ) );
+	}
+
+	private void store() throws IOException
+	{
+		try (OutputStream os = Files.newOutputStream( runDir.resolve( MANIFEST ) ))
+		{
+			manifest.store( os, "TrackMate cellpose detection checkpoint" );
+		}
+	}
+
+	private static String frameName( final String maskName )
+	{
+		return maskName.substring( 0, maskName.lastIndexOf( "_cp_masks." ) );
+	}
+
+	private static boolean isMask( final String name )
+	{
+		for ( final String suffix : MASK_SUFFIXES )
+			if ( name.endsWith( suffix ) )
+				return true;
+		return false;
+	}
+
+	private static String hash( final String key )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( key.getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder str = new StringBuilder();
+			for ( int i = 0; i < 8; i++ )
+				str.append( String.format( "%02x", digest[ i ] ) );
+			return str.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			return String.format( "%08x", key.hashCode() );
+		}
+	}
+}
@@ -1,19 +1,21 @@
 package fiji.plugin.trackmate.cellpose;
 
-import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
-import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
-import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS;
-
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -22,6 +24,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoubleConsumer;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,37 +32,73 @@ import java.util.regex.Pattern;
 import org.apache.commons.io.input.Tailer;
 import org.apache.commons.io.input.TailerListenerAdapter;
 import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.plugin.PluginInfo;
+import org.scijava.plugin.PluginService;
 
 import fiji.plugin.trackmate.Logger;
-import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
-import fiji.plugin.trackmate.TrackMate;
-import fiji.plugin.trackmate.detection.LabelImageDetectorFactory;
+import fiji.plugin.trackmate.cellpose.backend.CellposeJob;
+import fiji.plugin.trackmate.cellpose.backend.ExecutionBackend;
+import fiji.plugin.trackmate.cellpose.backend.JobQueueBackend;
+import fiji.plugin.trackmate.cellpose.backend.LocalProcessBackend;
+import fiji.plugin.trackmate.cellpose.backend.PersistentWorkerBackend;
+import fiji.plugin.trackmate.detection.LabelImageDetector;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.NewImage;
-import ij.plugin.Concatenator;
+import ij.gui.Roi;
 import ij.process.ImageConverter;
-import ij.process.StackConverter;
+import ij.process.ImageProcessor;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.display.imagej.ImgPlusViews;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 public class CellposeDetector< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetector< T >, Cancelable, MultiThreaded
 {
 
-	private static final Function< Long, String > nameGen = ( frame ) -> String.format( "%d", frame );
+	/**
+	 * Number of frames sampled to estimate the cell diameter.
+	 */
+	private static final int DIAMETER_CALIBRATION_FRAMES = 5;
+
+	/**
+	 * Number of frames of the first batch a cellpose task runs on, so that
+	 * inference can start while the other frames are saved. The other frames
+	 * make a second batch, so that a task starts cellpose and loads the model
+	 * at most twice. Tasks with up to twice this number of frames run in a
+	 * single batch.
+	 */
+	private static final int FIRST_BATCH_FRAMES = 8;
+
+	/**
+	 * Maximal number of threads saving frames for cellpose, shared by all the
+	 * tasks of a run.
+	 */
+	private static final int MAX_EXPORT_THREADS = 4;
+
+	/**
+	 * Number of pixels of the source image hashed in the key of a detection.
+	 */
+	private static final int PIXEL_SAMPLES = 1 << 16;
+
+	private Function< Long, String > nameGen = ( frame ) -> String.format( "%d", frame );
 
 	private final ImgPlus< T > img;
 
@@ -75,9 +114,21 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 	private SpotCollection spots;
 
+	/**
+	 * Whether the spots of the last detection were read from the spot file of
+	 * an identical detection.
+	 */
+	private boolean reused;
+
+	/**
+	 * The number of whole frames to segment in the last detection, before they
+	 * are split in patches.
+	 */
+	private int nFrames;
+
 	private String cancelReason;
 
-	private boolean isCanceled;
+	private volatile boolean isCanceled;
 
 	private final List< CellposeTask > processes = new ArrayList<>();
 
@@ -87,236 +138,1836 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 	private final File cellposeLogFile;
 
-	public CellposeDetector(
-			final ImgPlus< T > img,
-			final Interval interval,
-			final AbstractCellposeSettings cellposeSettings,
-			final Logger logger )
-	{
-		this.img = img;
-		this.interval = interval;
-		this.cellposeSettings = cellposeSettings;
-		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
-		this.cellposeLogFile = new File( new File( System.getProperty( "user.home" ), "." + cellposeSettings.getExecutableName() ), "run.log" );
-		this.baseErrorMessage = "[" + cellposeSettings.getExecutableName() + "Detector] ";
+	private List< String > gpuDevices = Collections.emptyList();
+
+	private boolean autoConcurrency = false;
+
+	private boolean readOutlines = false;
+
+	private boolean probabilityQuality = false;
+
+	private String executionBackend = LocalProcessBackend.KEY;
+
+	private File queueDir;
+
+	private File workDir;
+
+	private File spotFile;
+
+	/**
+	 * The diameter, in pixels, estimated on a sample of frames when cellpose
+	 * is configured to estimate it. Negative if there is none.
+	 */
+	private double calibratedDiameter = -1.;
+
+	private DoubleConsumer diameterListener;
+
+	/**
+	 * The time-points to segment, or <code>null</code> to segment all the
+	 * time-points of the interval.
+	 */
+	private int[] frameSubset;
+
+	/**
+	 * Whether the frames are segmented in a single cellpose run, without
+	 * estimating the diameter first.
+	 */
+	private boolean singleRun = false;
+
+	/**
+	 * The time-points of the frames returned by the last call to
+	 * {@link #prepareFrames()}.
+	 */
+	private final List< Integer > frameIndices = new ArrayList<>();
+
+	/**
+	 * The checkpoint in whose run folder cellpose tasks create their folders,
+	 * and record their batches as soon as they return, when they must be
+	 * kept. If <code>null</code>, tasks use temporary folders.
+	 */
+	private CellposeCheckpoint checkpoint;
+
+	private boolean foregroundPatches = false;
+
+	private File foregroundRoiFile;
+
+	/**
+	 * The region of the crop of its frame covered by each prepared image, in
+	 * pixels. Not the whole crop when the frame is split in foreground
+	 * patches.
+	 */
+	private final List< Rectangle > frameRegions = new ArrayList<>();
+
+	private boolean downsample = false;
+
+	private double unchangedTolerance = 0.;
+
+	private boolean unchangedShift = false;
+
+	/**
+	 * The frames not segmented because they barely differ from a previous
+	 * one, with the frame whose spots they reuse and the shift to apply to
+	 * these spots, in pixels: <code>{ keyFrame, dx, dy }</code>.
+	 */
+	private final Map< Integer, int[] > reusedFrames = new LinkedHashMap<>();
+
+	/**
+	 * What the cellpose installation supports, or <code>null</code> if it
+	 * was not checked.
+	 */
+	private CellposeEnvironmentProbe.Report environment;
+
+	/**
+	 * The string that identifies the last detection run, see
+	 * {@link #getRunKey(String)}.
+	 */
+	private String runKey;
+
+	/**
+	 * How the spots of the last detection were produced, or <code>null</code>
+	 * if it did not start.
+	 */
+	private CellposeProvenance provenance;
+
+	/**
+	 * The checkpoint folder of the last detection, when it is resumable.
+	 */
+	private Path checkpointDir;
+
+	/**
+	 * The local copy of the custom model, resolved on first use.
+	 */
+	private CustomModelCache.Entry localModel;
+
+	/**
+	 * The memory budget of a detection, in bytes. If 0, a fraction of the
+	 * memory available to Fiji.
+	 */
+	private long memoryBudget = 0l;
+
+	/**
+	 * How the last detection uses memory, or <code>null</code> if it was not
+	 * planned, in which case frames are processed as if memory was not
+	 * limited.
+	 */
+	private MemoryPlan memoryPlan;
+
+	public CellposeDetector(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final AbstractCellposeSettings cellposeSettings,
+			final Logger logger )
+	{
+		this.img = img;
+		this.interval = interval;
+		this.cellposeSettings = cellposeSettings;
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+		this.cellposeLogFile = new File( new File( System.getProperty( "user.home" ), "." + cellposeSettings.getExecutableName() ), "run.log" );
+		this.baseErrorMessage = "[" + cellposeSettings.getExecutableName() + "Detector] ";
+	}
+
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		if ( !startDetection() )
+			return false;
+		if ( reused )
+		{
+			this.processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		final List< ImagePlus > imps = prepareDetection();
+		if ( imps == null )
+			return false;
+		final List< String > resultDirs = runDetection( imps );
+		if ( resultDirs == null )
+			return false;
+		return finishDetection( imps, resultDirs, start );
+	}
+
+	/*
+	 * The stages of process(), also used by the batch runner to run several
+	 * detections in the same cellpose processes.
+	 */
+
+	/**
+	 * Starts a detection: computes its provenance, and reads the spots of an
+	 * identical detection from the spot file if there is one. In that case,
+	 * {@link #isReused()} returns <code>true</code> and the detection is
+	 * done.
+	 * 
+	 * @return <code>false</code> if there was a problem.
+	 */
+	boolean startDetection()
+	{
+		isCanceled = false;
+		cancelReason = null;
+		checkpointDir = null;
+		memoryPlan = null;
+		calibratedDiameter = -1.;
+		reused = false;
+		nFrames = 0;
+
+		/*
+		 * Provenance, and the spots of an identical detection if any.
+		 */
+
+		final String modelHash;
+		try
+		{
+			final CustomModelCache.Entry local = getLocalModel();
+			modelHash = ( local == null ) ? "" : local.getHash();
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = baseErrorMessage + "Could not read the custom model file " + cellposeSettings.customModelPath + ":\n" + e.getMessage() + '\n';
+			return false;
+		}
+		runKey = getRunKey( modelHash );
+		provenance = new CellposeProvenance( runKey, cellposeSettings, environment, modelHash,
+				img.getSource(), img.getName(), Util.printInterval( interval ) );
+		reused = reuseSpotFile();
+		return true;
+	}
+
+	/**
+	 * Returns whether the spots of the last detection were read from the spot
+	 * file of an identical detection.
+	 * 
+	 * @return <code>true</code> if the spots were reused.
+	 */
+	boolean isReused()
+	{
+		return reused;
+	}
+
+	/**
+	 * Returns the number of whole frames to segment in the last detection,
+	 * before they are split in patches.
+	 * 
+	 * @return the number of frames.
+	 */
+	int getNFrames()
+	{
+		return nFrames;
+	}
+
+	/**
+	 * Plans the memory use, selects the frames to segment, estimates the cell
+	 * diameter on them if needed, and splits them in the images to segment.
+	 * 
+	 * @return the images to segment, or <code>null</code> if there was a
+	 *         problem.
+	 */
+	List< ImagePlus > prepareDetection()
+	{
+		memoryPlan = planMemory();
+		logger.log( memoryPlan.toString() );
+		// Diameter estimated on whole frames, before they are split in patches.
+		final List< ImagePlus > frames = selectFrames();
+		nFrames = frames.size();
+		if ( cellposeSettings.diameter <= 0. && frames.size() > DIAMETER_CALIBRATION_FRAMES && !singleRun )
+		{
+			if ( !calibrateDiameter( frames ) )
+				return null;
+		}
+		return splitFrames( frames );
+	}
+
+	/**
+	 * Runs cellpose on the specified images, resuming the detection in the
+	 * work folder if one was set.
+	 * 
+	 * @param imps
+	 *            the images to segment.
+	 * @return the result folders, or <code>null</code> if there was a
+	 *         problem.
+	 */
+	List< String > runDetection( final List< ImagePlus > imps )
+	{
+		return ( workDir != null )
+				? runCellposeResumable( imps )
+				: runCellposeWithConcurrency( imps );
+	}
+
+	/**
+	 * Reads the spots of the specified images, records them in the
+	 * provenance and writes the result files.
+	 * 
+	 * @param imps
+	 *            the images returned by {@link #prepareDetection()}.
+	 * @param resultDirs
+	 *            the folders in which cellpose wrote its results.
+	 * @param start
+	 *            the time the detection started, in milliseconds.
+	 * @return <code>false</code> if there was a problem.
+	 */
+	boolean finishDetection( final List< ImagePlus > imps, final List< String > resultDirs, final long start )
+	{
+		if ( !readResults( imps, resultDirs ) )
+			return false;
+
+		this.processingTime = System.currentTimeMillis() - start;
+		provenance.setResult( buildCommand( "<dir>" ), spots.getNSpots( false ), processingTime );
+		writeResultFiles();
+		return true;
+	}
+
+	/**
+	 * Returns the cellpose command line of this detector, without the images
+	 * folder and the automatic batch size, that depends on the size of the
+	 * images of each batch. Detectors with the same key can segment their
+	 * images in the same cellpose processes.
+	 * 
+	 * @return the key.
+	 */
+	List< String > getCommandKey()
+	{
+		return buildCommand( "", -1, -1 );
+	}
+
+	/**
+	 * Returns whether the detection keeps its results in a work folder, to be
+	 * resumed. Such a detection cannot share its cellpose processes.
+	 * 
+	 * @return <code>true</code> if a work folder was set.
+	 */
+	boolean isResumable()
+	{
+		return workDir != null;
+	}
+
+	/**
+	 * Returns the string that identifies a detection: two detections with the
+	 * same key give the same spots. It is made of the cellpose command line,
+	 * the hash of the model file, the source image, the detection interval
+	 * and the options of this detector that change the spots. The source
+	 * image is identified by its path and name, the size and modification
+	 * time of its file, and a hash of a sample of its pixels, so that an
+	 * image changed under the same name, or an unsaved image with the same
+	 * title, gets another key.
+	 * 
+	 * @param modelHash
+	 *            the hash of the model file.
+	 * @return the key.
+	 */
+	private String getRunKey( final String modelHash )
+	{
+		final StringBuilder key = new StringBuilder();
+		key.append( String.join( " ", cellposeSettings.toCmdLine( "", getDialect() ) ) );
+		key.append( '\n' ).append( modelHash );
+		key.append( '\n' ).append( img.getSource() ).append( '\n' ).append( img.getName() );
+		final File sourceFile = ( img.getSource() == null ) ? null : new File( img.getSource() );
+		if ( sourceFile != null && sourceFile.isFile() )
+			key.append( '\n' ).append( sourceFile.length() ).append( '@' ).append( sourceFile.lastModified() );
+		key.append( '\n' ).append( samplePixels( img ) );
+		key.append( '\n' ).append( Util.printInterval( img ) ).append( '\n' ).append( Util.printInterval( interval ) );
+		key.append( '\n' ).append( nameGen.apply( 0l ) );
+		key.append( '\n' ).append( frameSubset == null ? "all" : Arrays.toString( frameSubset ) );
+		key.append( '\n' ).append( "simplify=" ).append( cellposeSettings.simplifyContours )
+				.append( " outlines=" ).append( readOutlines )
+				.append( " probability=" ).append( probabilityQuality )
+				.append( " patches=" ).append( foregroundPatches )
+				.append( " rois=" ).append( foregroundRoiFile == null ? "" : foregroundRoiFile.getAbsolutePath() + "@" + foregroundRoiFile.lastModified() )
+				.append( " unchanged=" ).append( unchangedTolerance ).append( unchangedShift ? ",shift" : "" )
+				.append( " downsample=" ).append( downsample );
+		return key.toString();
+	}
+
+	/**
+	 * Returns the SHA-256 of about {@value #PIXEL_SAMPLES} pixels evenly
+	 * spaced in the specified image, in memory order.
+	 */
+	private static String samplePixels( final RandomAccessibleInterval< ? extends RealType< ? > > img )
+	{
+		final MessageDigest digest = CellposeProvenance.sha256();
+		final ByteBuffer bytes = ByteBuffer.allocate( 8 );
+		final long nPixels = Intervals.numElements( img );
+		final long step = Math.max( 1l, nPixels / PIXEL_SAMPLES );
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( img ).cursor();
+		for ( long i = 0; i < nPixels; i += step )
+		{
+			cursor.jumpFwd( ( i == 0 ) ? 1 : step );
+			bytes.clear();
+			bytes.putDouble( cursor.get().getRealDouble() );
+			digest.update( bytes.array() );
+		}
+		return CellposeProvenance.toHex( digest.digest() );
+	}
+
+	/**
+	 * Reads the spots of the spot file, if it was written by a detection
+	 * with the same key as this one.
+	 * 
+	 * @return <code>true</code> if the spots were read from the spot file.
+	 */
+	private boolean reuseSpotFile()
+	{
+		if ( spotFile == null || !spotFile.exists() )
+			return false;
+
+		final File provenanceFile = CellposeProvenance.getProvenanceFile( spotFile );
+		try
+		{
+			final CellposeProvenance previous = CellposeProvenance.read( provenanceFile );
+			if ( previous == null || !provenance.getKey().equals( previous.getKey() ) )
+				return false;
+
+			spots = CellposeSpotFile.read( spotFile );
+			provenance = previous;
+			logger.log( "Identical detection found in " + provenanceFile + ", reusing the spots of " + spotFile + ".\n" );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not reuse the spot file " + spotFile + ": " + e.getMessage() + '\n' );
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the spot file and the provenance files of the detection, when
+	 * configured.
+	 */
+	private void writeResultFiles()
+	{
+		if ( checkpointDir != null )
+		{
+			final File file = checkpointDir.resolve( "provenance.json" ).toFile();
+			try
+			{
+				provenance.write( file );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not write the provenance file " + file + ": " + e.getMessage() + '\n' );
+			}
+		}
+
+		if ( spotFile != null )
+		{
+			final File provenanceFile = CellposeProvenance.getProvenanceFile( spotFile );
+			try
+			{
+				CellposeSpotFile.write( spots, spotFile, true );
+				provenance.write( provenanceFile );
+				logger.log( "Spots written to " + spotFile + ", provenance to " + provenanceFile + ".\n" );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not write the spot file " + spotFile + ": " + e.getMessage() + '\n' );
+			}
+		}
+	}
+
+	/**
+	 * Sets the GPU devices to use when running with GPU acceleration. If more
+	 * than one device is specified, the concurrent cellpose processes are
+	 * pinned to the devices in turn, and the frames are dealt to the
+	 * processes up front. Each process only sees its device, via the
+	 * <code>CUDA_VISIBLE_DEVICES</code> environment variable.
+	 * 
+	 * @param gpuDevices
+	 *            the list of device indices, e.g. <code>["0", "1"]</code>.
+	 *            An empty list lets cellpose pick the device.
+	 */
+	public void setGpuDevices( final List< String > gpuDevices )
+	{
+		this.gpuDevices = new ArrayList<>( gpuDevices );
+	}
+
+	/**
+	 * Sets whether the number of concurrent cellpose processes is tuned
+	 * automatically from the measured throughput, instead of being
+	 * determined from the platform.
+	 * 
+	 * @param autoConcurrency
+	 *            whether to tune the number of processes.
+	 * @see ConcurrencyTuner
+	 */
+	public void setAutoConcurrency( final boolean autoConcurrency )
+	{
+		this.autoConcurrency = autoConcurrency;
+	}
+
+	/**
+	 * Sets whether the spots are read from the outline text files written by
+	 * cellpose instead of being traced from the label images. If an outline
+	 * file is missing for a frame, the label image is used instead.
+	 * 
+	 * @param readOutlines
+	 *            whether to read outlines.
+	 * @see CellposeOutlinesReader
+	 */
+	public void setReadOutlines( final boolean readOutlines )
+	{
+		this.readOutlines = readOutlines;
+	}
+
+	/**
+	 * Sets whether the quality of each spot is the mean cell probability over
+	 * its object, instead of being left to the label detector default. The
+	 * cellpose command line does not output the probability map, so this
+	 * requires the persistent worker backend, which writes it as
+	 * <code>_cp_prob.tif</code> next to the mask; {@link #checkInput()} fails
+	 * otherwise. Frames without a probability map keep the default quality.
+	 * Only applies to spots created from label images.
+	 * 
+	 * @param probabilityQuality
+	 *            whether to compute the spot quality.
+	 */
+	public void setProbabilityQuality( final boolean probabilityQuality )
+	{
+		this.probabilityQuality = probabilityQuality;
+	}
+
+	/**
+	 * Sets the backend that executes cellpose, by the name of its
+	 * {@link ExecutionBackend} plugin. By default cellpose runs as local
+	 * processes.
+	 * 
+	 * @param executionBackend
+	 *            the backend name.
+	 */
+	public void setExecutionBackend( final String executionBackend )
+	{
+		this.executionBackend = executionBackend;
+		// The model copy depends on where the jobs run.
+		this.localModel = null;
+	}
+
+	/**
+	 * Sets the shared folder in which jobs are submitted, when cellpose runs
+	 * on other computers through a job queue.
+	 * 
+	 * @param queueDir
+	 *            the queue folder.
+	 */
+	public void setQueueDir( final File queueDir )
+	{
+		this.queueDir = queueDir;
+	}
+
+	/**
+	 * Sets a durable work folder in which the detection results are kept, so
+	 * that an interrupted detection can be resumed by running it again with
+	 * the same settings. If <code>null</code>, the default, results are
+	 * written in temporary folders deleted when Fiji quits.
+	 * 
+	 * @param workDir
+	 *            the work folder.
+	 */
+	public void setWorkDir( final File workDir )
+	{
+		this.workDir = workDir;
+	}
+
+	/**
+	 * Sets a file in which the detected spots are also written, in the
+	 * compact binary format of {@link CellposeSpotFile}, with their
+	 * provenance next to it. If the spot file was written by an identical
+	 * detection, its spots are read instead of running cellpose. If
+	 * <code>null</code>, the default, no such file is written.
+	 * 
+	 * @param spotFile
+	 *            the spot file.
+	 */
+	public void setSpotFile( final File spotFile )
+	{
+		this.spotFile = spotFile;
+	}
+
+	/**
+	 * Restricts the detection to the specified time-points, for instance to
+	 * preview the detection on a few frames spread over the movie.
+	 * 
+	 * @param frames
+	 *            the time-points to segment, or <code>null</code> to segment
+	 *            all the time-points of the interval.
+	 */
+	public void setFrameSubset( final int[] frames )
+	{
+		this.frameSubset = frames;
+	}
+
+	/**
+	 * Sets whether all the frames are segmented in a single cellpose run, so
+	 * that the model is loaded only once. The frames are then not split
+	 * between concurrent processes or batches, and the cell diameter is not
+	 * estimated on a sample of frames first: cellpose estimates it on each
+	 * frame.
+	 * 
+	 * @param singleRun
+	 *            whether to segment the frames in a single cellpose run.
+	 */
+	public void setSingleRun( final boolean singleRun )
+	{
+		this.singleRun = singleRun;
+	}
+
+	/**
+	 * Sets whether only the occupied regions of each frame are sent to
+	 * cellpose, instead of the whole frame. The regions are found with an
+	 * Otsu threshold of the segmented channel, or from the ROI set file if
+	 * one is set. Frames whose regions cover most of the frame are sent
+	 * whole. Only applies to 2D images.
+	 * 
+	 * @param foregroundPatches
+	 *            whether to segment the occupied regions only.
+	 * @see ForegroundPatches
+	 */
+	public void setForegroundPatches( final boolean foregroundPatches )
+	{
+		this.foregroundPatches = foregroundPatches;
+	}
+
+	/**
+	 * Sets a ROI set file, as saved by the ImageJ ROI manager, that gives the
+	 * occupied regions of the image in foreground patches mode, instead of
+	 * the Otsu threshold. The ROIs apply to all frames.
+	 * 
+	 * @param foregroundRoiFile
+	 *            the ROI set file, or <code>null</code> to threshold each
+	 *            frame.
+	 */
+	public void setForegroundRoiFile( final File foregroundRoiFile )
+	{
+		this.foregroundRoiFile = foregroundRoiFile;
+	}
+
+	/**
+	 * Sets the tolerance under which a frame is considered unchanged from the
+	 * last segmented frame. Unchanged frames are not sent to cellpose, and
+	 * reuse the spots of the last segmented frame instead. The difference is
+	 * the mean absolute difference of the frames downsampled by
+	 * {@value UnchangedFrames#BLOCK_SIZE}, relative to their mean intensity.
+	 * 
+	 * @param unchangedTolerance
+	 *            the tolerance, for instance 0.02. 0, the default, segments
+	 *            all the frames.
+	 * @see UnchangedFrames
+	 */
+	public void setUnchangedTolerance( final double unchangedTolerance )
+	{
+		this.unchangedTolerance = unchangedTolerance;
+	}
+
+	/**
+	 * Sets whether frames that match the last segmented frame after a global
+	 * shift are also considered unchanged. Their spots are then the spots of
+	 * the last segmented frame, shifted.
+	 * 
+	 * @param unchangedShift
+	 *            whether to test shifted frames.
+	 */
+	public void setUnchangedShift( final boolean unchangedShift )
+	{
+		this.unchangedShift = unchangedShift;
+	}
+
+	/**
+	 * Sets whether images are downsampled before being sent to cellpose,
+	 * when the cell diameter is at least twice the diameter cellpose rescales
+	 * images to. The labels are mapped back to the source resolution. Only
+	 * applies when the cell diameter is specified.
+	 * 
+	 * @param downsample
+	 *            whether to downsample images of large objects.
+	 * @see Downsampler
+	 */
+	public void setDownsample( final boolean downsample )
+	{
+		this.downsample = downsample;
+	}
+
+	/**
+	 * Sets the memory budget of a detection. The number of frames saved and
+	 * converted at once, and whether downsampled frames are computed all at
+	 * once, are chosen to stay within it. The plan is logged before the
+	 * detection starts.
+	 * 
+	 * @param megabytes
+	 *            the budget, in megabytes. If 0, half of the memory
+	 *            available to Fiji when the detection starts.
+	 * @see MemoryPlan
+	 */
+	public void setMemoryBudget( final long megabytes )
+	{
+		this.memoryBudget = Math.max( 0l, megabytes ) * 1024l * 1024l;
+	}
+
+	/**
+	 * Returns how the last detection used memory.
+	 * 
+	 * @return the memory plan, or <code>null</code> if no detection was
+	 *         planned.
+	 */
+	public MemoryPlan getMemoryPlan()
+	{
+		return memoryPlan;
+	}
+
+	/**
+	 * Sets a listener notified with the cell diameter estimated on a sample
+	 * of frames, in pixels, when cellpose is configured to estimate it.
+	 * 
+	 * @param diameterListener
+	 *            the listener.
+	 */
+	public void setDiameterListener( final DoubleConsumer diameterListener )
+	{
+		this.diameterListener = diameterListener;
+	}
+
+	/**
+	 * Returns the command line to run cellpose on the images in the specified
+	 * folder, with the options specific to this detector, for whole frames.
+	 * 
+	 * @param imagesDir
+	 *            the folder containing the images to segment.
+	 * @return a new list of arguments.
+	 */
+	List< String > buildCommand( final String imagesDir )
+	{
+		final int factor = getDownsampleFactor();
+		return buildCommand( imagesDir,
+				( interval.dimension( 0 ) + factor - 1 ) / factor,
+				( interval.dimension( 1 ) + factor - 1 ) / factor );
+	}
+
+	/**
+	 * Returns the command line to run cellpose on the images in the specified
+	 * folder, with the options specific to this detector. The automatic batch
+	 * size is chosen for the specified image size, which is smaller than the
+	 * interval when the frames are downsampled or split in patches.
+	 * 
+	 * @param imagesDir
+	 *            the folder containing the images to segment.
+	 * @param width
+	 *            the width of the largest image, in pixels, or -1 to leave
+	 *            the automatic batch size out.
+	 * @param height
+	 *            the height of the largest image, in pixels.
+	 * @return a new list of arguments.
+	 */
+	List< String > buildCommand( final String imagesDir, final long width, final long height )
+	{
+		final CommandDialect dialect = getDialect();
+		final List< String > cmd = new ArrayList<>( cellposeSettings.toCmdLine( imagesDir, dialect ) );
+		// Diameter estimated once for the whole movie, or downsampled.
+		final int factor = getDownsampleFactor();
+		final double diameter = ( calibratedDiameter > 0. ) ? calibratedDiameter
+				: ( factor > 1 ) ? cellposeSettings.diameter / factor : -1.;
+		if ( diameter > 0. )
+		{
+			final int i = cmd.indexOf( "--diameter" );
+			if ( i >= 0 && i + 1 < cmd.size() )
+				cmd.set( i + 1, "" + diameter );
+		}
+		// Local copy of the custom model, or the model in place.
+		if ( cellposeSettings.getModel().isCustom() )
+		{
+			try
+			{
+				final int i = cmd.indexOf( "--pretrained_model" );
+				if ( i >= 0 && i + 1 < cmd.size() )
+					cmd.set( i + 1, getLocalModel().getFile().getAbsolutePath() );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not read the custom model, passing its path as it is: " + e.getMessage() + '\n' );
+			}
+		}
+		// Automatic batch size, from the size of the frames.
+		if ( width > 0 && cellposeSettings.batchSize <= 0 && cellposeSettings.useGPU && dialect.supportsBatchSize() )
+		{
+			cmd.add( "--batch_size" );
+			cmd.add( "" + cellposeSettings.autoBatchSize( width, height, ( diameter > 0. ) ? diameter : cellposeSettings.diameter ) );
+		}
+		// Export outlines as text.
+		if ( readOutlines )
+			cmd.add( "--save_txt" );
+		return cmd;
+	}
+
+	/**
+	 * Returns the local copy of the custom model, copying it in the local
+	 * model cache on first use. The model is used in place if it cannot be
+	 * copied, and with the job queue backend, since the local copy does not
+	 * exist on the computers that run the jobs.
+	 * 
+	 * @return the local copy, or <code>null</code> if the model is not a
+	 *         custom model.
+	 * @throws IOException
+	 *             if the model file cannot be read.
+	 */
+	private synchronized CustomModelCache.Entry getLocalModel() throws IOException
+	{
+		if ( localModel != null || !cellposeSettings.getModel().isCustom() )
+			return localModel;
+
+		if ( JobQueueBackend.KEY.equals( executionBackend ) )
+		{
+			localModel = CustomModelCache.inPlace( cellposeSettings );
+			return localModel;
+		}
+		try
+		{
+			localModel = CustomModelCache.get( cellposeSettings, logger );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not copy the custom model to the local model cache, using it in place: " + e.getMessage() + '\n' );
+			localModel = CustomModelCache.inPlace( cellposeSettings );
+		}
+		return localModel;
+	}
+
+	/**
+	 * Returns the command line dialect of the cellpose installation, as
+	 * reported by the installation check of {@link #checkInput()}, or the
+	 * default one of the tool if it was not checked.
+	 * 
+	 * @return the dialect.
+	 */
+	CommandDialect getDialect()
+	{
+		// The installation of the queue computers is not probed.
+		if ( environment == null && JobQueueBackend.KEY.equals( executionBackend ) )
+			return CommandDialect.unprobed( cellposeSettings.getExecutableName() );
+		return CommandDialect.from( cellposeSettings.getExecutableName(), environment );
+	}
+
+	/**
+	 * Returns the cellpose settings this detector runs with.
+	 * 
+	 * @return the cellpose settings.
+	 */
+	AbstractCellposeSettings getCellposeSettings()
+	{
+		return cellposeSettings;
+	}
+
+	/**
+	 * Sets a prefix to prepend to the name of the frames exported to
+	 * cellpose. Used when frames of several detectors are processed in the
+	 * same cellpose run, so that their names do not collide.
+	 * 
+	 * @param prefix
+	 *            the prefix.
+	 */
+	void setFramePrefix( final String prefix )
+	{
+		this.nameGen = ( frame ) -> prefix + String.format( "%d", frame );
+	}
+
+	/**
+	 * Returns the number of cellpose processes to run concurrently.
+	 * 
+	 * @return the number of concurrent tasks.
+	 */
+	int getConcurrentTasks()
+	{
+		/*
+		 * We use multiprocessing ONLY if the user stated that they want to use
+		 * the CPU and if we are on Mac. I tested multiprocessing on CPU under
+		 * windows, and there is no benefit for Windows. But there is a strong
+		 * speedup on Mac.
+		 * 
+		 * On a PC with Windows, forcing Cellpose to run with the CPU: There is
+		 * no benefit from splitting the load between 1,2, 10 or 20 processes.
+		 * It seems like 1 Cellpose process can already use ALL the cores by
+		 * itself and running several Cellpose processes concurrently does not
+		 * lead to shorter processing time.
+		 * 
+		 * For a source image 1024x502 over 92 time-points, 3 channels: - 1
+		 * thread -> 24.4 min - 8 thread -> 4.1 min (there is not a x8 speedup
+		 * factor, which is to be expected)
+		 */
+		if ( !cellposeSettings.useGPU && IJ.isMacintosh() )
+			return Math.max( 1, numThreads );
+		/*
+		 * With the GPU, one process per device.
+		 */
+		if ( cellposeSettings.useGPU && !gpuDevices.isEmpty() )
+			return gpuDevices.size();
+		/*
+		 * With a job queue, one job per thread, to be picked up by the
+		 * computers that poll the queue.
+		 */
+		if ( JobQueueBackend.KEY.equals( executionBackend ) )
+			return Math.max( 1, numThreads );
+		return 1;
+	}
+
+	/**
+	 * Crops the source image and wraps each time-point of the interval as an
+	 * {@link ImagePlus}, ready to be saved for cellpose. If a subset of
+	 * time-points was set, only these are returned. In foreground patches
+	 * mode, a frame may be split into several images.
+	 * 
+	 * @return the list of images, in time order.
+	 */
+	List< ImagePlus > prepareFrames()
+	{
+		return splitFrames( selectFrames() );
+	}
+
+	/**
+	 * Crops the source image and returns the whole frames to segment: the
+	 * time-points of the interval, or of the subset if one was set, without
+	 * those skipped because they barely changed.
+	 */
+	private List< ImagePlus > selectFrames()
+	{
+		final List< ImagePlus > all = crop( img, interval, nameGen );
+		final int minT = getMinT();
+		frameIndices.clear();
+		reusedFrames.clear();
+		List< ImagePlus > imps;
+		if ( frameSubset == null )
+		{
+			for ( int t = 0; t < all.size(); t++ )
+				frameIndices.add( Integer.valueOf( minT + t ) );
+			imps = all;
+		}
+		else
+		{
+			imps = new ArrayList<>( frameSubset.length );
+			for ( final int frame : frameSubset )
+			{
+				final int t = frame - minT;
+				if ( t < 0 || t >= all.size() )
+					continue;
+				imps.add( all.get( t ) );
+				frameIndices.add( Integer.valueOf( frame ) );
+			}
+		}
+
+		if ( unchangedTolerance > 0. )
+			imps = skipUnchanged( imps );
+		return imps;
+	}
+
+	/**
+	 * Splits the specified whole frames in foreground patches if configured,
+	 * and downsamples them if needed, recording the region of its frame each
+	 * resulting image covers.
+	 */
+	private List< ImagePlus > splitFrames( final List< ImagePlus > frames )
+	{
+		frameRegions.clear();
+		List< ImagePlus > imps = frames;
+		if ( foregroundPatches )
+			imps = splitForeground( imps );
+		else
+			for ( final ImagePlus imp : imps )
+				frameRegions.add( new Rectangle( imp.getWidth(), imp.getHeight() ) );
+
+		final int factor = getDownsampleFactor();
+		if ( factor > 1 )
+		{
+			logger.log( "Downsampling the images by " + factor + " for cellpose.\n" );
+			final boolean lazy = memoryPlan != null && memoryPlan.isLazyDownsampling();
+			final List< ImagePlus > downsampled = new ArrayList<>( imps.size() );
+			for ( final ImagePlus imp : imps )
+				downsampled.add( lazy
+						? Downsampler.lazy( imp, factor, imp.getShortTitle() )
+						: Downsampler.downsample( imp, factor, imp.getShortTitle() ) );
+			imps = downsampled;
+		}
+		return imps;
+	}
+
+	/**
+	 * Plans the memory use of a detection from the size and bit depth of the
+	 * frames to segment. Frames whose type is not 8-bit, 16-bit or float are
+	 * converted to float when they are wrapped for cellpose.
+	 */
+	private MemoryPlan planMemory()
+	{
+		final int cIndex = img.dimensionIndex( Axes.CHANNEL );
+		final int nChannels = ( cIndex < 0 ) ? 1 : ( int ) img.dimension( cIndex );
+		final T type = img.firstElement();
+		final int bitDepth = ( type instanceof UnsignedByteType ) ? 8 : ( type instanceof UnsignedShortType ) ? 16 : 32;
+		final int nFrames = ( frameSubset != null ) ? frameSubset.length
+				: ( img.dimensionIndex( Axes.TIME ) < 0 ) ? 1
+				: ( int ) interval.dimension( interval.numDimensions() - 1 );
+		return MemoryPlan.create( memoryBudget, interval.dimension( 0 ), interval.dimension( 1 ), nChannels, bitDepth,
+				nFrames, getDownsampleFactor(), Math.min( MAX_EXPORT_THREADS, numThreads ), numThreads );
+	}
+
+	/**
+	 * Returns the factor by which the images are downsampled before being
+	 * sent to cellpose.
+	 * 
+	 * @return the downsampling factor, 1 if the images are not downsampled.
+	 */
+	int getDownsampleFactor()
+	{
+		return downsample ? Downsampler.factor( cellposeSettings.diameter ) : 1;
+	}
+
+	/**
+	 * Removes the frames that barely differ from the last kept frame, and
+	 * records them as reusing the spots of this frame.
+	 */
+	private List< ImagePlus > skipUnchanged( final List< ImagePlus > frames )
+	{
+		final List< Integer > indices = new ArrayList<>( frameIndices );
+		frameIndices.clear();
+		final List< ImagePlus > imps = new ArrayList<>( frames.size() );
+		UnchangedFrames.Signature reference = null;
+		Integer keyFrame = null;
+		for ( int t = 0; t < frames.size(); t++ )
+		{
+			final ImagePlus frame = frames.get( t );
+			final UnchangedFrames.Signature signature = UnchangedFrames.signature( frame, cellposeSettings.chan );
+			final int[] shift = ( reference == null ) ? null
+					: UnchangedFrames.match( reference, signature, unchangedTolerance, unchangedShift );
+			if ( shift != null )
+			{
+				reusedFrames.put( indices.get( t ), new int[] { keyFrame.intValue(), shift[ 0 ], shift[ 1 ] } );
+				continue;
+			}
+			// Compared to the last segmented frame, so that drift adds up.
+			reference = signature;
+			keyFrame = indices.get( t );
+			imps.add( frame );
+			frameIndices.add( keyFrame );
+		}
+		if ( !reusedFrames.isEmpty() )
+			logger.log( "Skipping " + reusedFrames.size() + " unchanged frames out of " + frames.size() + ".\n" );
+		return imps;
+	}
+
+	/**
+	 * Splits the specified frames into the patches covering their occupied
+	 * regions, and updates the frame indices and origins accordingly.
+	 */
+	private List< ImagePlus > splitForeground( final List< ImagePlus > frames )
+	{
+		List< Roi > rois = null;
+		if ( foregroundRoiFile != null )
+		{
+			try
+			{
+				rois = ForegroundPatches.readRois( foregroundRoiFile );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not read the ROI set " + foregroundRoiFile + ", thresholding the frames instead: " + e.getMessage() + '\n' );
+			}
+		}
+
+		final double diameter = ( calibratedDiameter > 0. ) ? calibratedDiameter
+				: ( cellposeSettings.diameter > 0. ) ? cellposeSettings.diameter : 30.;
+		final int tileSize = Math.max( 16, ( int ) Math.ceil( 2. * diameter ) );
+
+		final List< Integer > indices = new ArrayList<>( frameIndices );
+		frameIndices.clear();
+		final List< ImagePlus > imps = new ArrayList<>( frames.size() );
+		long nPixels = 0;
+		long nPatchPixels = 0;
+		for ( int t = 0; t < frames.size(); t++ )
+		{
+			final ImagePlus frame = frames.get( t );
+			final int width = frame.getWidth();
+			final int height = frame.getHeight();
+			nPixels += ( long ) width * height;
+
+			final List< Rectangle > regions;
+			if ( frame.getNSlices() > 1 )
+				regions = null;
+			else if ( rois != null )
+				regions = ForegroundPatches.fromRois( rois, ( int ) interval.min( 0 ), ( int ) interval.min( 1 ), width, height, tileSize / 2 );
+			else
+			{
+				final int c = Math.max( 1, Math.min( cellposeSettings.chan, frame.getStackSize() ) );
+				regions = ForegroundPatches.fromOtsu( frame.getStack().getProcessor( c ), tileSize );
+			}
+
+			// Not worth it, send the whole frame.
+			if ( regions == null || regions.isEmpty() || ForegroundPatches.coverage( regions, width, height ) > ForegroundPatches.MAX_COVERAGE )
+			{
+				imps.add( frame );
+				frameIndices.add( indices.get( t ) );
+				frameRegions.add( new Rectangle( width, height ) );
+				nPatchPixels += ( long ) width * height;
+				continue;
+			}
+
+			final String name = frame.getShortTitle();
+			for ( int i = 0; i < regions.size(); i++ )
+			{
+				final Rectangle region = regions.get( i );
+				imps.add( ForegroundPatches.crop( frame, region, name + "_p" + i ) );
+				frameIndices.add( indices.get( t ) );
+				frameRegions.add( region );
+				nPatchPixels += ( long ) region.width * region.height;
+			}
+		}
+		logger.log( String.format( "Segmenting %d patches covering %.0f%% of the frames.\n",
+				imps.size(), 100. * nPatchPixels / Math.max( 1, nPixels ) ) );
+		return imps;
+	}
+
+	/**
+	 * Returns the first time-point of the interval.
+	 */
+	private int getMinT()
+	{
+		final int timeIndex = img.dimensionIndex( Axes.TIME );
+		return ( int ) ( ( timeIndex < 0 ) ? 0 : interval.min( interval.numDimensions() - 1 ) );
+	}
+
+	/**
+	 * Runs cellpose on the specified frames, split over the specified number
+	 * of concurrent tasks.
+	 * 
+	 * @param imps
+	 *            the frames to segment.
+	 * @param nTasks
+	 *            the number of cellpose processes to run concurrently.
+	 * @return the list of folders in which the cellpose results were
+	 *         written, or <code>null</code> if there was a problem. In that
+	 *         case the error message is set.
+	 */
+	List< String > runCellpose( final List< ImagePlus > imps, final int nTasks )
+	{
+		// No need for more tasks than frames.
+		final int nConcurrentTasks = Math.max( 1, Math.min( nTasks, imps.size() ) );
+		final List< List< ImagePlus > > timepoints = new ArrayList<>( nConcurrentTasks );
+		for ( int i = 0; i < nConcurrentTasks; i++ )
+			timepoints.add( new ArrayList<>() );
+
+		Iterator< List< ImagePlus > > it = timepoints.iterator();
+		for ( int t = 0; t < imps.size(); t++ )
+		{
+			if ( !it.hasNext() )
+				it = timepoints.iterator();
+			it.next().add( imps.get( t ) );
+		}
+
+		/*
+		 * Create tasks for each list of imps.
+		 */
+
+		processes.clear();
+		for ( int i = 0; i < timepoints.size(); i++ )
+		{
+			// Tasks are pinned to the devices in turn.
+			final String device = ( cellposeSettings.useGPU && !gpuDevices.isEmpty() )
+					? gpuDevices.get( i % gpuDevices.size() )
+					: null;
+			processes.add( new CellposeTask( timepoints.get( i ), device ) );
+		}
+
+		/*
+		 * Save the frames on a pool of threads shared by all tasks, the
+		 * first batches of all tasks first. Tasks start running cellpose on a
+		 * batch as soon as it is saved.
+		 */
+
+		final int nExportThreads = ( memoryPlan != null )
+				? memoryPlan.getExportThreads()
+				: Math.max( 1, Math.min( MAX_EXPORT_THREADS, numThreads ) );
+		logger.log( "Saving " + imps.size() + " frames on " + nExportThreads + " thread(s).\n" );
+		final ExecutorService exporters = Executors.newFixedThreadPool( nExportThreads );
+		for ( final CellposeTask task : processes )
+		{
+			if ( !task.createDirs() )
+			{
+				exporters.shutdown();
+				return null;
+			}
+		}
+		for ( int b = 0;; b++ )
+		{
+			boolean submitted = false;
+			for ( final CellposeTask task : processes )
+				submitted |= task.submitExport( b, exporters );
+			if ( !submitted )
+				break;
+		}
+
+		/*
+		 * Pass tasks to executors.
+		 */
+
+		// Redirect log to logger.
+		final Tailer tailer = Tailer.create( cellposeLogFile, new LoggerTailerListener( logger ), 200, true );
+
+		final ExecutorService executors = Executors.newFixedThreadPool( nConcurrentTasks );
+		final List< String > resultDirs = new ArrayList<>( nConcurrentTasks );
+		List< Future< List< String > > > results;
+		try
+		{
+			results = executors.invokeAll( processes );
+			for ( final Future< List< String > > future : results )
+			{
+				final List< String > dirs = future.get();
+				if ( dirs != null )
+					resultDirs.addAll( dirs );
+			}
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = baseErrorMessage + "Problem running "
+					+ cellposeSettings.getExecutableName()
+					+ ":\n" + e.getMessage() + '\n';
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			executors.shutdown();
+			exporters.shutdownNow();
+			tailer.stop();
+			logger.setStatus( "" );
+			logger.setProgress( 1. );
+		}
+
+		/*
+		 * Did we have a problem with independent tasks?
+		 */
+
+		for ( final CellposeTask task : processes )
+		{
+			if ( !task.isOk() )
+				return null;
+		}
+		return resultDirs;
+	}
+
+	/**
+	 * Estimates the cell diameter on a few frames evenly spaced in the movie,
+	 * so that the whole movie is then segmented with a single diameter.
+	 * <p>
+	 * The sampled frames are segmented with the diameter estimated by
+	 * cellpose, and the diameter of each is computed from the masks as in
+	 * cellpose: the median of the square root of the object areas, divided
+	 * by <code>sqrt(pi)/2</code>. The estimate is the median over the
+	 * sampled frames.
+	 * 
+	 * @param imps
+	 *            the frames of the movie.
+	 * @return <code>true</code> if cellpose could be run on the sampled
+	 *         frames.
+	 */
+	private boolean calibrateDiameter( final List< ImagePlus > imps )
+	{
+		// Estimated once per resumable detection.
+		final CellposeCheckpoint cp;
+		try
+		{
+			cp = ( workDir != null ) ? openCheckpoint() : null;
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = baseErrorMessage + "Problem with the work folder " + workDir + ":\n" + e.getMessage() + '\n';
+			return false;
+		}
+		if ( cp != null && cp.hasDiameter() )
+		{
+			logger.log( "Reusing the cell diameter estimated in " + cp.getRunDir() + ".\n" );
+			if ( cp.getDiameter() > 0. )
+				setCalibratedDiameter( cp.getDiameter() );
+			return true;
+		}
+
+		final List< ImagePlus > sample = new ArrayList<>( DIAMETER_CALIBRATION_FRAMES );
+		for ( int i = 0; i < DIAMETER_CALIBRATION_FRAMES; i++ )
+			sample.add( imps.get( ( int ) ( ( long ) i * ( imps.size() - 1 ) / ( DIAMETER_CALIBRATION_FRAMES - 1 ) ) ) );
+
+		logger.log( "Estimating cell diameter on " + sample.size() + " frames.\n" );
+		final List< String > dirs = runCellpose( sample, getConcurrentTasks() );
+		if ( dirs == null )
+			return false;
+
+		final double[] diameters = new double[ sample.size() ];
+		int n = 0;
+		for ( final ImagePlus imp : sample )
+		{
+			final ImageProcessor mask = readMask( imp.getShortTitle(), dirs );
+			if ( mask == null )
+				continue;
+			final double d = estimateDiameter( mask );
+			if ( d > 0. )
+				diameters[ n++ ] = d;
+		}
+		final double diameter = ( n == 0 ) ? -1. : median( diameters, n );
+		if ( n == 0 )
+			logger.log( "Could not estimate the cell diameter, it will be estimated on each frame.\n" );
+		else
+			setCalibratedDiameter( diameter );
+		if ( cp != null )
+		{
+			try
+			{
+				cp.setDiameter( diameter );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not record the cell diameter in " + cp.getRunDir() + ": " + e.getMessage() + '\n' );
+			}
+		}
+		return true;
+	}
+
+	private void setCalibratedDiameter( final double diameter )
+	{
+		calibratedDiameter = diameter;
+		logger.log( String.format( "Estimated cell diameter: %.1f pixels.\n", calibratedDiameter ) );
+		if ( provenance != null )
+			provenance.setEstimatedDiameter( calibratedDiameter );
+		if ( diameterListener != null )
+			diameterListener.accept( calibratedDiameter );
+	}
+
+	/**
+	 * Opens the checkpoint of this detection in the work folder.
+	 */
+	private CellposeCheckpoint openCheckpoint() throws IOException
+	{
+		return CellposeCheckpoint.open( workDir, runKey, img.getName() + " " + Util.printInterval( interval ) );
+	}
+
+	/**
+	 * Reads the mask of the specified frame as an image processor, or returns
+	 * <code>null</code> if it cannot be found.
+	 */
+	private ImageProcessor readMask( final String frameName, final List< String > resultDirs )
+	{
+		final File npyFile = findResultFile( frameName + "_cp_masks.npy", resultDirs );
+		if ( npyFile != null )
+		{
+			try
+			{
+				return toProcessor( npyFile, npyFile.getName() );
+			}
+			catch ( final IOException e )
+			{
+				logger.append( "Could not read mask " + npyFile + ": " + e.getMessage() + '\n' );
+			}
+		}
+		final File maskFile = findMaskImage( frameName, resultDirs );
+		final ImagePlus mask = ( maskFile == null ) ? null : IJ.openImage( maskFile.getAbsolutePath() );
+		return ( mask == null ) ? null : mask.getProcessor();
+	}
+
+	/**
+	 * Returns the cell diameter in pixels computed from the specified mask,
+	 * like the <code>utils.diameters</code> function of cellpose, or -1 if
+	 * the mask is empty.
+	 */
+	private static double estimateDiameter( final ImageProcessor mask )
+	{
+		final LabelStatistics stats = LabelStatistics.compute( mask, null, false );
+		final double[] sqrtAreas = new double[ stats.getNLabels() ];
+		int n = 0;
+		for ( int label = 1; label < stats.getNLabels(); label++ )
+			if ( stats.getCount( label ) > 0 )
+				sqrtAreas[ n++ ] = Math.sqrt( stats.getCount( label ) );
+		if ( n == 0 )
+			return -1.;
+		return median( sqrtAreas, n ) / ( Math.sqrt( Math.PI ) / 2. );
+	}
+
+	private static double median( final double[] values, final int n )
+	{
+		final double[] sorted = Arrays.copyOf( values, n );
+		Arrays.sort( sorted );
+		return ( n % 2 == 1 ) ? sorted[ n / 2 ] : 0.5 * ( sorted[ n / 2 - 1 ] + sorted[ n / 2 ] );
+	}
+
+	private List< String > runCellposeWithConcurrency( final List< ImagePlus > imps )
+	{
+		if ( singleRun )
+			return runCellpose( imps, 1 );
+		return autoConcurrency
+				? runCellposeAdaptive( imps )
+				: runCellpose( imps, getConcurrentTasks() );
+	}
+
+	/**
+	 * Runs cellpose on the frames that were not segmented yet in a previous
+	 * run of the same detection in the work folder, and records the tasks
+	 * that complete.
+	 * 
+	 * @param imps
+	 *            the frames to segment.
+	 * @return the list of all the task folders of the detection, including
+	 *         the ones of previous runs, or <code>null</code> if there was a
+	 *         problem.
+	 */
+	private List< String > runCellposeResumable( final List< ImagePlus > imps )
+	{
+		try
+		{
+			final CellposeCheckpoint checkpoint = openCheckpoint();
+			checkpointDir = checkpoint.getRunDir();
+			final List< ImagePlus > pending = checkpoint.getPendingFrames( imps );
+			if ( pending.size() < imps.size() )
+				logger.log( "Resuming detection in " + checkpoint.getRunDir() + ": "
+						+ ( imps.size() - pending.size() ) + " of " + imps.size() + " frames already segmented.\n" );
+
+			if ( !pending.isEmpty() )
+			{
+				this.checkpoint = checkpoint;
+				final List< String > dirs;
+				try
+				{
+					dirs = runCellposeWithConcurrency( pending );
+				}
+				finally
+				{
+					this.checkpoint = null;
+				}
+				if ( dirs == null )
+					return null;
+				final List< String > missing = checkpoint.markComplete( dirs );
+				if ( !missing.isEmpty() )
+				{
+					errorMessage = baseErrorMessage + cellposeSettings.getExecutableName() + " did not segment "
+							+ missing.size() + " frame(s), for instance " + missing.get( 0 )
+							+ ". Run the detection again to resume it.\n";
+					return null;
+				}
+			}
+			return checkpoint.getTaskDirs();
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = baseErrorMessage + "Problem with the work folder " + workDir + ":\n" + e.getMessage() + '\n';
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Runs cellpose on the specified frames, tuning the number of concurrent
+	 * processes on the fly.
+	 * <p>
+	 * If a number of processes was learned in a previous detection with the
+	 * same executable and model, it is used directly. Otherwise the frames
+	 * are processed in small rounds, starting with one process and adding
+	 * one per round while the throughput improves. The remaining frames are
+	 * then processed with the best number found, which is stored for the
+	 * next time.
+	 * 
+	 * @param imps
+	 *            the frames to segment.
+	 * @return the list of folders in which the cellpose results were
+	 *         written, or <code>null</code> if there was a problem.
+	 */
+	private List< String > runCellposeAdaptive( final List< ImagePlus > imps )
+	{
+		final int maxTasks = Math.max( 1, numThreads );
+		final ConcurrencyTuner tuner = new ConcurrencyTuner( cellposeSettings, maxTasks );
+		final int learned = tuner.getLearned();
+		if ( learned > 0 )
+		{
+			logger.log( "Using " + learned + " concurrent process(es), as learned from previous detections.\n" );
+			return runCellpose( imps, learned );
+		}
+
+		logger.log( "Tuning the number of concurrent processes.\n" );
+		final List< String > resultDirs = new ArrayList<>();
+		final int framesPerTask = Math.max( 2, Math.min( 8, imps.size() / ( 4 * maxTasks ) ) );
+		int next = 0;
+		while ( next < imps.size() && !tuner.isSettled() )
+		{
+			if ( isCanceled )
+				return null;
+
+			final int nTasks = tuner.getNTasks();
+			final int end = Math.min( imps.size(), next + nTasks * framesPerTask );
+			final long roundStart = System.currentTimeMillis();
+			final List< String > dirs = runCellpose( imps.subList( next, end ), nTasks );
+			if ( dirs == null )
+				return null;
+
+			final long roundTime = System.currentTimeMillis() - roundStart;
+			resultDirs.addAll( dirs );
+			logger.log( String.format( " - %d process(es): %.2f frames/s.\n", nTasks, 1000. * ( end - next ) / Math.max( 1, roundTime ) ) );
+			tuner.report( end - next, roundTime );
+			next = end;
+		}
+		if ( tuner.isSettled() )
+		{
+			logger.log( "Settled on " + tuner.getNTasks() + " concurrent process(es).\n" );
+			try
+			{
+				tuner.store();
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not store the tuned number of processes: " + e.getMessage() + '\n' );
+			}
+		}
+		else
+		{
+			// Out of frames: use the best so far, but do not learn it.
+			tuner.settle();
+			logger.log( "Not enough frames to tune the number of processes, using " + tuner.getNTasks() + ".\n" );
+		}
+
+		if ( next < imps.size() )
+		{
+			final List< String > dirs = runCellpose( imps.subList( next, imps.size() ), tuner.getNTasks() );
+			if ( dirs == null )
+				return null;
+			resultDirs.addAll( dirs );
+		}
+		return resultDirs;
 	}
 
-
-	@Override
-	public boolean process()
+	/**
+	 * Reads the cellpose masks of the specified frames from the result
+	 * folders, and converts them to spots. The spots can then be retrieved
+	 * with {@link #getResult()}.
+	 * 
+	 * @param imps
+	 *            the frames that were segmented, as returned by the last
+	 *            call to {@link #prepareFrames()}.
+	 * @param resultDirs
+	 *            the folders in which cellpose wrote its results.
+	 * @return <code>true</code> if the conversion went well.
+	 */
+	boolean readResults( final List< ImagePlus > imps, final List< String > resultDirs )
 	{
-		final long start = System.currentTimeMillis();
-		isCanceled = false;
-		cancelReason = null;
-
 		/*
-		 * Do we have time? If yes we need to fetch the min time index to
-		 * reposition the spots in the correct frame at the end of the
-		 * detection.
+		 * Do we have time? If yes we need the frame interval to set the time
+		 * of the spots.
 		 */
 		final int timeIndex = img.dimensionIndex( Axes.TIME );
-		final int minT = ( int ) ( ( timeIndex < 0 ) ? 0 : interval.min( interval.numDimensions() - 1 ) );
 		final double frameInterval = ( timeIndex < 0 ) ? 1. : img.averageScale( timeIndex );
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
 
 		/*
-		 * Dispatch time-points to several tasks.
-		 */
-
-		final List< ImagePlus > imps = crop( img, interval, nameGen );
-
-		final int nConcurrentTasks;
-		/*
-		 * We use multiprocessing ONLY if the user stated that they want to use
-		 * the CPU and if we are on Mac. I tested multiprocessing on CPU under
-		 * windows, and there is no benefit for Windows. But there is a strong
-		 * speedup on Mac.
-		 * 
-		 * On a PC with Windows, forcing Cellpose to run with the CPU: There is
-		 * no benefit from splitting the load between 1,2, 10 or 20 processes.
-		 * It seems like 1 Cellpose process can already use ALL the cores by
-		 * itself and running several Cellpose processes concurrently does not
-		 * lead to shorter processing time.
-		 * 
-		 * For a source image 1024x502 over 92 time-points, 3 channels: - 1
-		 * thread -> 24.4 min - 8 thread -> 4.1 min (there is not a x8 speedup
-		 * factor, which is to be expected)
+		 * Read the masks and convert them to spots, frame by frame. The spots
+		 * are created directly at their position in the source image, so we
+		 * only have to set their time.
 		 */
-		if ( !cellposeSettings.useGPU && IJ.isMacintosh() )
-			nConcurrentTasks = numThreads;
-		else
-			nConcurrentTasks = 1;
 
-		final List< List< ImagePlus > > timepoints = new ArrayList<>( nConcurrentTasks );
-		for ( int i = 0; i < nConcurrentTasks; i++ )
-			timepoints.add( new ArrayList<>() );
-
-		Iterator< List< ImagePlus > > it = timepoints.iterator();
+		logger.log( "Converting " + cellposeSettings.getExecutableName() + " masks to spots.\n" );
+		// Each thread holds one mask at a time.
+		final int nIngestThreads = ( memoryPlan != null ) ? memoryPlan.getIngestThreads() : Math.max( 1, numThreads );
+		final ExecutorService executors = Executors.newFixedThreadPool( nIngestThreads );
+		final List< Future< List< Spot > > > futures = new ArrayList<>( imps.size() );
 		for ( int t = 0; t < imps.size(); t++ )
 		{
-			if ( !it.hasNext() )
-				it = timepoints.iterator();
-			it.next().add( imps.get( t ) );
+			final ImagePlus source = imps.get( t );
+			final String name = source.getShortTitle();
+			final Rectangle region = frameRegions.get( t );
+			futures.add( executors.submit( () -> readFrame( name, region, resultDirs, calibration ) ) );
 		}
 
-		/*
-		 * Create tasks for each list of imps.
-		 */
-
-		processes.clear();
-		for ( final List< ImagePlus > list : timepoints )
-			processes.add( new CellposeTask( list ) );
-
-		/*
-		 * Pass tasks to executors.
-		 */
-
-		// Redirect log to logger.
-		final Tailer tailer = Tailer.create( cellposeLogFile, new LoggerTailerListener( logger ), 200, true );
-
-		final ExecutorService executors = Executors.newFixedThreadPool( nConcurrentTasks );
-		final List< String > resultDirs = new ArrayList<>( nConcurrentTasks );
-		List< Future< String > > results;
+		final SpotCollection output = new SpotCollection();
 		try
 		{
-			results = executors.invokeAll( processes );
-			for ( final Future< String > future : results )
-				resultDirs.add( future.get() );
+			// Patches of the same frame are consecutive.
+			final Map< Integer, List< Spot > > byFrame = new LinkedHashMap<>();
+			for ( int t = 0; t < futures.size(); t++ )
+			{
+				final List< Spot > frameSpots = futures.get( t ).get();
+				final Integer frame = frameIndices.get( t );
+				final Double posT = Double.valueOf( frame.intValue() * frameInterval );
+				for ( final Spot spot : frameSpots )
+					spot.putFeature( Spot.POSITION_T, posT );
+				byFrame.computeIfAbsent( frame, k -> new ArrayList<>() ).addAll( frameSpots );
+			}
+
+			// Unchanged frames, copied from the frame they match.
+			final double[] bounds = new double[] {
+					interval.min( 0 ) * calibration[ 0 ], interval.min( 1 ) * calibration[ 1 ],
+					interval.max( 0 ) * calibration[ 0 ], interval.max( 1 ) * calibration[ 1 ] };
+			for ( final Map.Entry< Integer, int[] > entry : reusedFrames.entrySet() )
+			{
+				final int[] reuse = entry.getValue();
+				final List< Spot > keySpots = byFrame.get( Integer.valueOf( reuse[ 0 ] ) );
+				final List< Spot > frameSpots = UnchangedFrames.copy( keySpots == null ? Collections.emptyList() : keySpots,
+						reuse[ 1 ] * calibration[ 0 ], reuse[ 2 ] * calibration[ 1 ], bounds );
+				final Double posT = Double.valueOf( entry.getKey().intValue() * frameInterval );
+				for ( final Spot spot : frameSpots )
+					spot.putFeature( Spot.POSITION_T, posT );
+				byFrame.put( entry.getKey(), frameSpots );
+			}
+
+			for ( final Map.Entry< Integer, List< Spot > > entry : byFrame.entrySet() )
+				output.put( entry.getKey().intValue(), entry.getValue() );
 		}
 		catch ( final InterruptedException | ExecutionException e )
 		{
-			errorMessage = baseErrorMessage + "Problem running "
-					+ cellposeSettings.getExecutableName()
-					+ ":\n" + e.getMessage() + '\n';
+			errorMessage = baseErrorMessage + "Problem converting masks to spots:\n" + e.getMessage() + '\n';
 			e.printStackTrace();
 			return false;
 		}
 		finally
 		{
-			tailer.stop();
-			logger.setStatus( "" );
-			logger.setProgress( 1. );
-		}
-
-		/*
-		 * Did we have a problem with independent tasks?
-		 */
-
-		for ( final CellposeTask task : processes )
-		{
-			if ( !task.isOk() )
-				return false;
+			executors.shutdown();
 		}
+		spots = output;
+		return true;
+	}
 
-		/*
-		 * Get the result masks back.
-		 */
-
-		logger.log( "Reading " + cellposeSettings.getExecutableName() + " masks.\n" );
-		final List< ImagePlus > masks = new ArrayList<>( imps.size() );
-		for ( int t = 0; t < imps.size(); t++ )
+	/**
+	 * Reads the cellpose results for the frame with the specified name and
+	 * converts them to spots, positioned in the source image.
+	 * 
+	 * @param frameName
+	 *            the name of the frame image, without extension.
+	 * @param region
+	 *            the region of the crop covered by the frame image, in
+	 *            pixels of the source image.
+	 * @param resultDirs
+	 *            the folders to look for the results in.
+	 * @param calibration
+	 *            the spatial calibration of the source image.
+	 * @return the spots. Empty if the results could not be found.
+	 */
+	private List< Spot > readFrame( final String frameName, final Rectangle region, final List< String > resultDirs, final double[] calibration )
+	{
+		final long[] offset = new long[] { interval.min( 0 ) + region.x, interval.min( 1 ) + region.y };
+		if ( readOutlines )
 		{
-			final String name = nameGen.apply( ( long ) minT + t ) + "_cp_masks.png";
-
-			// Try to find corresponding mask in any of the result dirs we got.
-			ImagePlus tpImp = null;
-			for ( final String tmpDir : resultDirs )
+			final File outlines = findResultFile( frameName + "_cp_outlines.txt", resultDirs );
+			if ( outlines != null )
 			{
-				final String path = new File( tmpDir.toString(), name ).getAbsolutePath();
-				tpImp = IJ.openImage( path );
-				if ( null != tpImp )
+				try
 				{
-					// Found it. Convert it to 16-bit if we have to.
-					if ( tpImp.getType() != ImagePlus.GRAY16 )
-					{
-						if ( tpImp.getStackSize() > 1 )
-							new StackConverter( tpImp ).convertToGray16();
-						else
-							new ImageConverter( tpImp ).convertToGray16();
-					}
-					break;
+					return new CellposeOutlinesReader( offset, calibration, getDownsampleFactor() ).read( outlines );
+				}
+				catch ( final IOException e )
+				{
+					logger.append( "Could not read outlines " + outlines + ", using the mask instead: " + e.getMessage() + '\n' );
 				}
 			}
+		}
 
-			// Did we succeed?
-			if ( null == tpImp )
+		/*
+		 * Masks saved as plain numpy arrays are mapped and used in place.
+		 */
+		final File npyFile = findResultFile( frameName + "_cp_masks.npy", resultDirs );
+		if ( npyFile != null )
+		{
+			try
 			{
-				logger.append( "Could not find results file for timepoint: " + name + '\n' );
-				final ImagePlus blank = NewImage.createImage(
-						"blank_" + t,
-						imps.get( 0 ).getWidth(),
-						imps.get( 0 ).getHeight(),
-						imps.get( 0 ).getNSlices(),
-						16, // bitdepth
-						NewImage.FILL_BLACK );
-				masks.add( blank );
+				return readNpyMask( npyFile, frameName, region, resultDirs, calibration );
 			}
-			else
+			catch ( final IOException e )
 			{
-				masks.add( tpImp );
+				logger.append( "Could not read mask " + npyFile + ", using the mask image instead: " + e.getMessage() + '\n' );
 			}
 		}
-		final Concatenator concatenator = new Concatenator();
-		final ImagePlus output = concatenator.concatenateHyperstacks(
-				masks.toArray( new ImagePlus[] {} ),
-				img.getName() + "_" + cellposeSettings.getExecutableName() + "Output", false );
 
-		// Copy calibration.
-		final double[] calibration = TMUtils.getSpatialCalibration( img );
-		output.getCalibration().pixelWidth = calibration[ 0 ];
-		output.getCalibration().pixelHeight = calibration[ 1 ];
-		output.getCalibration().pixelDepth = calibration[ 2 ];
-		output.setDimensions( 1, imps.get( 0 ).getNSlices(), imps.size() );
-		output.setOpenAsHyperStack( true );
+		final File file = findMaskImage( frameName, resultDirs );
+		final ImagePlus mask = ( file == null ) ? null : IJ.openImage( file.getAbsolutePath() );
 
-		/*
-		 * Run in the label detector.
-		 */
+		// Did we succeed?
+		if ( null == mask )
+		{
+			logger.append( "Could not find results file for timepoint: " + frameName + '\n' );
+			return Collections.emptyList();
+		}
+		final String name = file.getName();
+
+		// Convert it to 16-bit if we have to.
+		if ( mask.getType() != ImagePlus.GRAY16 )
+			new ImageConverter( mask ).convertToGray16();
 
-		logger.log( "Converting masks to spots.\n" );
-		final Settings labelImgSettings = new Settings( output );
-		final LabelImageDetectorFactory< ? > labeImageDetectorFactory = new LabelImageDetectorFactory<>();
-		final Map< String, Object > detectorSettings = labeImageDetectorFactory.getDefaultSettings();
-		detectorSettings.put( KEY_TARGET_CHANNEL, DEFAULT_TARGET_CHANNEL );
-		detectorSettings.put( KEY_SIMPLIFY_CONTOURS, cellposeSettings.simplifyContours );
-		labelImgSettings.detectorFactory = labeImageDetectorFactory;
-		labelImgSettings.detectorSettings = detectorSettings;
+		final List< Spot > frameSpots = labelsToSpots( ImageJFunctions.wrapShort( mask ), name, region, calibration );
+		setLabelFeatures( frameSpots, mask.getProcessor(), frameName, offset, resultDirs, calibration );
+		return frameSpots;
+	}
 
-		final TrackMate labelImgTrackMate = new TrackMate( labelImgSettings );
-		labelImgTrackMate.setNumThreads( numThreads );
-		if ( !labelImgTrackMate.execDetection() )
+	private < R extends IntegerType< R > & NativeType< R > > List< Spot > readNpyMask( final File file, final String frameName, final Rectangle region, final List< String > resultDirs, final double[] calibration ) throws IOException
+	{
+		final long[] offset = new long[] { interval.min( 0 ) + region.x, interval.min( 1 ) + region.y };
+		final List< Spot > frameSpots;
+		final ImageProcessor labelsIp;
+		// The spots and the processor are copies, we can release the file.
+		try (NpyReader reader = new NpyReader( file ))
 		{
-			errorMessage = baseErrorMessage + labelImgTrackMate.getErrorMessage();
-			return false;
+			final RandomAccessibleInterval< R > labels = reader.getLabels();
+			frameSpots = labelsToSpots( labels, file.getName(), region, calibration );
+			labelsIp = ImageJFunctions.wrapFloat( labels, file.getName() ).getProcessor();
+		}
+		setLabelFeatures( frameSpots, labelsIp, frameName, offset, resultDirs, calibration );
+		return frameSpots;
+	}
+
+	/**
+	 * Converts a label image to spots. The label image is brought back to
+	 * the source resolution if it was downsampled, and put back at the
+	 * specified region in the source image coordinates, so that the label
+	 * detector creates spots at their final position.
+	 */
+	private < R extends IntegerType< R > > List< Spot > labelsToSpots( final RandomAccessibleInterval< R > labels, final String name, final Rectangle region, final double[] calibration )
+	{
+		final int factor = getDownsampleFactor();
+		final RandomAccessibleInterval< R > fullLabels = ( factor > 1 )
+				? Downsampler.upsample( labels, factor, region.width, region.height )
+				: labels;
+		final long[] offset = new long[] { interval.min( 0 ) + region.x, interval.min( 1 ) + region.y };
+		final Interval frameInterval = Intervals.createMinMax(
+				offset[ 0 ], offset[ 1 ],
+				offset[ 0 ] + fullLabels.dimension( 0 ) - 1, offset[ 1 ] + fullLabels.dimension( 1 ) - 1 );
+		final LabelImageDetector< R > detector = new LabelImageDetector<>(
+				Views.translate( fullLabels, offset ),
+				frameInterval,
+				calibration,
+				cellposeSettings.simplifyContours );
+		if ( !detector.process() )
+		{
+			logger.append( "Could not convert mask " + name + " to spots: " + detector.getErrorMessage() + '\n' );
+			return Collections.emptyList();
 		}
-		final SpotCollection tmpSpots = labelImgTrackMate.getModel().getSpots();
+		return detector.getResult();
+	}
 
-		/*
-		 * Reposition spots with respect to the interval and time.
-		 */
-		final List< Spot > slist = new ArrayList<>();
-		for ( final Spot spot : tmpSpots.iterable( false ) )
+	/**
+	 * Sets the features computed over the objects of one frame to their spots,
+	 * from the statistics of the label image computed in a single pass.
+	 * <p>
+	 * The shape features are measured on the label image, and scaled if it
+	 * was downsampled. They are stored under their own keys, see
+	 * {@link LabelStatistics}, since the TrackMate shape analyzers measure the
+	 * ROI polygon and give different values. If the probability quality is
+	 * used, the quality is set to the mean cell probability over the object.
+	 */
+	private void setLabelFeatures( final List< Spot > frameSpots, final ImageProcessor labels, final String frameName, final long[] offset, final List< String > resultDirs, final double[] calibration )
+	{
+		// Cell probability is output as logits.
+		final ImageProcessor quality = probabilityQuality ? readProbability( frameName, resultDirs ) : null;
+		if ( probabilityQuality && quality == null )
+			logger.append( "No cell probability map for " + frameName + ", the spots keep the default quality.\n" );
+
+		final LabelStatistics stats = LabelStatistics.compute( labels, quality, true );
+		final int factor = getDownsampleFactor();
+		// Label pixel size. We assume square pixels, as the label detector.
+		final double pixelSize = calibration[ 0 ] * factor;
+		for ( final Spot spot : frameSpots )
+		{
+			// In the possibly downsampled label image.
+			final double x = ( spot.getDoublePosition( 0 ) / calibration[ 0 ] - offset[ 0 ] - ( factor - 1 ) / 2. ) / factor;
+			final double y = ( spot.getDoublePosition( 1 ) / calibration[ 1 ] - offset[ 1 ] - ( factor - 1 ) / 2. ) / factor;
+			final int label = stats.match( x, y );
+			if ( label <= 0 )
+				continue;
+
+			if ( quality != null )
+				spot.putFeature( Spot.QUALITY, Double.valueOf( stats.getMeanQuality( label ) ) );
+
+			final double area = stats.getCount( label ) * pixelSize * pixelSize;
+			final double perimeter = stats.getPerimeter( label ) * pixelSize;
+			spot.putFeature( LabelStatistics.AREA, Double.valueOf( area ) );
+			spot.putFeature( LabelStatistics.PERIMETER, Double.valueOf( perimeter ) );
+			spot.putFeature( LabelStatistics.CIRCULARITY, Double.valueOf( stats.getCircularity( label ) ) );
+			spot.putFeature( LabelStatistics.SHAPE_INDEX, Double.valueOf( perimeter / Math.sqrt( area ) ) );
+
+			// Ellipse center relative to the spot, as for the ROI.
+			final double[] centroid = stats.getCentroid( label );
+			final double[] ellipse = stats.getEllipse( label );
+			spot.putFeature( LabelStatistics.ELLIPSE_X0, Double.valueOf( ( centroid[ 0 ] - x ) * pixelSize ) );
+			spot.putFeature( LabelStatistics.ELLIPSE_Y0, Double.valueOf( ( centroid[ 1 ] - y ) * pixelSize ) );
+			spot.putFeature( LabelStatistics.ELLIPSE_MAJOR, Double.valueOf( ellipse[ 0 ] * pixelSize ) );
+			spot.putFeature( LabelStatistics.ELLIPSE_MINOR, Double.valueOf( ellipse[ 1 ] * pixelSize ) );
+			spot.putFeature( LabelStatistics.ELLIPSE_THETA, Double.valueOf( ellipse[ 2 ] ) );
+			spot.putFeature( LabelStatistics.ELLIPSE_ASPECTRATIO, Double.valueOf( ellipse[ 1 ] > 0. ? ellipse[ 0 ] / ellipse[ 1 ] : Double.NaN ) );
+		}
+	}
+
+	/**
+	 * Reads the cell probability map of the specified frame, from a
+	 * <code>_cp_prob.npy</code> or a <code>_cp_prob.tif</code> file. Returns
+	 * <code>null</code> if there is none.
+	 */
+	private ImageProcessor readProbability( final String frameName, final List< String > resultDirs )
+	{
+		final File npyFile = findResultFile( frameName + "_cp_prob.npy", resultDirs );
+		if ( npyFile != null )
 		{
-			for ( int d = 0; d < interval.numDimensions() - 1; d++ )
+			try
 			{
-				final double pos = spot.getDoublePosition( d ) + interval.min( d ) * calibration[ d ];
-				spot.putFeature( Spot.POSITION_FEATURES[ d ], Double.valueOf( pos ) );
+				return toProcessor( npyFile, npyFile.getName() );
+			}
+			catch ( final IOException e )
+			{
+				logger.append( "Could not read probability map " + npyFile + ": " + e.getMessage() + '\n' );
 			}
-			// Shift in time.
-			final int frame = spot.getFeature( Spot.FRAME ).intValue() + minT;
-			spot.putFeature( Spot.POSITION_T, frame * frameInterval );
-			spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
-			slist.add( spot );
 		}
-		spots = SpotCollection.fromCollection( slist );
+		final File tifFile = findResultFile( frameName + "_cp_prob.tif", resultDirs );
+		final ImagePlus prob = ( tifFile == null ) ? null : IJ.openImage( tifFile.getAbsolutePath() );
+		return ( prob == null ) ? null : prob.getProcessor();
+	}
 
-		/*
-		 * End.
-		 */
+	/**
+	 * Reads a numpy file as a float processor, and releases the file.
+	 */
+	static < P extends RealType< P > & NativeType< P > > ImageProcessor toProcessor( final File file, final String name ) throws IOException
+	{
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			final RandomAccessibleInterval< P > img = reader.getImg();
+			return ImageJFunctions.wrapFloat( img, name ).getProcessor();
+		}
+	}
 
-		final long end = System.currentTimeMillis();
-		this.processingTime = end - start;
+	/**
+	 * Creates a new instance of the execution backend plugin with the
+	 * configured name, or of the local process backend if there is none.
+	 */
+	private ExecutionBackend createBackend()
+	{
+		final Context context = TMUtils.getContext();
+		if ( context != null )
+		{
+			final PluginService pluginService = context.getService( PluginService.class );
+			for ( final PluginInfo< ExecutionBackend > info : pluginService.getPluginsOfType( ExecutionBackend.class ) )
+			{
+				if ( executionBackend.equals( info.getName() ) )
+					return pluginService.createInstance( info );
+			}
+		}
+		if ( !LocalProcessBackend.KEY.equals( executionBackend ) )
+			logger.log( "Unknown execution backend " + executionBackend + ", running cellpose locally.\n" );
+		return new LocalProcessBackend();
+	}
 
-		return true;
+	/**
+	 * Returns the first file with the specified name found in the result
+	 * folders, or <code>null</code> if there is none.
+	 */
+	private static File findResultFile( final String name, final List< String > resultDirs )
+	{
+		for ( final String dir : resultDirs )
+		{
+			final File file = new File( dir, name );
+			if ( file.exists() )
+				return file;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the mask image of the specified frame, saved as PNG or TIFF
+	 * depending on the cellpose version, or <code>null</code> if there is
+	 * none.
+	 */
+	private static File findMaskImage( final String frameName, final List< String > resultDirs )
+	{
+		for ( final CommandDialect.MaskFormat format : CommandDialect.MaskFormat.values() )
+		{
+			final File file = findResultFile( frameName + format.getSuffix(), resultDirs );
+			if ( file != null )
+				return file;
+		}
+		return null;
 	}
 
 	/**
@@ -382,6 +2033,43 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 			errorMessage = baseErrorMessage + "Image must be 2D over time, got an image with multiple Z.";
 			return false;
 		}
+		if ( probabilityQuality && !PersistentWorkerBackend.KEY.equals( executionBackend ) )
+		{
+			errorMessage = baseErrorMessage + "The spot quality can only be computed from the cell probability with the "
+					+ PersistentWorkerBackend.KEY + " execution backend: the " + cellposeSettings.getExecutableName()
+					+ " command line does not output the probability map.";
+			logger.log( errorMessage + '\n' );
+			return false;
+		}
+		if ( PersistentWorkerBackend.KEY.equals( executionBackend ) && !"cellpose".equals( cellposeSettings.getExecutableName() ) )
+		{
+			errorMessage = baseErrorMessage + "The " + PersistentWorkerBackend.KEY + " execution backend only runs cellpose, not "
+					+ cellposeSettings.getExecutableName() + ": the worker would ignore the " + cellposeSettings.getExecutableName() + " options.";
+			logger.log( errorMessage + '\n' );
+			return false;
+		}
+
+		/*
+		 * Fail now rather than after exporting all the frames. Jobs of the
+		 * queue run on other computers, so we cannot check them here.
+		 */
+		if ( !JobQueueBackend.KEY.equals( executionBackend ) )
+		{
+			environment = CellposeEnvironmentProbe.probe( cellposeSettings, logger );
+			if ( !environment.isOk() )
+			{
+				errorMessage = baseErrorMessage + "Problem with the " + cellposeSettings.getExecutableName() + " installation:\n" + environment.getError();
+				return false;
+			}
+			if ( cellposeSettings.useGPU && !environment.hasGpu() )
+				logger.log( "GPU acceleration was requested, but no GPU is available to " + cellposeSettings.getExecutableName() + ".\n" );
+		}
+		else
+		{
+			environment = null;
+			logger.log( "The " + cellposeSettings.getExecutableName() + " installation of the queue is not checked, the batch size, "
+					+ "tiling and resampling options are passed as they are.\n" );
+		}
 		return true;
 	}
 
@@ -391,6 +2079,16 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 		return errorMessage;
 	}
 
+	/**
+	 * Returns how the spots of the last detection were produced.
+	 * 
+	 * @return the provenance, or <code>null</code> if no detection was run.
+	 */
+	public CellposeProvenance getProvenance()
+	{
+		return provenance;
+	}
+
 	@Override
 	public long getProcessingTime()
 	{
@@ -467,18 +2165,38 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 	// --- private classes ---
 
-	final class CellposeTask implements Callable< String >
+	/**
+	 * Splits the frames of a task in a small first batch and the rest, see
+	 * {@link #FIRST_BATCH_FRAMES}.
+	 */
+	private List< List< ImagePlus > > splitBatches( final List< ImagePlus > imps )
+	{
+		if ( singleRun || imps.size() <= 2 * FIRST_BATCH_FRAMES )
+			return Collections.singletonList( imps );
+		return Arrays.asList(
+				imps.subList( 0, FIRST_BATCH_FRAMES ),
+				imps.subList( FIRST_BATCH_FRAMES, imps.size() ) );
+	}
+
+	final class CellposeTask implements Callable< List< String > >
 	{
 
-		private Process process;
+		private ExecutionBackend backend;
 
 		private final AtomicBoolean ok;
 
-		private final List< ImagePlus > imps;
+		private final List< List< ImagePlus > > batches;
+
+		private final List< Path > batchDirs = new ArrayList<>();
+
+		private final List< List< Future< ? > > > exports = new ArrayList<>();
+
+		private final String device;
 
-		public CellposeTask( final List< ImagePlus > imps )
+		public CellposeTask( final List< ImagePlus > imps, final String device )
 		{
-			this.imps = imps;
+			this.batches = splitBatches( imps );
+			this.device = device;
 			this.ok = new AtomicBoolean( true );
 		}
 
@@ -489,60 +2207,136 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 		void cancel()
 		{
-			if ( process != null )
-				process.destroy();
+			final ExecutionBackend b = backend;
+			if ( b != null )
+				b.cancel();
 		}
 
-		@Override
-		public String call() throws Exception
+		/**
+		 * Creates the folder of each batch.
+		 */
+		boolean createDirs()
 		{
-
-			/*
-			 * Prepare tmp dir.
-			 */
-			Path tmpDir = null;
 			try
 			{
-				tmpDir = Files.createTempDirectory( "TrackMate-" + cellposeSettings.getExecutableName() + "_" );
-				recursiveDeleteOnShutdownHook( tmpDir );
+				for ( int b = 0; b < batches.size(); b++ )
+				{
+					final Path dir;
+					if ( checkpoint != null )
+					{
+						// Kept for resuming.
+						dir = Files.createTempDirectory( checkpoint.getRunDir(), "task_" );
+					}
+					else
+					{
+						dir = Files.createTempDirectory( "TrackMate-" + cellposeSettings.getExecutableName() + "_" );
+						recursiveDeleteOnShutdownHook( dir );
+					}
+					batchDirs.add( dir );
+					exports.add( new ArrayList<>() );
+				}
+				return true;
 			}
-			catch ( final IOException e1 )
+			catch ( final IOException e )
 			{
-				errorMessage = baseErrorMessage + "Could not create tmp dir to save and load images:\n" + e1.getMessage();
+				errorMessage = baseErrorMessage + "Could not create tmp dir to save and load images:\n" + e.getMessage();
 				ok.set( false );
-				return null;
+				return false;
 			}
+		}
 
-			/*
-			 * Save time-points as individual frames.
-			 */
-
-			logger.log( "Saving single time-points.\n" );
-			// Careful, now time starts at 0, even if in the interval it is not
-			// the case.
-			for ( final ImagePlus imp : imps )
+		/**
+		 * Submits the saving of the frames of the specified batch, one job
+		 * per frame.
+		 * 
+		 * @return <code>false</code> if this task has no such batch.
+		 */
+		boolean submitExport( final int b, final ExecutorService exporters )
+		{
+			if ( b >= batches.size() )
+				return false;
+			// Careful, now time starts at 0, even if in the interval it is
+			// not the case.
+			for ( final ImagePlus imp : batches.get( b ) )
 			{
-				final String name = imp.getShortTitle() + ".tif";
-				IJ.saveAsTiff( imp, Paths.get( tmpDir.toString(), name ).toString() );
+				final String path = Paths.get( batchDirs.get( b ).toString(), imp.getShortTitle() + ".tif" ).toString();
+				exports.get( b ).add( exporters.submit( () -> {
+					if ( !IJ.saveAsTiff( imp, path ) )
+						throw new IOException( "Could not save " + path );
+					return null;
+				} ) );
 			}
+			return true;
+		}
+
+		@Override
+		public List< String > call() throws Exception
+		{
+			final List< String > resultDirs = new ArrayList<>( batches.size() );
+			for ( int b = 0; b < batches.size(); b++ )
+			{
+				if ( isCanceled )
+				{
+					ok.set( false );
+					return null;
+				}
+
+				/*
+				 * Wait for the frames of the batch to be saved.
+				 */
+
+				try
+				{
+					for ( final Future< ? > export : exports.get( b ) )
+						export.get();
+				}
+				catch ( final ExecutionException e )
+				{
+					errorMessage = baseErrorMessage + "Could not save the frames for " + cellposeSettings.getExecutableName() + ":\n" + e.getCause().getMessage();
+					ok.set( false );
+					return null;
+				}
 
-			/*
-			 * Run Cellpose.
-			 */
+				final String resultDir = run( batches.get( b ), batchDirs.get( b ) );
+				if ( resultDir == null )
+					return null;
+				// Recorded now, a later batch may crash.
+				final CellposeCheckpoint cp = checkpoint;
+				if ( cp != null )
+					cp.markComplete( Collections.singletonList( resultDir ) );
+				resultDirs.add( resultDir );
+			}
+			return resultDirs;
+		}
 
+		/**
+		 * Runs cellpose on a batch of frames saved in the specified folder.
+		 */
+		private String run( final List< ImagePlus > imps, final Path tmpDir )
+		{
+			final File resultDir;
 			try
 			{
-				final List< String > cmd = cellposeSettings.toCmdLine( tmpDir.toString() );
+				long width = 0;
+				long height = 0;
+				for ( final ImagePlus imp : imps )
+				{
+					width = Math.max( width, imp.getWidth() );
+					height = Math.max( height, imp.getHeight() );
+				}
+				final List< String > cmd = buildCommand( tmpDir.toString(), width, height );
 				logger.setStatus( "Running " + cellposeSettings.getExecutableName() );
-				logger.log( "Running " + cellposeSettings.getExecutableName() + " with args:\n" );
+				logger.log( "Running " + cellposeSettings.getExecutableName() + " on " + imps.size() + " frame(s) with args:\n" );
 				logger.log( String.join( " ", cmd ) );
 				logger.log( "\n" );
-				final ProcessBuilder pb = new ProcessBuilder( cmd );
-				pb.redirectOutput( ProcessBuilder.Redirect.INHERIT );
-				pb.redirectError( ProcessBuilder.Redirect.INHERIT );
-
-				process = pb.start();
-				process.waitFor();
+				if ( device != null )
+					logger.log( "Pinned to GPU device " + device + ".\n" );
+
+				backend = createBackend();
+				final long runStart = System.currentTimeMillis();
+				resultDir = backend.execute( new CellposeJob( cmd, tmpDir.toFile(), device, queueDir, logger ) );
+				if ( provenance != null )
+					provenance.addRuntime( imps, System.currentTimeMillis() - runStart );
 			}
 			catch ( final IOException e )
 			{
@@ -570,9 +2364,9 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 			}
 			finally
 			{
-				process = null;
+				backend = null;
 			}
-			return tmpDir.toString();
+			return resultDir.toString();
 		}
 	}
 
@@ -606,14 +2400,19 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 						interval.max( 0 ), interval.max( 1 ), interval.max( 2 ), img.max( cIndex ) );
 		}
 
+		// Copy whole rows of planar images instead of pixel by pixel.
+		final boolean planar = PlanarFrames.isSupported( img );
+
 		final List< ImagePlus > imps = new ArrayList<>();
 		final int timeIndex = img.dimensionIndex( Axes.TIME );
 		if ( timeIndex < 0 )
 		{
 			// No time.
-			final IntervalView< T > crop = Views.interval( img, cropInterval );
 			final String name = nameGen.apply( 0l ) + ".tif";
-			imps.add( ImageJFunctions.wrap( crop, name ) );
+			if ( planar )
+				imps.add( PlanarFrames.wrap( img, interval, 0l, name ) );
+			else
+				imps.add( ImageJFunctions.wrap( Views.interval( img, cropInterval ), name ) );
 		}
 		else
 		{
@@ -622,6 +2421,11 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 			final long maxT = interval.max( interval.numDimensions() - 1 );
 			for ( long t = minT; t <= maxT; t++ )
 			{
+				if ( planar )
+				{
+					imps.add( PlanarFrames.wrap( img, interval, t, nameGen.apply( t ) + ".tif" ) );
+					continue;
+				}
 				final ImgPlus< T > tp = ImgPlusViews.hyperSlice( img, timeIndex, t );
 				// possibly 2D or 3D with or without channel.
 				final IntervalView< T > crop = Views.interval( tp, cropInterval );
@@ -21,12 +21,19 @@
  */
 package fiji.plugin.trackmate.cellpose;
 
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.DEFAULT_BATCH_SIZE;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.DEFAULT_TILE;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.DEFAULT_TILE_OVERLAP;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_BATCH_SIZE;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELLPOSE_MODEL;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELLPOSE_PYTHON_FILEPATH;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELL_DIAMETER;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_LOGGER;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_OPTIONAL_CHANNEL_2;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_RESAMPLE;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_TILE;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_TILE_OVERLAP;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_USE_GPU;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS;
@@ -62,8 +69,11 @@ import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
+import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
@@ -76,6 +86,9 @@ import fiji.plugin.trackmate.util.DetectionPreview;
 import fiji.plugin.trackmate.util.FileChooser;
 import fiji.plugin.trackmate.util.FileChooser.DialogType;
 import fiji.plugin.trackmate.util.FileChooser.SelectionMode;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
 
 public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 {
@@ -114,6 +127,25 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 
 	private final String executableName;
 
+	private final JSpinner spinnerBatchSize;
+
+	private final JCheckBox chckbxTile;
+
+	private final JSpinner spinnerTileOverlap;
+
+	private final JCheckBox chckbxResample;
+
+	private final JSpinner spinnerSweepFrames;
+
+	private final JButton btnPreviewSweep;
+
+	/**
+	 * The optional parameters without widget, loaded from the settings, that
+	 * are given back unchanged, and the resampling once it was chosen
+	 * explicitly.
+	 */
+	private final Map< String, Object > runtimeSettings = new HashMap<>();
+
 	public CellposeDetectorConfigurationPanel(
 			final Settings settings,
 			final Model model )
@@ -394,11 +426,131 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 		gbcChckbxSimplify.gridy = gridy;
 		add( chckbxSimplify, gbcChckbxSimplify );
 
+		/*
+		 * Batch size.
+		 */
+
+		gridy = 15;
+
+		final JLabel lblBatchSize = new JLabel( "Batch size (0 for auto):" );
+		lblBatchSize.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblBatchSize = new GridBagConstraints();
+		gbcLblBatchSize.anchor = GridBagConstraints.EAST;
+		gbcLblBatchSize.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblBatchSize.gridx = 0;
+		gbcLblBatchSize.gridy = gridy;
+		add( lblBatchSize, gbcLblBatchSize );
+
+		spinnerBatchSize = new JSpinner( new SpinnerNumberModel( DEFAULT_BATCH_SIZE.intValue(), 0, 512, 1 ) );
+		spinnerBatchSize.setFont( SMALL_FONT );
+		spinnerBatchSize.setToolTipText( "<html>Number of tiles processed at once by the network. "
+				+ "<br>Larger batches use the GPU better but need more GPU memory. "
+				+ "<br>If 0, the batch size is chosen from the size of the frames.</html>" );
+		final GridBagConstraints gbcSpinnerBatchSize = new GridBagConstraints();
+		gbcSpinnerBatchSize.fill = GridBagConstraints.HORIZONTAL;
+		gbcSpinnerBatchSize.insets = new Insets( 5, 5, 5, 5 );
+		gbcSpinnerBatchSize.gridx = 1;
+		gbcSpinnerBatchSize.gridy = gridy;
+		add( spinnerBatchSize, gbcSpinnerBatchSize );
+
+		/*
+		 * Tiling and resampling.
+		 */
+
+		gridy++;
+
+		chckbxTile = new JCheckBox( "Tile images:" );
+		chckbxTile.setHorizontalTextPosition( SwingConstants.LEFT );
+		chckbxTile.setFont( SMALL_FONT );
+		chckbxTile.setToolTipText( "<html>Split the images in overlapping tiles. "
+				+ "<br>Unchecking is faster on GPUs with enough memory.</html>" );
+		final GridBagConstraints gbcChckbxTile = new GridBagConstraints();
+		gbcChckbxTile.anchor = GridBagConstraints.EAST;
+		gbcChckbxTile.insets = new Insets( 0, 0, 0, 5 );
+		gbcChckbxTile.gridx = 0;
+		gbcChckbxTile.gridy = gridy;
+		add( chckbxTile, gbcChckbxTile );
+
+		chckbxResample = new JCheckBox( "Resample:" );
+		chckbxResample.setHorizontalTextPosition( SwingConstants.LEFT );
+		chckbxResample.setFont( SMALL_FONT );
+		chckbxResample.setToolTipText( "<html>Compute the masks at the original image size. "
+				+ "<br>Unchecking is faster for large objects, but less accurate."
+				+ "<br>Until it is clicked, the default of the installed version applies: "
+				+ "<br>on for cellpose 2.x, off for cellpose 1.x and omnipose.</html>" );
+		final GridBagConstraints gbcChckbxResample = new GridBagConstraints();
+		gbcChckbxResample.anchor = GridBagConstraints.EAST;
+		gbcChckbxResample.gridwidth = 2;
+		gbcChckbxResample.insets = new Insets( 0, 5, 0, 5 );
+		gbcChckbxResample.gridx = 1;
+		gbcChckbxResample.gridy = gridy;
+		add( chckbxResample, gbcChckbxResample );
+
+		gridy++;
+
+		final JLabel lblTileOverlap = new JLabel( "Tile overlap:" );
+		lblTileOverlap.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblTileOverlap = new GridBagConstraints();
+		gbcLblTileOverlap.anchor = GridBagConstraints.EAST;
+		gbcLblTileOverlap.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblTileOverlap.gridx = 0;
+		gbcLblTileOverlap.gridy = gridy;
+		add( lblTileOverlap, gbcLblTileOverlap );
+
+		spinnerTileOverlap = new JSpinner( new SpinnerNumberModel( DEFAULT_TILE_OVERLAP.doubleValue(), 0., 0.5, 0.05 ) );
+		spinnerTileOverlap.setFont( SMALL_FONT );
+		final GridBagConstraints gbcSpinnerTileOverlap = new GridBagConstraints();
+		gbcSpinnerTileOverlap.fill = GridBagConstraints.HORIZONTAL;
+		gbcSpinnerTileOverlap.insets = new Insets( 5, 5, 5, 5 );
+		gbcSpinnerTileOverlap.gridx = 1;
+		gbcSpinnerTileOverlap.gridy = gridy;
+		add( spinnerTileOverlap, gbcSpinnerTileOverlap );
+
+		chckbxTile.addItemListener( e -> spinnerTileOverlap.setEnabled( chckbxTile.isSelected() ) );
+		// Only an explicit choice overrides the default of the installed tool.
+		chckbxResample.addActionListener( e -> runtimeSettings.put( KEY_RESAMPLE, chckbxResample.isSelected() ) );
+
+		/*
+		 * Preview sweep.
+		 */
+
+		gridy = 18;
+
+		final JLabel lblSweep = new JLabel( "Preview sweep over frames:" );
+		lblSweep.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblSweep = new GridBagConstraints();
+		gbcLblSweep.anchor = GridBagConstraints.EAST;
+		gbcLblSweep.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblSweep.gridx = 0;
+		gbcLblSweep.gridy = gridy;
+		add( lblSweep, gbcLblSweep );
+
+		spinnerSweepFrames = new JSpinner( new SpinnerNumberModel( CellposePreviewSweep.DEFAULT_N_FRAMES, 2, 100, 1 ) );
+		spinnerSweepFrames.setFont( SMALL_FONT );
+		final GridBagConstraints gbcSpinnerSweepFrames = new GridBagConstraints();
+		gbcSpinnerSweepFrames.fill = GridBagConstraints.HORIZONTAL;
+		gbcSpinnerSweepFrames.insets = new Insets( 5, 5, 5, 5 );
+		gbcSpinnerSweepFrames.gridx = 1;
+		gbcSpinnerSweepFrames.gridy = gridy;
+		add( spinnerSweepFrames, gbcSpinnerSweepFrames );
+
+		btnPreviewSweep = new JButton( "Sweep" );
+		btnPreviewSweep.setFont( SMALL_FONT );
+		btnPreviewSweep.setToolTipText( "<html>Run the detection on frames evenly spread over the movie, "
+				+ "<br>in a single " + executableName + " run, and show the number of objects "
+				+ "<br>per frame and the histogram of their areas.</html>" );
+		final GridBagConstraints gbcBtnPreviewSweep = new GridBagConstraints();
+		gbcBtnPreviewSweep.insets = new Insets( 5, 0, 5, 5 );
+		gbcBtnPreviewSweep.anchor = GridBagConstraints.EAST;
+		gbcBtnPreviewSweep.gridx = 2;
+		gbcBtnPreviewSweep.gridy = gridy;
+		add( btnPreviewSweep, gbcBtnPreviewSweep );
+
 		/*
 		 * Preview.
 		 */
 
-		gridy = 16;
+		gridy = 19;
 
 		final GridBagConstraints gbcBtnPreview = new GridBagConstraints();
 		gbcBtnPreview.gridwidth = 3;
@@ -432,6 +584,42 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 
 		btnBrowseCellposePath.addActionListener( l -> browseCellposePath() );
 		btnBrowseCustomModel.addActionListener( l -> browseCustomModelPath() );
+		btnPreviewSweep.addActionListener( l -> previewSweep( settings, model ) );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private void previewSweep( final Settings settings, final Model model )
+	{
+		if ( settings.imp == null )
+			return;
+
+		final int nFrames = ( ( Number ) spinnerSweepFrames.getValue() ).intValue();
+		btnPreviewSweep.setEnabled( false );
+		new Thread( () -> {
+			try
+			{
+				final ImgPlus img = TMUtils.rawWraps( settings.imp );
+				final Interval interval = TMUtils.getIntervalWithTime( img, settings );
+				final CellposePreviewSweep sweep = new CellposePreviewSweep(
+						( CellposeDetectorFactory ) getDetectorFactory(),
+						getSettings(),
+						img,
+						interval,
+						model.getSpaceUnits() );
+				if ( !sweep.run( nFrames ) )
+				{
+					logger.error( "Preview sweep failed: " + sweep.getErrorMessage() + '\n' );
+					return;
+				}
+				logger.log( "Preview sweep found " + sweep.getResult().getNSpots( false ) + " spots over " + nFrames + " frames.\n" );
+				sweep.getCountsTable().show( executableName + " preview sweep" );
+				sweep.getAreaHistogram().show();
+			}
+			finally
+			{
+				SwingUtilities.invokeLater( () -> btnPreviewSweep.setEnabled( true ) );
+			}
+		}, "TrackMate " + executableName + " preview sweep" ).start();
 	}
 
 	protected SpotDetectorFactoryBase< ? > getDetectorFactory()
@@ -482,12 +670,56 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 		ftfDiameter.setValue( settings.get( KEY_CELL_DIAMETER ) );
 		chckbxUseGPU.setSelected( ( boolean ) settings.get( KEY_USE_GPU ) );
 		chckbxSimplify.setSelected( ( boolean ) settings.get( KEY_SIMPLIFY_CONTOURS ) );
+		setInferenceSettings( settings );
+	}
+
+	/**
+	 * Sets the batch size and tiling widgets from the specified settings.
+	 * These settings are optional, and the defaults are used when they are
+	 * missing. The other optional parameters, that have no widget, are kept
+	 * to be given back by {@link #putInferenceSettings(Map)}.
+	 * 
+	 * @param settings
+	 *            the settings map.
+	 */
+	protected void setInferenceSettings( final Map< String, Object > settings )
+	{
+		runtimeSettings.clear();
+		for ( final String key : CellposeDetectorFactory.RUNTIME_KEYS.keySet() )
+			if ( settings.get( key ) != null )
+				runtimeSettings.put( key, settings.get( key ) );
+
+		final Object batchSize = settings.get( KEY_BATCH_SIZE );
+		spinnerBatchSize.setValue( batchSize == null ? DEFAULT_BATCH_SIZE : batchSize );
+		final Object tile = settings.get( KEY_TILE );
+		chckbxTile.setSelected( ( Boolean ) ( tile == null ? DEFAULT_TILE : tile ) );
+		final Object tileOverlap = settings.get( KEY_TILE_OVERLAP );
+		spinnerTileOverlap.setValue( tileOverlap == null ? DEFAULT_TILE_OVERLAP : tileOverlap );
+		spinnerTileOverlap.setEnabled( chckbxTile.isSelected() );
+		final Object resample = settings.get( KEY_RESAMPLE );
+		chckbxResample.setSelected( resample == null || ( Boolean ) resample );
+	}
+
+	/**
+	 * Puts the values of the batch size and tiling widgets in the specified
+	 * settings, and the optional parameters without widget that were set. The
+	 * resampling is only put if it was loaded or chosen explicitly.
+	 * 
+	 * @param settings
+	 *            the settings map.
+	 */
+	protected void putInferenceSettings( final Map< String, Object > settings )
+	{
+		settings.putAll( runtimeSettings );
+		settings.put( KEY_BATCH_SIZE, ( ( Number ) spinnerBatchSize.getValue() ).intValue() );
+		settings.put( KEY_TILE, chckbxTile.isSelected() );
+		settings.put( KEY_TILE_OVERLAP, ( ( Number ) spinnerTileOverlap.getValue() ).doubleValue() );
 	}
 
 	@Override
 	public Map< String, Object > getSettings()
 	{
-		final HashMap< String, Object > settings = new HashMap<>( 9 );
+		final HashMap< String, Object > settings = new HashMap<>( 13 );
 
 		settings.put( KEY_CELLPOSE_PYTHON_FILEPATH, tfCellposeExecutable.getText() );
 		settings.put( KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH, tfCustomPath.getText() );
@@ -500,6 +732,7 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 		settings.put( KEY_CELL_DIAMETER, diameter );
 		settings.put( KEY_SIMPLIFY_CONTOURS, chckbxSimplify.isSelected() );
 		settings.put( KEY_USE_GPU, chckbxUseGPU.isSelected() );
+		putInferenceSettings( settings );
 
 		settings.put( KEY_LOGGER, logger );
 
@@ -33,8 +33,11 @@ import static fiji.plugin.trackmate.io.IOUtils.writeTargetChannel;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -48,6 +51,9 @@ import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.cellpose.CellposeSettings.PretrainedModelCellpose;
+import fiji.plugin.trackmate.cellpose.backend.JobQueueBackend;
+import fiji.plugin.trackmate.cellpose.backend.LocalProcessBackend;
+import fiji.plugin.trackmate.cellpose.backend.PersistentWorkerBackend;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
@@ -123,6 +129,203 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 
 	public static final Boolean DEFAULT_USE_GPU = Boolean.valueOf( true );
 
+	/**
+	 * The key to the parameter that stores the list of GPU devices to use, as
+	 * a comma-separated list of device indices, e.g. "0,1,2,3". When GPU
+	 * acceleration is used and several devices are listed, the frames are
+	 * split over one process per device, each process only seeing its device
+	 * via the <code>CUDA_VISIBLE_DEVICES</code> environment variable. With a
+	 * single device, the detection is pinned to this device. Leave empty to
+	 * let cellpose pick the device. This parameter is optional.
+	 */
+	public static final String KEY_GPU_DEVICES = "GPU_DEVICES";
+
+	public static final String DEFAULT_GPU_DEVICES = "";
+
+	/**
+	 * The key to the parameter that configures whether the number of
+	 * concurrent cellpose processes is tuned automatically. If
+	 * <code>true</code>, the detection starts with one process and adds more
+	 * while the measured throughput improves. The best number found is
+	 * remembered for the next detections on this computer with the same
+	 * executable and model. This parameter is optional.
+	 */
+	public static final String KEY_AUTO_CONCURRENCY = "AUTO_CONCURRENCY";
+
+	public static final Boolean DEFAULT_AUTO_CONCURRENCY = Boolean.valueOf( false );
+
+	/**
+	 * The key to the parameter that configures whether spots are created from
+	 * the outline text files exported by cellpose, instead of being traced
+	 * from the label images. Falls back to the label images for frames
+	 * without outline file. This parameter is optional.
+	 */
+	public static final String KEY_READ_OUTLINES = "READ_OUTLINES";
+
+	public static final Boolean DEFAULT_READ_OUTLINES = Boolean.valueOf( false );
+
+	/**
+	 * The key to the parameter that configures whether the spot quality is
+	 * the mean cell probability over each object, so that spot quality
+	 * filtering can discard poor detections before tracking. The probability
+	 * map is only output by the persistent worker backend, so the detection
+	 * fails with other backends. This parameter is optional.
+	 */
+	public static final String KEY_QUALITY_FROM_PROBABILITY = "QUALITY_FROM_PROBABILITY";
+
+	public static final Boolean DEFAULT_QUALITY_FROM_PROBABILITY = Boolean.valueOf( false );
+
+	/**
+	 * The key to the parameter that stores the name of the backend that
+	 * executes cellpose: {@value LocalProcessBackend#KEY} for local processes,
+	 * {@value PersistentWorkerBackend#KEY} for a persistent python worker
+	 * (cellpose only, not omnipose), or
+	 * {@value JobQueueBackend#KEY} for a job queue processed by other
+	 * computers. This parameter is optional.
+	 */
+	public static final String KEY_EXECUTION_BACKEND = "EXECUTION_BACKEND";
+
+	public static final String DEFAULT_EXECUTION_BACKEND = LocalProcessBackend.KEY;
+
+	/**
+	 * The key to the parameter that stores the path to the shared folder in
+	 * which jobs are submitted when using the job queue backend. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_QUEUE_DIR = "QUEUE_DIR";
+
+	public static final String DEFAULT_QUEUE_DIR = "";
+
+	/**
+	 * The key to the parameter that stores the path to a durable work folder.
+	 * When set, the detection results are kept in this folder, and a
+	 * detection interrupted by a crash resumes where it stopped when run
+	 * again with the same settings. This parameter is optional.
+	 */
+	public static final String KEY_WORK_DIR = "WORK_DIR";
+
+	public static final String DEFAULT_WORK_DIR = "";
+
+	/**
+	 * The key to the parameter that stores the path to a file in which the
+	 * detected spots are also written, in the compact binary format of
+	 * {@link CellposeSpotFile}. Since detector settings are saved in the
+	 * TrackMate XML file, this references the spot file from it. By
+	 * convention, it is named after the XML file, see
+	 * {@link CellposeSpotFile#getSpotFile(File)}. The provenance of the
+	 * detection is written next to it, and running the same detection again
+	 * reads the spot file instead of running cellpose, see
+	 * {@link CellposeProvenance}. This parameter is optional.
+	 */
+	public static final String KEY_SPOT_FILE = "SPOT_FILE";
+
+	public static final String DEFAULT_SPOT_FILE = "";
+
+	/**
+	 * The key to the parameter that configures whether only the occupied
+	 * regions of each frame are segmented, for instance to skip the empty
+	 * areas of microfluidic devices. The regions are found with an Otsu
+	 * threshold, or from the ROI set of {@link #KEY_FOREGROUND_ROI_FILE}.
+	 * This parameter is optional.
+	 */
+	public static final String KEY_FOREGROUND_PATCHES = "FOREGROUND_PATCHES";
+
+	public static final Boolean DEFAULT_FOREGROUND_PATCHES = Boolean.valueOf( false );
+
+	/**
+	 * The key to the parameter that stores the path to a ROI set file, as
+	 * saved by the ImageJ ROI manager, giving the occupied regions of the
+	 * image when {@link #KEY_FOREGROUND_PATCHES} is set. This parameter is
+	 * optional.
+	 */
+	public static final String KEY_FOREGROUND_ROI_FILE = "FOREGROUND_ROI_FILE";
+
+	public static final String DEFAULT_FOREGROUND_ROI_FILE = "";
+
+	/**
+	 * The key to the parameter that stores the tolerance under which a frame
+	 * is considered unchanged from the last segmented frame. Unchanged frames
+	 * are not segmented and reuse the spots of that frame, which saves
+	 * cellpose runs on slowly changing movies. 0 segments all frames. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_UNCHANGED_TOLERANCE = "UNCHANGED_TOLERANCE";
+
+	public static final Double DEFAULT_UNCHANGED_TOLERANCE = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that configures whether frames matching the
+	 * last segmented frame after a global shift are also considered
+	 * unchanged, their spots being shifted accordingly. This parameter is
+	 * optional.
+	 */
+	public static final String KEY_UNCHANGED_SHIFT = "UNCHANGED_SHIFT";
+
+	public static final Boolean DEFAULT_UNCHANGED_SHIFT = Boolean.valueOf( false );
+
+	/**
+	 * The key to the parameter that configures whether images of large
+	 * objects are downsampled before being sent to cellpose. Cellpose rescales
+	 * images to a cell diameter of 30 pixels anyway, so downsampling by an
+	 * integer factor of up to the cell diameter divided by 30 reduces the
+	 * data written and read without changing the results much. Only applies
+	 * when the cell diameter is specified. This parameter is optional.
+	 */
+	public static final String KEY_DOWNSAMPLE = "DOWNSAMPLE";
+
+	public static final Boolean DEFAULT_DOWNSAMPLE = Boolean.valueOf( false );
+
+	/**
+	 * The key to the parameter that stores the number of 224x224 tiles the
+	 * cellpose network processes at once. Larger batches make a better use of
+	 * the GPU, but require more GPU memory. If 0, the batch size is chosen
+	 * from the size of the images sent to cellpose. Values are positive
+	 * integers. This parameter is optional, and only passed to cellpose
+	 * installations that support it, or to the job queue, whose installations
+	 * cannot be checked.
+	 */
+	public static final String KEY_BATCH_SIZE = "BATCH_SIZE";
+
+	public static final Integer DEFAULT_BATCH_SIZE = Integer.valueOf( AbstractCellposeSettings.DEFAULT_BATCH_SIZE );
+
+	/**
+	 * The key to the parameter that configures whether cellpose splits the
+	 * images in tiles. Disabling it is faster on GPUs with enough memory. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_TILE = "TILE";
+
+	public static final Boolean DEFAULT_TILE = Boolean.valueOf( AbstractCellposeSettings.DEFAULT_TILE );
+
+	/**
+	 * The key to the parameter that stores the fraction of overlap between
+	 * tiles, from 0 to 0.5. This parameter is optional.
+	 */
+	public static final String KEY_TILE_OVERLAP = "TILE_OVERLAP";
+
+	public static final Double DEFAULT_TILE_OVERLAP = Double.valueOf( AbstractCellposeSettings.DEFAULT_TILE_OVERLAP );
+
+	/**
+	 * The key to the parameter that configures whether cellpose runs the
+	 * dynamics at the original image size rather than at the size rescaled to
+	 * the nominal diameter. Disabling it is faster for large objects. This
+	 * parameter is optional: when it is absent, the default of the installed
+	 * tool applies.
+	 */
+	public static final String KEY_RESAMPLE = "RESAMPLE";
+
+	public static final Boolean DEFAULT_RESAMPLE = AbstractCellposeSettings.DEFAULT_RESAMPLE;
+
+	/**
+	 * The key to the parameter that stores the memory budget of a detection,
+	 * in megabytes. The number of frames held in memory at once is chosen to
+	 * stay within it. If 0, half of the memory available to Fiji is used.
+	 * Values are positive integers. This parameter is optional.
+	 */
+	public static final String KEY_MEMORY_BUDGET = "MEMORY_BUDGET";
+
+	public static final Integer DEFAULT_MEMORY_BUDGET = Integer.valueOf( 0 );
+
 	/**
 	 * The key to the parameter that stores the logger instance, to which
 	 * Cellpose messages wil be sent. Values must be implementing
@@ -134,6 +337,40 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 	/** A string key identifying this factory. */
 	public static final String DETECTOR_KEY = "CELLPOSE_DETECTOR";
 
+	/**
+	 * The optional parameters shared by all the cellpose and omnipose
+	 * detectors, with their expected class. Most configure how the detection
+	 * is run: devices, backend, folders and memory. The others change the
+	 * spots, and are part of the detection key of the spot file:
+	 * {@link #KEY_READ_OUTLINES}, {@link #KEY_QUALITY_FROM_PROBABILITY},
+	 * {@link #KEY_FOREGROUND_PATCHES}, {@link #KEY_FOREGROUND_ROI_FILE},
+	 * {@link #KEY_UNCHANGED_TOLERANCE}, {@link #KEY_UNCHANGED_SHIFT},
+	 * {@link #KEY_DOWNSAMPLE}, {@link #KEY_BATCH_SIZE}, {@link #KEY_TILE},
+	 * {@link #KEY_TILE_OVERLAP} and {@link #KEY_RESAMPLE}.
+	 */
+	protected static final Map< String, Class< ? > > RUNTIME_KEYS = new LinkedHashMap<>();
+	static
+	{
+		RUNTIME_KEYS.put( KEY_GPU_DEVICES, String.class );
+		RUNTIME_KEYS.put( KEY_AUTO_CONCURRENCY, Boolean.class );
+		RUNTIME_KEYS.put( KEY_READ_OUTLINES, Boolean.class );
+		RUNTIME_KEYS.put( KEY_QUALITY_FROM_PROBABILITY, Boolean.class );
+		RUNTIME_KEYS.put( KEY_EXECUTION_BACKEND, String.class );
+		RUNTIME_KEYS.put( KEY_QUEUE_DIR, String.class );
+		RUNTIME_KEYS.put( KEY_WORK_DIR, String.class );
+		RUNTIME_KEYS.put( KEY_SPOT_FILE, String.class );
+		RUNTIME_KEYS.put( KEY_FOREGROUND_PATCHES, Boolean.class );
+		RUNTIME_KEYS.put( KEY_FOREGROUND_ROI_FILE, String.class );
+		RUNTIME_KEYS.put( KEY_UNCHANGED_TOLERANCE, Double.class );
+		RUNTIME_KEYS.put( KEY_UNCHANGED_SHIFT, Boolean.class );
+		RUNTIME_KEYS.put( KEY_DOWNSAMPLE, Boolean.class );
+		RUNTIME_KEYS.put( KEY_BATCH_SIZE, Integer.class );
+		RUNTIME_KEYS.put( KEY_TILE, Boolean.class );
+		RUNTIME_KEYS.put( KEY_TILE_OVERLAP, Double.class );
+		RUNTIME_KEYS.put( KEY_RESAMPLE, Boolean.class );
+		RUNTIME_KEYS.put( KEY_MEMORY_BUDGET, Integer.class );
+	}
+
 	/** The pretty name of the target detector. */
 	public static final String NAME = "Cellpose detector";
 
@@ -204,6 +441,10 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				.diameter( diameter )
 				.useGPU( useGPU )
 				.simplifyContours( simplifyContours )
+				.batchSize( getOptional( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE ) )
+				.tile( getOptional( KEY_TILE, DEFAULT_TILE ) )
+				.tileOverlap( getOptional( KEY_TILE_OVERLAP, DEFAULT_TILE_OVERLAP ) )
+				.resample( getOptional( KEY_RESAMPLE, DEFAULT_RESAMPLE ) )
 				.get();
 
 		// Logger.
@@ -213,9 +454,93 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				interval,
 				cellposeSettings,
 				logger );
+		configureDetector( detector );
 		return detector;
 	}
 
+	/**
+	 * Returns the value of an optional parameter of the settings map, or the
+	 * specified default value if it is not set.
+	 * 
+	 * @param key
+	 *            the parameter key.
+	 * @param defaultValue
+	 *            the value to return if the parameter is not set.
+	 * @return the parameter value.
+	 */
+	@SuppressWarnings( "unchecked" )
+	protected < V > V getOptional( final String key, final V defaultValue )
+	{
+		final Object value = settings.get( key );
+		return ( value == null ) ? defaultValue : ( V ) value;
+	}
+
+	/**
+	 * Passes the optional runtime parameters of the settings map to the
+	 * specified detector.
+	 * 
+	 * @param detector
+	 *            the detector to configure.
+	 */
+	protected void configureDetector( final CellposeDetector< T > detector )
+	{
+		final String devices = ( String ) settings.get( KEY_GPU_DEVICES );
+		if ( devices != null && !devices.trim().isEmpty() )
+			detector.setGpuDevices( Arrays.asList( devices.trim().split( "\\s*,\\s*" ) ) );
+
+		final Boolean autoConcurrency = ( Boolean ) settings.get( KEY_AUTO_CONCURRENCY );
+		if ( autoConcurrency != null )
+			detector.setAutoConcurrency( autoConcurrency.booleanValue() );
+
+		final Boolean readOutlines = ( Boolean ) settings.get( KEY_READ_OUTLINES );
+		if ( readOutlines != null )
+			detector.setReadOutlines( readOutlines.booleanValue() );
+
+		final Boolean probabilityQuality = ( Boolean ) settings.get( KEY_QUALITY_FROM_PROBABILITY );
+		if ( probabilityQuality != null )
+			detector.setProbabilityQuality( probabilityQuality.booleanValue() );
+
+		final String executionBackend = ( String ) settings.get( KEY_EXECUTION_BACKEND );
+		if ( executionBackend != null && !executionBackend.trim().isEmpty() )
+			detector.setExecutionBackend( executionBackend.trim() );
+
+		final String queueDir = ( String ) settings.get( KEY_QUEUE_DIR );
+		if ( queueDir != null && !queueDir.trim().isEmpty() )
+			detector.setQueueDir( new File( queueDir.trim() ) );
+
+		final String workDir = ( String ) settings.get( KEY_WORK_DIR );
+		if ( workDir != null && !workDir.trim().isEmpty() )
+			detector.setWorkDir( new File( workDir.trim() ) );
+
+		final String spotFile = ( String ) settings.get( KEY_SPOT_FILE );
+		if ( spotFile != null && !spotFile.trim().isEmpty() )
+			detector.setSpotFile( new File( spotFile.trim() ) );
+
+		final Boolean foregroundPatches = ( Boolean ) settings.get( KEY_FOREGROUND_PATCHES );
+		if ( foregroundPatches != null )
+			detector.setForegroundPatches( foregroundPatches.booleanValue() );
+
+		final String foregroundRoiFile = ( String ) settings.get( KEY_FOREGROUND_ROI_FILE );
+		if ( foregroundRoiFile != null && !foregroundRoiFile.trim().isEmpty() )
+			detector.setForegroundRoiFile( new File( foregroundRoiFile.trim() ) );
+
+		final Double unchangedTolerance = ( Double ) settings.get( KEY_UNCHANGED_TOLERANCE );
+		if ( unchangedTolerance != null )
+			detector.setUnchangedTolerance( unchangedTolerance.doubleValue() );
+
+		final Boolean unchangedShift = ( Boolean ) settings.get( KEY_UNCHANGED_SHIFT );
+		if ( unchangedShift != null )
+			detector.setUnchangedShift( unchangedShift.booleanValue() );
+
+		final Boolean downsample = ( Boolean ) settings.get( KEY_DOWNSAMPLE );
+		if ( downsample != null )
+			detector.setDownsample( downsample.booleanValue() );
+
+		final Integer memoryBudget = ( Integer ) settings.get( KEY_MEMORY_BUDGET );
+		if ( memoryBudget != null )
+			detector.setMemoryBudget( memoryBudget.intValue() );
+	}
+
 	@Override
 	public boolean forbidMultithreading()
 	{
@@ -252,6 +577,7 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && writeAttribute( settings, element, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok && writeRuntimeSettings( settings, element, errorHolder );
 
 		final PretrainedModelCellpose model = ( PretrainedModelCellpose ) settings.get( KEY_CELLPOSE_MODEL );
 		element.setAttribute( KEY_CELLPOSE_MODEL, model.name() );
@@ -275,6 +601,7 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_DIAMETER, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_USE_GPU, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		ok = ok && readRuntimeSettings( element, settings, errorHolder );
 
 		// Read model.
 		final String str = element.getAttributeValue( KEY_CELLPOSE_MODEL );
@@ -288,6 +615,78 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		return checkSettings( settings );
 	}
 
+	/**
+	 * Writes the optional runtime parameters present in the settings map to
+	 * the specified element.
+	 * 
+	 * @param settings
+	 *            the settings map.
+	 * @param element
+	 *            the element to write to.
+	 * @param errorHolder
+	 *            a string builder to append error messages to.
+	 * @return <code>true</code> if writing was successful.
+	 */
+	protected static boolean writeRuntimeSettings( final Map< String, Object > settings, final Element element, final StringBuilder errorHolder )
+	{
+		boolean ok = true;
+		for ( final String key : RUNTIME_KEYS.keySet() )
+			if ( settings.get( key ) != null )
+				ok = ok && writeAttribute( settings, element, key, RUNTIME_KEYS.get( key ), errorHolder );
+		return ok;
+	}
+
+	/**
+	 * Reads the optional runtime parameters present in the specified element
+	 * into the settings map.
+	 * 
+	 * @param element
+	 *            the element to read from.
+	 * @param settings
+	 *            the settings map.
+	 * @param errorHolder
+	 *            a string builder to append error messages to.
+	 * @return <code>true</code> if reading was successful.
+	 */
+	protected static boolean readRuntimeSettings( final Element element, final Map< String, Object > settings, final StringBuilder errorHolder )
+	{
+		boolean ok = true;
+		for ( final String key : RUNTIME_KEYS.keySet() )
+		{
+			if ( element.getAttributeValue( key ) == null )
+				continue;
+
+			final Class< ? > klass = RUNTIME_KEYS.get( key );
+			if ( klass == Boolean.class )
+				ok = ok && readBooleanAttribute( element, settings, key, errorHolder );
+			else if ( klass == Integer.class )
+				ok = ok && readIntegerAttribute( element, settings, key, errorHolder );
+			else if ( klass == Double.class )
+				ok = ok && readDoubleAttribute( element, settings, key, errorHolder );
+			else
+				ok = ok && readStringAttribute( element, settings, key, errorHolder );
+		}
+		return ok;
+	}
+
+	/**
+	 * Checks the optional runtime parameters present in the settings map.
+	 * 
+	 * @param settings
+	 *            the settings map.
+	 * @param errorHolder
+	 *            a string builder to append error messages to.
+	 * @return <code>true</code> if the runtime parameters are valid.
+	 */
+	protected static boolean checkRuntimeSettings( final Map< String, Object > settings, final StringBuilder errorHolder )
+	{
+		boolean ok = true;
+		for ( final String key : RUNTIME_KEYS.keySet() )
+			if ( settings.get( key ) != null )
+				ok = ok & checkParameter( settings, key, RUNTIME_KEYS.get( key ), errorHolder );
+		return ok;
+	}
+
 	@Override
 	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
@@ -307,6 +706,9 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		settings.put( KEY_SIMPLIFY_CONTOURS, true );
 		settings.put( KEY_LOGGER, Logger.DEFAULT_LOGGER );
 		settings.put( KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH, DEFAULT_CELLPOSE_CUSTOM_MODEL_FILEPATH );
+		settings.put( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE );
+		settings.put( KEY_TILE, DEFAULT_TILE );
+		settings.put( KEY_TILE_OVERLAP, DEFAULT_TILE_OVERLAP );
 		return settings;
 	}
 
@@ -323,6 +725,7 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok & checkParameter( settings, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok & checkRuntimeSettings( settings, errorHolder );
 
 		// If we have a logger, test it is of the right class.
 		final Object loggerObj = settings.get( KEY_LOGGER );
@@ -341,9 +744,10 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				KEY_CELL_DIAMETER,
 				KEY_USE_GPU,
 				KEY_SIMPLIFY_CONTOURS );
-		final List< String > optionalKeys = Arrays.asList(
+		final List< String > optionalKeys = new ArrayList<>( Arrays.asList(
 				KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH,
-				KEY_LOGGER );
+				KEY_LOGGER ) );
+		optionalKeys.addAll( RUNTIME_KEYS.keySet() );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -0,0 +1,430 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.cellpose.backend.PythonScripts;
+
+/**
+ * Checks that a cellpose or omnipose installation can be run, and reports
+ * what it supports, before a detection writes any image.
+ * <p>
+ * The probe runs the executable once and records the version of cellpose,
+ * whether a GPU is available, the command line flags it accepts and the
+ * folder of its pretrained models. With a python executable, this is done by
+ * the <code>python/cellpose_probe.py</code> script shipped with this plugin.
+ * With a standalone executable, only the flags are read from its help.
+ * <p>
+ * Successful reports are cached in <code>trackmate-environment.json</code>,
+ * in the <code>.cellpose</code> or <code>.omnipose</code> folder of the user
+ * home, one per executable path, and reused until the installation changes.
+ * A standalone executable changes with its file. For a python executable,
+ * the file does not change when the package is upgraded, so the probe also
+ * records the folders of the package and of its metadata, and the report is
+ * reused only while they exist with the same modification time. Failed
+ * probes are not cached, so that a fixed installation is picked up right
+ * away.
+ * <p>
+ * The output of the probe is read on a separate thread, so that a probe
+ * that hangs is stopped after {@value #TIMEOUT_MINUTES} minutes.
+ */
+public class CellposeEnvironmentProbe
+{
+
+	private static final String SCRIPT = "/python/cellpose_probe.py";
+
+	private static final String MARKER = "TRACKMATE_PROBE ";
+
+	private static final long TIMEOUT_MINUTES = 10;
+
+	private static final Pattern FLAG = Pattern.compile( "--([A-Za-z0-9_]+)" );
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	private static final Type CACHE_TYPE = new TypeToken< Map< String, Report > >()
+	{}.getType();
+
+	private CellposeEnvironmentProbe()
+	{}
+
+	/**
+	 * What a cellpose installation supports.
+	 */
+	public static class Report
+	{
+
+		private String executable;
+
+		private long modified;
+
+		private long size;
+
+		private String version = "";
+
+		private boolean gpu;
+
+		private List< String > flags = new ArrayList<>();
+
+		@SerializedName( "model_dir" )
+		private String modelDir = "";
+
+		@SerializedName( "package_dir" )
+		private String packageDir = "";
+
+		@SerializedName( "metadata_dir" )
+		private String metadataDir = "";
+
+		/**
+		 * The modification times of the package and metadata folders when
+		 * the installation was probed.
+		 */
+		private String packageSignature = "";
+
+		private String error;
+
+		private Report()
+		{}
+
+		private static Report failed( final String executable, final String error )
+		{
+			final Report report = new Report();
+			report.executable = executable;
+			report.error = error;
+			return report;
+		}
+
+		/**
+		 * Returns whether cellpose can be run.
+		 *
+		 * @return <code>true</code> if the probe succeeded.
+		 */
+		public boolean isOk()
+		{
+			return error == null;
+		}
+
+		/**
+		 * Returns why cellpose cannot be run.
+		 *
+		 * @return the error message, or <code>null</code> if the probe
+		 *         succeeded.
+		 */
+		public String getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Returns the cellpose version.
+		 *
+		 * @return the version, or an empty string if unknown.
+		 */
+		public String getVersion()
+		{
+			return version == null ? "" : version;
+		}
+
+		/**
+		 * Returns whether cellpose can use a GPU.
+		 *
+		 * @return <code>true</code> if a GPU is available.
+		 */
+		public boolean hasGpu()
+		{
+			return gpu;
+		}
+
+		/**
+		 * Returns whether cellpose accepts the specified command line flag.
+		 *
+		 * @param flag
+		 *            the flag, without the leading dashes, for instance
+		 *            <code>cellprob_threshold</code>.
+		 * @return <code>true</code> if the flag is supported.
+		 */
+		public boolean supports( final String flag )
+		{
+			return flags != null && flags.contains( flag );
+		}
+
+		/**
+		 * Returns the command line flags accepted by cellpose.
+		 *
+		 * @return the flags, without the leading dashes.
+		 */
+		public List< String > getFlags()
+		{
+			return flags == null ? Collections.emptyList() : Collections.unmodifiableList( flags );
+		}
+
+		/**
+		 * Returns the folder where cellpose stores its pretrained models.
+		 *
+		 * @return the folder path, or an empty string if unknown.
+		 */
+		public String getModelDir()
+		{
+			return modelDir == null ? "" : modelDir;
+		}
+
+		@Override
+		public String toString()
+		{
+			if ( !isOk() )
+				return executable + ": " + error;
+			return executable + ": version " + ( getVersion().isEmpty() ? "unknown" : getVersion() )
+					+ ", GPU " + ( gpu ? "available" : "not available" )
+					+ ", " + getFlags().size() + " flags"
+					+ ( getModelDir().isEmpty() ? "" : ", models in " + getModelDir() );
+		}
+	}
+
+	/**
+	 * Returns the report of the installation of the specified settings, from
+	 * the cache or by probing it.
+	 *
+	 * @param settings
+	 *            the cellpose settings.
+	 * @param logger
+	 *            a logger to report the probe to.
+	 * @return the report, never <code>null</code>.
+	 */
+	public static synchronized Report probe( final AbstractCellposeSettings settings, final Logger logger )
+	{
+		final File exe = new File( settings.executablePath );
+		if ( !exe.canExecute() )
+			return Report.failed( settings.executablePath, "Cannot run the executable " + settings.executablePath );
+
+		final File cacheFile = getCacheFile( settings );
+		final Map< String, Report > cache = load( cacheFile );
+		final Report cached = cache.get( exe.getAbsolutePath() );
+		if ( cached != null && cached.modified == exe.lastModified() && cached.size == exe.length()
+				&& packageSignature( cached ).equals( cached.packageSignature ) )
+			return cached;
+
+		logger.log( "Checking the " + settings.getExecutableName() + " installation " + exe + ".\n" );
+		final Report report = run( settings );
+		report.executable = exe.getAbsolutePath();
+		report.modified = exe.lastModified();
+		report.size = exe.length();
+		report.packageSignature = packageSignature( report );
+		logger.log( report.toString() + '\n' );
+		if ( report.isOk() )
+		{
+			cache.put( report.executable, report );
+			try
+			{
+				store( cacheFile, cache );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not cache the installation report in " + cacheFile + ": " + e.getMessage() + '\n' );
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Returns a string that changes when the package folders of the specified
+	 * report change, are removed or replaced, as when the package is
+	 * upgraded.
+	 */
+	private static String packageSignature( final Report report )
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( final String path : new String[] { report.packageDir, report.metadataDir } )
+		{
+			if ( path == null || path.isEmpty() )
+				continue;
+			final File dir = new File( path );
+			str.append( path ).append( '@' ).append( dir.exists() ? dir.lastModified() : -1l ).append( ';' );
+		}
+		return str.toString();
+	}
+
+	private static Report run( final AbstractCellposeSettings settings )
+	{
+		final List< String > cellposeCmd = settings.toCmdLine( "" );
+		final boolean python = cellposeCmd.contains( "-m" );
+		final List< String > cmd;
+		try
+		{
+			if ( python )
+			{
+				cmd = PythonScripts.command( cellposeCmd, SCRIPT );
+				cmd.add( settings.getExecutableName() );
+			}
+			else
+			{
+				cmd = new ArrayList<>( cellposeCmd.subList( 0, cellposeCmd.indexOf( "--dir" ) ) );
+				cmd.add( "--help" );
+			}
+		}
+		catch ( final IOException e )
+		{
+			return Report.failed( settings.executablePath, e.getMessage() );
+		}
+
+		final List< String > lines = new ArrayList<>();
+		final int exitCode;
+		try
+		{
+			final ProcessBuilder pb = new ProcessBuilder( cmd );
+			if ( python )
+				pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+			else
+				pb.redirectErrorStream( true );
+			final Process process = pb.start();
+			// Drained on another thread, so that the timeout applies.
+			final Thread drainer = new Thread( () -> {
+				try (BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) ))
+				{
+					String line;
+					while ( ( line = reader.readLine() ) != null )
+					{
+						synchronized ( lines )
+						{
+							lines.add( line );
+						}
+					}
+				}
+				catch ( final IOException e )
+				{
+					// Stream closed when the process is destroyed.
+				}
+			}, "TrackMate cellpose probe output" );
+			drainer.setDaemon( true );
+			drainer.start();
+			if ( !process.waitFor( TIMEOUT_MINUTES, TimeUnit.MINUTES ) )
+			{
+				process.destroyForcibly();
+				return Report.failed( settings.executablePath, "The installation check timed out." );
+			}
+			exitCode = process.exitValue();
+			// The process exited, its output ends soon.
+			drainer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+		}
+		catch ( final IOException e )
+		{
+			return Report.failed( settings.executablePath, "Could not run " + settings.executablePath + ": " + e.getMessage() );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return Report.failed( settings.executablePath, "Interrupted while checking the installation." );
+		}
+
+		final List< String > output;
+		synchronized ( lines )
+		{
+			output = new ArrayList<>( lines );
+		}
+
+		if ( !python )
+		{
+			final TreeSet< String > flags = new TreeSet<>();
+			for ( final String line : output )
+			{
+				final Matcher m = FLAG.matcher( line );
+				while ( m.find() )
+					flags.add( m.group( 1 ) );
+			}
+			if ( exitCode != 0 || flags.isEmpty() )
+				return Report.failed( settings.executablePath, "The executable did not answer as " + settings.getExecutableName() + " does." );
+			final Report report = new Report();
+			report.flags = new ArrayList<>( flags );
+			return report;
+		}
+
+		for ( final String line : output )
+		{
+			if ( !line.startsWith( MARKER ) )
+				continue;
+			try
+			{
+				final Report report = GSON.fromJson( line.substring( MARKER.length() ), Report.class );
+				if ( report != null )
+					return report;
+			}
+			catch ( final JsonParseException e )
+			{
+				return Report.failed( settings.executablePath, "Could not read the installation check: " + e.getMessage() );
+			}
+		}
+		return Report.failed( settings.executablePath, "The installation check did not complete, exit code " + exitCode + '.' );
+	}
+
+	private static File getCacheFile( final AbstractCellposeSettings settings )
+	{
+		return new File( new File( System.getProperty( "user.home" ), "." + settings.getExecutableName() ), "trackmate-environment.json" );
+	}
+
+	private static Map< String, Report > load( final File file )
+	{
+		if ( !file.exists() )
+			return new HashMap<>();
+		try (Reader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			final Map< String, Report > cache = GSON.fromJson( reader, CACHE_TYPE );
+			return cache == null ? new HashMap<>() : new HashMap<>( cache );
+		}
+		catch ( final IOException | JsonParseException e )
+		{
+			// Start from scratch.
+			return new HashMap<>();
+		}
+	}
+
+	private static void store( final File file, final Map< String, Report > cache ) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		try (Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			GSON.toJson( cache, CACHE_TYPE, writer );
+		}
+	}
+}
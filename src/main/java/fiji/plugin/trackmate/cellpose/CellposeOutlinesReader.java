@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * Reads the outline text files written by cellpose (the
+ * <code>_cp_outlines.txt</code> files) directly into spots with a polygon
+ * ROI.
+ * <p>
+ * Each line of these files is the outline of one object, as a comma-separated
+ * list of integer pixel coordinates <code>x0,y0,x1,y1,...</code>. The file is
+ * parsed byte per byte, reusing a single coordinate buffer, so that the only
+ * allocations are the ones of the spots themselves.
+ */
+public class CellposeOutlinesReader
+{
+
+	private final double[] calibration;
+
+	private final long[] origin;
+
+	private final int scale;
+
+	private int[] buffer = new int[ 1024 ];
+
+	private int size;
+
+	/**
+	 * Creates a reader for outlines in an image with the specified origin and
+	 * calibration.
+	 *
+	 * @param origin
+	 *            the position, in pixels, of the top-left corner of the
+	 *            segmented image in the source image.
+	 * @param calibration
+	 *            the spatial calibration of the source image.
+	 */
+	public CellposeOutlinesReader( final long[] origin, final double[] calibration )
+	{
+		this( origin, calibration, 1 );
+	}
+
+	/**
+	 * Creates a reader for outlines in an image downsampled by the specified
+	 * integer factor from the source image.
+	 *
+	 * @param origin
+	 *            the position, in pixels, of the top-left corner of the
+	 *            segmented image in the source image.
+	 * @param calibration
+	 *            the spatial calibration of the source image.
+	 * @param scale
+	 *            the downsampling factor of the segmented image.
+	 */
+	public CellposeOutlinesReader( final long[] origin, final double[] calibration, final int scale )
+	{
+		this.origin = origin;
+		this.calibration = calibration;
+		this.scale = scale;
+	}
+
+	/**
+	 * Reads the specified outline file.
+	 *
+	 * @param file
+	 *            the outline file.
+	 * @return a new list of spots, one per object with at least 3 outline
+	 *         points.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public List< Spot > read( final File file ) throws IOException
+	{
+		final List< Spot > spots = new ArrayList<>();
+		try (InputStream is = new BufferedInputStream( Files.newInputStream( file.toPath() ), 1 << 16 ))
+		{
+			size = 0;
+			int value = 0;
+			boolean inNumber = false;
+			boolean negative = false;
+			int c;
+			while ( ( c = is.read() ) >= 0 )
+			{
+				if ( c >= '0' && c <= '9' )
+				{
+					value = value * 10 + ( c - '0' );
+					inNumber = true;
+				}
+				else if ( c == '-' )
+				{
+					negative = true;
+				}
+				else
+				{
+					if ( inNumber )
+						push( negative ? -value : value );
+					value = 0;
+					inNumber = false;
+					negative = false;
+					if ( c == '\n' )
+						flush( spots );
+				}
+			}
+			if ( inNumber )
+				push( negative ? -value : value );
+			flush( spots );
+		}
+		return spots;
+	}
+
+	private void push( final int v )
+	{
+		if ( size == buffer.length )
+			buffer = Arrays.copyOf( buffer, 2 * buffer.length );
+		buffer[ size++ ] = v;
+	}
+
+	/**
+	 * Creates a spot from the coordinates accumulated for the current line,
+	 * and resets the buffer.
+	 */
+	private void flush( final List< Spot > spots )
+	{
+		final int n = size / 2;
+		size = 0;
+		if ( n < 3 )
+			return;
+
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		double area = 0.;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int xi = buffer[ 2 * i ];
+			final int yi = buffer[ 2 * i + 1 ];
+			final int j = ( i + 1 ) % n;
+			area += ( double ) xi * buffer[ 2 * j + 1 ] - ( double ) buffer[ 2 * j ] * yi;
+			// Downsampled pixels are mapped to the center of their block.
+			x[ i ] = calibration[ 0 ] * ( origin[ 0 ] + scale * xi + ( scale - 1 ) / 2. );
+			y[ i ] = calibration[ 1 ] * ( origin[ 1 ] + scale * yi + ( scale - 1 ) / 2. );
+		}
+		// Quality is the area in pixels, like for label images.
+		final double quality = Math.abs( area ) / 2. * scale * scale;
+		spots.add( SpotRoi.createSpot( x, y, quality ) );
+	}
+}
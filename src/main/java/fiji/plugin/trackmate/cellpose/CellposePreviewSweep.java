@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+import ij.gui.Plot;
+import ij.measure.ResultsTable;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Previews a cellpose detection on a few frames evenly spread over the
+ * movie, segmented in a single cellpose run so that the model is loaded only
+ * once. The results are summarized as a table of object counts per frame and
+ * a histogram of the object areas over all the sampled frames, so that the
+ * settings can be judged over the whole movie at once.
+ *
+ * @param <T>
+ *            the pixel type of the image.
+ */
+public class CellposePreviewSweep< T extends RealType< T > & NativeType< T > >
+{
+
+	public static final int DEFAULT_N_FRAMES = 8;
+
+	private static final int N_BINS = 32;
+
+	private final CellposeDetectorFactory< T > factory;
+
+	private final Map< String, Object > settings;
+
+	private final ImgPlus< T > img;
+
+	private final Interval interval;
+
+	private final String spaceUnits;
+
+	private SpotCollection spots;
+
+	private int[] frames;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a preview sweep.
+	 *
+	 * @param factory
+	 *            the detector factory.
+	 * @param settings
+	 *            the detector settings.
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to detect in, time included as last dimension.
+	 * @param spaceUnits
+	 *            the spatial units of the image, for display.
+	 */
+	public CellposePreviewSweep(
+			final CellposeDetectorFactory< T > factory,
+			final Map< String, Object > settings,
+			final ImgPlus< T > img,
+			final Interval interval,
+			final String spaceUnits )
+	{
+		this.factory = factory;
+		this.settings = settings;
+		this.img = img;
+		this.interval = interval;
+		this.spaceUnits = spaceUnits;
+	}
+
+	/**
+	 * Runs the detection on the specified number of frames, evenly spaced in
+	 * the time interval.
+	 *
+	 * @param nFrames
+	 *            the number of frames to sample.
+	 * @return <code>true</code> if the detection went well.
+	 */
+	public boolean run( final int nFrames )
+	{
+		if ( !factory.setTarget( img, settings ) )
+		{
+			errorMessage = factory.getErrorMessage();
+			return false;
+		}
+
+		frames = sampleFrames( interval, nFrames );
+
+		final CellposeDetector< T > detector = ( CellposeDetector< T > ) factory.getDetector( interval );
+		detector.setNumThreads();
+		detector.setFrameSubset( frames );
+		detector.setSingleRun( true );
+		if ( !detector.checkInput() || !detector.process() )
+		{
+			errorMessage = detector.getErrorMessage();
+			return false;
+		}
+		spots = detector.getResult();
+		return true;
+	}
+
+	/**
+	 * Returns the specified number of time-points, evenly spaced in the time
+	 * range of the specified interval.
+	 *
+	 * @param interval
+	 *            the interval, time included as last dimension.
+	 * @param nFrames
+	 *            the number of time-points to sample.
+	 * @return a new array of time-points.
+	 */
+	static int[] sampleFrames( final Interval interval, final int nFrames )
+	{
+		final int last = interval.numDimensions() - 1;
+		final int minT = ( int ) interval.min( last );
+		final int nT = ( int ) interval.dimension( last );
+		final int n = Math.max( 1, Math.min( nFrames, nT ) );
+		final int[] frames = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+			frames[ i ] = minT + ( ( n == 1 ) ? 0 : ( int ) ( ( long ) i * ( nT - 1 ) / ( n - 1 ) ) );
+		return frames;
+	}
+
+	/**
+	 * Returns the spots found in the sampled frames.
+	 *
+	 * @return the spots.
+	 */
+	public SpotCollection getResult()
+	{
+		return spots;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns a table with the number of objects and their mean area for each
+	 * sampled frame.
+	 *
+	 * @return a new table.
+	 */
+	public ResultsTable getCountsTable()
+	{
+		final ResultsTable table = new ResultsTable();
+		for ( final int frame : frames )
+		{
+			int count = 0;
+			double sumArea = 0.;
+			for ( final Spot spot : spots.iterable( frame, false ) )
+			{
+				count++;
+				sumArea += area( spot );
+			}
+			table.incrementCounter();
+			table.addValue( "Frame", frame );
+			table.addValue( "N objects", count );
+			table.addValue( "Mean area (" + spaceUnits + "^2)", count == 0 ? 0. : sumArea / count );
+		}
+		return table;
+	}
+
+	/**
+	 * Returns a histogram of the areas of the objects of all the sampled
+	 * frames.
+	 *
+	 * @return a new plot.
+	 */
+	public Plot getAreaHistogram()
+	{
+		final List< Double > areas = new ArrayList<>();
+		for ( final Spot spot : spots.iterable( false ) )
+			areas.add( Double.valueOf( area( spot ) ) );
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( final Double a : areas )
+		{
+			min = Math.min( min, a.doubleValue() );
+			max = Math.max( max, a.doubleValue() );
+		}
+
+		final double[] centers = new double[ N_BINS ];
+		final double[] counts = new double[ N_BINS ];
+		if ( !areas.isEmpty() )
+		{
+			final double width = Math.max( ( max - min ) / N_BINS, Double.MIN_VALUE );
+			for ( int i = 0; i < N_BINS; i++ )
+				centers[ i ] = min + ( i + 0.5 ) * width;
+			for ( final Double a : areas )
+			{
+				final int bin = Math.min( N_BINS - 1, ( int ) ( ( a.doubleValue() - min ) / width ) );
+				counts[ bin ]++;
+			}
+		}
+
+		final Plot plot = new Plot( "Area histogram over " + frames.length + " frames", "Area (" + spaceUnits + "^2)", "Count" );
+		plot.add( "bar", centers, counts );
+		return plot;
+	}
+
+	private static double area( final Spot spot )
+	{
+		// Set by the detector when it ingests the labels.
+		final Double area = spot.getFeature( LabelStatistics.AREA );
+		if ( area != null )
+			return area.doubleValue();
+		final SpotRoi roi = spot.getRoi();
+		if ( roi != null )
+			return roi.area();
+		final double r = spot.getFeature( Spot.RADIUS ).doubleValue();
+		return Math.PI * r * r;
+	}
+}
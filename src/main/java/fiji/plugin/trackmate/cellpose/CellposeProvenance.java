@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import ij.ImagePlus;
+
+/**
+ * Records how the spots of a cellpose detection were produced: the
+ * executable and its version, the model and the hash of its file, the
+ * command line, the host, and the time cellpose took on each frame.
+ * <p>
+ * The provenance of a detection is identified by its key, a hash of
+ * everything that determines its results. The same key names the checkpoint
+ * folder of the detection in the work folder, see
+ * {@link CellposeCheckpoint}. When the spots of a detection are written to a
+ * spot file, the provenance is written next to it as JSON, and a detection
+ * with the same key reuses the spot file instead of running cellpose again.
+ * By convention, the provenance file of <code>name.spots.bin</code> is
+ * <code>name.provenance.json</code>. See {@link #getProvenanceFile(File)}.
+ */
+public class CellposeProvenance
+{
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	private static final String SPOT_FILE_SUFFIX = ".spots.bin";
+
+	private String key;
+
+	private String created;
+
+	private String host;
+
+	private String user;
+
+	private String tool;
+
+	private String executable;
+
+	private String version;
+
+	private boolean gpu;
+
+	private String model;
+
+	private String modelHash;
+
+	private List< String > command = new ArrayList<>();
+
+	private String source;
+
+	private String image;
+
+	private String interval;
+
+	/**
+	 * The cell diameter estimated on a sample of frames, in pixels, or 0 if
+	 * it was not estimated.
+	 */
+	private double estimatedDiameter;
+
+	private Map< String, Long > frameRuntimes = new LinkedHashMap<>();
+
+	private long totalTime;
+
+	private int nSpots;
+
+	private CellposeProvenance()
+	{}
+
+	/**
+	 * Creates the provenance of a new detection.
+	 *
+	 * @param key
+	 *            a string that identifies the detection: two detections with
+	 *            the same key must give the same results. Only its hash is
+	 *            stored.
+	 * @param settings
+	 *            the cellpose settings of the detection.
+	 * @param environment
+	 *            the report of the cellpose installation, or <code>null</code>
+	 *            if it was not checked.
+	 * @param modelHash
+	 *            the hash of the model file, see {@link CustomModelCache}.
+	 * @param source
+	 *            the source of the image.
+	 * @param image
+	 *            the name of the image.
+	 * @param interval
+	 *            the detection interval, as a string.
+	 */
+	CellposeProvenance(
+			final String key,
+			final AbstractCellposeSettings settings,
+			final CellposeEnvironmentProbe.Report environment,
+			final String modelHash,
+			final String source,
+			final String image,
+			final String interval )
+	{
+		this.key = hash( key );
+		this.created = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ssZ" ).format( new Date() );
+		this.host = getHostName();
+		this.user = System.getProperty( "user.name" );
+		this.tool = settings.getExecutableName();
+		this.executable = new File( settings.executablePath ).getAbsolutePath();
+		this.version = ( environment == null ) ? "" : environment.getVersion();
+		this.gpu = settings.useGPU && ( environment == null || environment.hasGpu() );
+		this.model = settings.getModel().isCustom() ? settings.customModelPath : settings.getModel().getPath();
+		this.modelHash = modelHash;
+		this.source = source;
+		this.image = image;
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns the provenance file that goes with the specified spot file.
+	 *
+	 * @param spotFile
+	 *            the spot file.
+	 * @return the provenance file.
+	 */
+	public static File getProvenanceFile( final File spotFile )
+	{
+		final String name = spotFile.getName();
+		final String base;
+		if ( name.endsWith( SPOT_FILE_SUFFIX ) )
+			base = name.substring( 0, name.length() - SPOT_FILE_SUFFIX.length() );
+		else
+			base = ( name.lastIndexOf( '.' ) < 0 ) ? name : name.substring( 0, name.lastIndexOf( '.' ) );
+		return new File( spotFile.getParentFile(), base + ".provenance.json" );
+	}
+
+	/**
+	 * Reads a provenance file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the provenance, or <code>null</code> if the file does not
+	 *         exist.
+	 * @throws IOException
+	 *             if the file cannot be read or parsed.
+	 */
+	public static CellposeProvenance read( final File file ) throws IOException
+	{
+		if ( !file.exists() )
+			return null;
+		try (Reader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			return GSON.fromJson( reader, CellposeProvenance.class );
+		}
+		catch ( final JsonParseException e )
+		{
+			throw new IOException( "Could not parse " + file + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Writes this provenance to a file.
+	 *
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void write( final File file ) throws IOException
+	{
+		try (Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			GSON.toJson( this, writer );
+		}
+	}
+
+	/**
+	 * Records the time cellpose took on a batch of frames, shared equally
+	 * between them.
+	 *
+	 * @param imps
+	 *            the frames processed together.
+	 * @param millis
+	 *            the time it took, in milliseconds.
+	 */
+	synchronized void addRuntime( final List< ImagePlus > imps, final long millis )
+	{
+		if ( imps.isEmpty() )
+			return;
+		final long perFrame = millis / imps.size();
+		for ( final ImagePlus imp : imps )
+			frameRuntimes.put( imp.getShortTitle(), Long.valueOf( perFrame ) );
+	}
+
+	/**
+	 * Records the cell diameter estimated on a sample of frames.
+	 *
+	 * @param diameter
+	 *            the diameter, in pixels.
+	 */
+	synchronized void setEstimatedDiameter( final double diameter )
+	{
+		this.estimatedDiameter = diameter;
+	}
+
+	/**
+	 * Returns the cell diameter estimated on a sample of frames, when the
+	 * detection was configured to estimate it.
+	 *
+	 * @return the diameter in pixels, or 0 if it was not estimated.
+	 */
+	public double getEstimatedDiameter()
+	{
+		return estimatedDiameter;
+	}
+
+	/**
+	 * Records the outcome of the detection.
+	 *
+	 * @param command
+	 *            the cellpose command line, with a placeholder for the folder
+	 *            of the images.
+	 * @param nSpots
+	 *            the number of spots found.
+	 * @param totalTime
+	 *            the total detection time, in milliseconds.
+	 */
+	synchronized void setResult( final List< String > command, final int nSpots, final long totalTime )
+	{
+		this.command = new ArrayList<>( command );
+		this.nSpots = nSpots;
+		this.totalTime = totalTime;
+	}
+
+	/**
+	 * Returns the hash of everything that determines the results of the
+	 * detection.
+	 *
+	 * @return the key, as an hexadecimal string.
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	public String getCreated()
+	{
+		return created;
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public String getUser()
+	{
+		return user;
+	}
+
+	public String getExecutable()
+	{
+		return executable;
+	}
+
+	/**
+	 * Returns the version of cellpose.
+	 *
+	 * @return the version, or an empty string if unknown.
+	 */
+	public String getVersion()
+	{
+		return version == null ? "" : version;
+	}
+
+	public boolean isGpu()
+	{
+		return gpu;
+	}
+
+	public String getModel()
+	{
+		return model;
+	}
+
+	/**
+	 * Returns the hash of the model file.
+	 *
+	 * @return the SHA-256 of a custom model file, or an empty string for
+	 *         pretrained models.
+	 */
+	public String getModelHash()
+	{
+		return modelHash == null ? "" : modelHash;
+	}
+
+	public List< String > getCommand()
+	{
+		return Collections.unmodifiableList( command );
+	}
+
+	/**
+	 * Returns the time cellpose took on each frame.
+	 *
+	 * @return a map from frame name to time in milliseconds.
+	 */
+	public synchronized Map< String, Long > getFrameRuntimes()
+	{
+		return Collections.unmodifiableMap( new LinkedHashMap<>( frameRuntimes ) );
+	}
+
+	public long getTotalTime()
+	{
+		return totalTime;
+	}
+
+	public int getNSpots()
+	{
+		return nSpots;
+	}
+
+	@Override
+	public String toString()
+	{
+		return tool + " " + ( getVersion().isEmpty() ? "(unknown version)" : getVersion() )
+				+ " on " + host + ", model " + model
+				+ ( getModelHash().isEmpty() ? "" : " (" + getModelHash().substring( 0, 12 ) + ")" )
+				+ ", " + nSpots + " spots in " + totalTime + " ms";
+	}
+
+	private static String hash( final String str )
+	{
+		return toHex( sha256().digest( str.getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+
+	/**
+	 * Returns a new SHA-256 digest.
+	 */
+	static MessageDigest sha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// Every Java platform supports SHA-256.
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Returns the specified bytes as an hexadecimal string.
+	 */
+	static String toHex( final byte[] bytes )
+	{
+		final StringBuilder str = new StringBuilder( 2 * bytes.length );
+		for ( final byte b : bytes )
+			str.append( String.format( "%02x", b ) );
+		return str.toString();
+	}
+
+	private static String getHostName()
+	{
+		try
+		{
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch ( final UnknownHostException e )
+		{
+			final String host = System.getenv( "HOSTNAME" );
+			return host == null ? "unknown" : host;
+		}
+	}
+}
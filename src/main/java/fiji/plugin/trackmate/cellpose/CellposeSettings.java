@@ -37,6 +37,24 @@ public class CellposeSettings extends AbstractCellposeSettings
 		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
 	}
 
+	public CellposeSettings(
+			final String cellposePythonPath,
+			final PretrainedModelCellpose model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final int batchSize,
+			final boolean tile,
+			final double tileOverlap,
+			final Boolean resample )
+	{
+		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				batchSize, tile, tileOverlap, resample );
+	}
+
 	@Override
 	public String getExecutableName()
 	{
@@ -67,6 +85,14 @@ public class CellposeSettings extends AbstractCellposeSettings
 
 		protected String customModelPath = "";
 
+		protected int batchSize = DEFAULT_BATCH_SIZE;
+
+		protected boolean tile = DEFAULT_TILE;
+
+		protected double tileOverlap = DEFAULT_TILE_OVERLAP;
+
+		protected Boolean resample = DEFAULT_RESAMPLE;
+
 		public Builder channel1( final int ch )
 		{
 			this.chan = ch;
@@ -115,6 +141,30 @@ public class CellposeSettings extends AbstractCellposeSettings
 			return this;
 		}
 
+		public Builder batchSize( final int batchSize )
+		{
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Builder tile( final boolean tile )
+		{
+			this.tile = tile;
+			return this;
+		}
+
+		public Builder tileOverlap( final double tileOverlap )
+		{
+			this.tileOverlap = tileOverlap;
+			return this;
+		}
+
+		public Builder resample( final Boolean resample )
+		{
+			this.resample = resample;
+			return this;
+		}
+
 		public CellposeSettings get()
 		{
 			return new CellposeSettings(
@@ -125,7 +175,11 @@ public class CellposeSettings extends AbstractCellposeSettings
 					chan2,
 					diameter,
 					useGPU,
-					simplifyContours );
+					simplifyContours,
+					batchSize,
+					tile,
+					tileOverlap,
+					resample );
 		}
 	}
 
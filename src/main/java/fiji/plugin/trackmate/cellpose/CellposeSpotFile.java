@@ -0,0 +1,551 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Element;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+
+/**
+ * Reads and writes spots in a compact binary file, as an alternative to the
+ * TrackMate XML for the large spot collections produced by cellpose.
+ * <p>
+ * The file is columnar: the spot IDs and frames, then one column of values
+ * per feature, then the polygon ROIs. IDs and frames are delta-encoded. The
+ * ROI vertices are quantized, delta-encoded from one vertex to the next, and
+ * written as zig-zag variable-length integers, which takes 1 or 2 bytes per
+ * coordinate for typical cell outlines. The file can be GZIP-compressed;
+ * compression is detected when reading.
+ * <p>
+ * By convention, the spot file of a TrackMate XML file <code>name.xml</code>
+ * is <code>name.spots.bin</code>, next to it. See
+ * {@link #getSpotFile(File)}. {@link #writeXml(Model, Settings, File, boolean)}
+ * writes the TrackMate XML without the ROIs, and with a
+ * <code>CellposeSpotFile</code> element referencing the spot file that holds
+ * them; {@link #readXml(File)} reads it back with the ROIs. Such an XML file
+ * can still be opened by TrackMate, without the ROIs. The spot features are
+ * written both in the XML and in the spot file: TrackMate needs them to open
+ * the XML, and the spot file can be read on its own. They take little room
+ * compared to the ROIs.
+ */
+public class CellposeSpotFile
+{
+
+	private static final int MAGIC = 0x544d5350; // "TMSP"
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The element of the TrackMate XML that references the spot file.
+	 */
+	private static final String XML_ELEMENT = "CellposeSpotFile";
+
+	private static final String XML_PATH_ATTRIBUTE = "path";
+
+	/**
+	 * The default quantization step of the ROI vertices, in physical units.
+	 */
+	public static final double DEFAULT_QUANTUM = 1e-3;
+
+	private CellposeSpotFile()
+	{}
+
+	/**
+	 * Returns the spot file that goes with the specified TrackMate XML file.
+	 *
+	 * @param xmlFile
+	 *            the TrackMate XML file.
+	 * @return the spot file.
+	 */
+	public static File getSpotFile( final File xmlFile )
+	{
+		final String name = xmlFile.getName();
+		final int dot = name.lastIndexOf( '.' );
+		final String base = ( dot < 0 ) ? name : name.substring( 0, dot );
+		return new File( xmlFile.getParentFile(), base + ".spots.bin" );
+	}
+
+	/**
+	 * Saves a model in a TrackMate XML file, with the spot ROIs in the spot
+	 * file that goes with it, referenced from the XML. The model is left
+	 * unchanged.
+	 *
+	 * @param model
+	 *            the model to save.
+	 * @param settings
+	 *            the settings to save with it, can be <code>null</code>.
+	 * @param xmlFile
+	 *            the TrackMate XML file to write.
+	 * @param compress
+	 *            whether to GZIP-compress the spot file.
+	 * @throws IOException
+	 *             if a file cannot be written.
+	 * @see #getSpotFile(File)
+	 */
+	public static void writeXml( final Model model, final Settings settings, final File xmlFile, final boolean compress ) throws IOException
+	{
+		final File spotFile = getSpotFile( xmlFile );
+		write( model.getSpots(), spotFile, compress );
+
+		// Leave the ROIs out of the XML while it is written.
+		final Map< Spot, SpotRoi > rois = new HashMap<>();
+		for ( final Spot spot : model.getSpots().iterable( false ) )
+		{
+			if ( spot.getRoi() == null )
+				continue;
+			rois.put( spot, spot.getRoi() );
+			spot.setRoi( null );
+		}
+		try
+		{
+			final SpotFileXmlWriter writer = new SpotFileXmlWriter( xmlFile );
+			writer.appendModel( model );
+			if ( settings != null )
+				writer.appendSettings( settings );
+			writer.appendSpotFile( spotFile );
+			writer.writeToFile();
+		}
+		finally
+		{
+			for ( final Map.Entry< Spot, SpotRoi > entry : rois.entrySet() )
+				entry.getKey().setRoi( entry.getValue() );
+		}
+	}
+
+	/**
+	 * Loads the model of a TrackMate XML file, with the spot ROIs of the spot
+	 * file it references, if any.
+	 *
+	 * @param xmlFile
+	 *            the TrackMate XML file to read.
+	 * @return the model.
+	 * @throws IOException
+	 *             if the XML file or the spot file cannot be read.
+	 */
+	public static Model readXml( final File xmlFile ) throws IOException
+	{
+		final SpotFileXmlReader reader = new SpotFileXmlReader( xmlFile );
+		if ( !reader.isReadingOk() )
+			throw new IOException( reader.getErrorMessage() );
+		final Model model = reader.getModel();
+		if ( model == null )
+			throw new IOException( reader.getErrorMessage() );
+
+		final File spotFile = reader.getSpotFile();
+		if ( spotFile == null )
+			return model;
+
+		// The features are in the XML already.
+		final Map< Integer, SpotRoi > rois = new HashMap<>();
+		for ( final Spot spot : read( spotFile, false ).iterable( false ) )
+			if ( spot.getRoi() != null )
+				rois.put( Integer.valueOf( spot.ID() ), spot.getRoi() );
+		for ( final Spot spot : model.getSpots().iterable( false ) )
+		{
+			final SpotRoi roi = rois.get( Integer.valueOf( spot.ID() ) );
+			if ( roi != null )
+				spot.setRoi( roi );
+		}
+		return model;
+	}
+
+	/**
+	 * Returns the spot file referenced by a TrackMate XML file, or
+	 * <code>null</code> if it does not reference one.
+	 *
+	 * @param xmlFile
+	 *            the TrackMate XML file.
+	 * @return the spot file, resolved against the folder of the XML file.
+	 * @throws IOException
+	 *             if the XML file cannot be read.
+	 */
+	public static File getReferencedSpotFile( final File xmlFile ) throws IOException
+	{
+		try (Reader in = Files.newBufferedReader( xmlFile.toPath(), StandardCharsets.UTF_8 ))
+		{
+			final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader( in );
+			try
+			{
+				// The root, then its first child.
+				int depth = 0;
+				while ( reader.hasNext() )
+				{
+					if ( reader.next() != XMLStreamConstants.START_ELEMENT )
+						continue;
+					if ( ++depth < 2 )
+						continue;
+					if ( !XML_ELEMENT.equals( reader.getLocalName() ) )
+						return null;
+					final String path = reader.getAttributeValue( null, XML_PATH_ATTRIBUTE );
+					return ( path == null ) ? null : new File( xmlFile.getAbsoluteFile().getParentFile(), path );
+				}
+				return null;
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( "Could not read " + xmlFile + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Writes the specified spots to a file, with the default quantization of
+	 * ROI vertices.
+	 *
+	 * @param spots
+	 *            the spots to write.
+	 * @param file
+	 *            the file to write to.
+	 * @param compress
+	 *            whether to GZIP-compress the file.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final SpotCollection spots, final File file, final boolean compress ) throws IOException
+	{
+		write( spots, file, compress, DEFAULT_QUANTUM );
+	}
+
+	/**
+	 * Writes the specified spots to a file.
+	 *
+	 * @param spots
+	 *            the spots to write.
+	 * @param file
+	 *            the file to write to.
+	 * @param compress
+	 *            whether to GZIP-compress the file.
+	 * @param quantum
+	 *            the quantization step of the ROI vertices, in physical
+	 *            units.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final SpotCollection spots, final File file, final boolean compress, final double quantum ) throws IOException
+	{
+		/*
+		 * Spots in frame order, and the union of their features.
+		 */
+
+		final List< Spot > list = new ArrayList<>( spots.getNSpots( false ) );
+		final List< Integer > frames = new ArrayList<>( spots.getNSpots( false ) );
+		final Set< String > features = new LinkedHashSet<>();
+		for ( final Integer frame : spots.keySet() )
+		{
+			for ( final Spot spot : spots.iterable( frame, false ) )
+			{
+				list.add( spot );
+				frames.add( frame );
+				features.addAll( spot.getFeatures().keySet() );
+			}
+		}
+		// The frame is stored separately.
+		features.remove( Spot.FRAME );
+
+		OutputStream os = new BufferedOutputStream( Files.newOutputStream( file.toPath() ), 1 << 16 );
+		if ( compress )
+			os = new GZIPOutputStream( os, 1 << 16 );
+		try (DataOutputStream out = new DataOutputStream( os ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( list.size() );
+			out.writeDouble( quantum );
+			out.writeInt( features.size() );
+			for ( final String feature : features )
+				out.writeUTF( feature );
+
+			// IDs and frames.
+			int previous = 0;
+			for ( final Spot spot : list )
+			{
+				writeVarLong( out, spot.ID() - previous );
+				previous = spot.ID();
+			}
+			previous = 0;
+			for ( final Integer frame : frames )
+			{
+				writeVarLong( out, frame.intValue() - previous );
+				previous = frame.intValue();
+			}
+
+			// Feature columns.
+			for ( final String feature : features )
+			{
+				for ( final Spot spot : list )
+				{
+					final Double val = spot.getFeature( feature );
+					out.writeDouble( val == null ? Double.NaN : val.doubleValue() );
+				}
+			}
+
+			// ROIs, relative to the spot center.
+			for ( final Spot spot : list )
+			{
+				final SpotRoi roi = spot.getRoi();
+				if ( roi == null )
+				{
+					writeVarLong( out, 0 );
+					continue;
+				}
+				writeVarLong( out, roi.x.length );
+				long px = 0;
+				long py = 0;
+				for ( int i = 0; i < roi.x.length; i++ )
+				{
+					final long qx = Math.round( roi.x[ i ] / quantum );
+					final long qy = Math.round( roi.y[ i ] / quantum );
+					writeVarLong( out, qx - px );
+					writeVarLong( out, qy - py );
+					px = qx;
+					py = qy;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the spots of a spot file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return a new spot collection.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a spot file.
+	 */
+	public static SpotCollection read( final File file ) throws IOException
+	{
+		return read( file, true );
+	}
+
+	/**
+	 * Reads the spots of a spot file, with or without their features.
+	 */
+	private static SpotCollection read( final File file, final boolean readFeatures ) throws IOException
+	{
+		InputStream is = new BufferedInputStream( Files.newInputStream( file.toPath() ), 1 << 16 );
+		is.mark( 2 );
+		final int b0 = is.read();
+		final int b1 = is.read();
+		is.reset();
+		if ( b0 == 0x1f && b1 == 0x8b )
+			is = new BufferedInputStream( new GZIPInputStream( is, 1 << 16 ), 1 << 16 );
+
+		try (DataInputStream in = new DataInputStream( is ))
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( "Not a spot file: " + file );
+			final int version = in.readInt();
+			if ( version > VERSION )
+				throw new IOException( "Unsupported spot file version " + version + ": " + file );
+
+			final int nSpots = in.readInt();
+			final double quantum = in.readDouble();
+			final int nFeatures = in.readInt();
+			final String[] features = new String[ nFeatures ];
+			for ( int f = 0; f < nFeatures; f++ )
+				features[ f ] = in.readUTF();
+
+			final Spot[] spots = new Spot[ nSpots ];
+			int previous = 0;
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				previous += ( int ) readVarLong( in );
+				spots[ i ] = new Spot( previous );
+			}
+			final int[] frames = new int[ nSpots ];
+			previous = 0;
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				previous += ( int ) readVarLong( in );
+				frames[ i ] = previous;
+			}
+
+			for ( final String feature : features )
+			{
+				if ( !readFeatures )
+				{
+					skipFully( in, 8L * nSpots );
+					continue;
+				}
+				for ( int i = 0; i < nSpots; i++ )
+				{
+					final double val = in.readDouble();
+					if ( !Double.isNaN( val ) )
+						spots[ i ].putFeature( feature, Double.valueOf( val ) );
+				}
+			}
+
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				final int n = ( int ) readVarLong( in );
+				if ( n == 0 )
+					continue;
+				final double[] x = new double[ n ];
+				final double[] y = new double[ n ];
+				long qx = 0;
+				long qy = 0;
+				for ( int j = 0; j < n; j++ )
+				{
+					qx += readVarLong( in );
+					qy += readVarLong( in );
+					x[ j ] = qx * quantum;
+					y[ j ] = qy * quantum;
+				}
+				spots[ i ].setRoi( new SpotRoi( x, y ) );
+			}
+
+			final SpotCollection collection = new SpotCollection();
+			for ( int i = 0; i < nSpots; i++ )
+				collection.add( spots[ i ], Integer.valueOf( frames[ i ] ) );
+			return collection;
+		}
+	}
+
+	private static void skipFully( final DataInputStream in, final long n ) throws IOException
+	{
+		long remaining = n;
+		while ( remaining > 0 )
+		{
+			final int skipped = in.skipBytes( ( int ) Math.min( remaining, Integer.MAX_VALUE ) );
+			if ( skipped <= 0 )
+			{
+				// Fails at the end of the stream.
+				in.readByte();
+				remaining--;
+				continue;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * Writes a signed value as a zig-zag variable-length integer.
+	 */
+	private static void writeVarLong( final DataOutputStream out, final long value ) throws IOException
+	{
+		long v = ( value << 1 ) ^ ( value >> 63 );
+		while ( ( v & ~0x7FL ) != 0 )
+		{
+			out.writeByte( ( int ) ( ( v & 0x7F ) | 0x80 ) );
+			v >>>= 7;
+		}
+		out.writeByte( ( int ) v );
+	}
+
+	private static long readVarLong( final DataInputStream in ) throws IOException
+	{
+		long v = 0;
+		int shift = 0;
+		while ( true )
+		{
+			final int b = in.readUnsignedByte();
+			v |= ( long ) ( b & 0x7F ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				break;
+			shift += 7;
+			if ( shift > 63 )
+				throw new IOException( "Malformed variable-length integer." );
+		}
+		return ( v >>> 1 ) ^ -( v & 1 );
+	}
+
+	/**
+	 * A TrackMate XML writer that references the spot file first in the
+	 * root element, so that it is found right away.
+	 */
+	private static final class SpotFileXmlWriter extends TmXmlWriter
+	{
+
+		SpotFileXmlWriter( final File file )
+		{
+			super( file );
+		}
+
+		void appendSpotFile( final File spotFile )
+		{
+			final Element element = new Element( XML_ELEMENT );
+			element.setAttribute( XML_PATH_ATTRIBUTE, spotFile.getName() );
+			root.addContent( 0, element );
+		}
+	}
+
+	/**
+	 * A TrackMate XML reader that also returns the spot file referenced in
+	 * the document it parsed.
+	 */
+	private static final class SpotFileXmlReader extends TmXmlReader
+	{
+
+		private final File xmlFile;
+
+		SpotFileXmlReader( final File xmlFile )
+		{
+			super( xmlFile );
+			this.xmlFile = xmlFile;
+		}
+
+		File getSpotFile()
+		{
+			if ( root == null )
+				return null;
+			final Element element = root.getChild( XML_ELEMENT );
+			final String path = ( element == null ) ? null : element.getAttributeValue( XML_PATH_ATTRIBUTE );
+			return ( path == null ) ? null : new File( xmlFile.getAbsoluteFile().getParentFile(), path );
+		}
+	}
+}
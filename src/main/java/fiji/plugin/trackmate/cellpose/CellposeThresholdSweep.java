@@ -0,0 +1,402 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.cellpose.backend.PythonScripts;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Sweeps the flow threshold and the cell probability threshold of cellpose
+ * over a grid of values, on a few frames evenly spread over the movie.
+ * <p>
+ * These two thresholds are only used in the post-processing of the network
+ * outputs. The sweep runs the network once per frame, in a single python
+ * process with the options of the detection, and rebuilds the masks from
+ * the same flows and cell probability map for every combination of
+ * thresholds, on a pool of python processes. The object count and area
+ * statistics of each combination are then computed in parallel, so that
+ * thresholds can be picked without running the network again.
+ * <p>
+ * The sweep is run with the python script
+ * <code>python/cellpose_threshold_sweep.py</code> shipped with this plugin,
+ * and therefore requires cellpose to be configured with a python executable.
+ * Omnipose is not supported.
+ *
+ * @param <T>
+ *            the pixel type of the image.
+ */
+public class CellposeThresholdSweep< T extends RealType< T > & NativeType< T > >
+{
+
+	private static final String SCRIPT = "/python/cellpose_threshold_sweep.py";
+
+	private final CellposeDetectorFactory< T > factory;
+
+	private final Map< String, Object > settings;
+
+	private final ImgPlus< T > img;
+
+	private final Interval interval;
+
+	private final Logger logger;
+
+	private Result[][] results;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a threshold sweep.
+	 *
+	 * @param factory
+	 *            the detector factory.
+	 * @param settings
+	 *            the detector settings.
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to detect in, time included as last dimension.
+	 * @param logger
+	 *            a logger to report progress to.
+	 */
+	public CellposeThresholdSweep(
+			final CellposeDetectorFactory< T > factory,
+			final Map< String, Object > settings,
+			final ImgPlus< T > img,
+			final Interval interval,
+			final Logger logger )
+	{
+		this.factory = factory;
+		this.settings = settings;
+		this.img = img;
+		this.interval = interval;
+		this.logger = logger;
+	}
+
+	/**
+	 * Runs the sweep on the specified number of frames, evenly spaced in the
+	 * time interval.
+	 *
+	 * @param nFrames
+	 *            the number of frames to sample.
+	 * @param flowThresholds
+	 *            the flow thresholds to test.
+	 * @param cellProbThresholds
+	 *            the cell probability thresholds to test.
+	 * @return <code>true</code> if the sweep went well.
+	 */
+	public boolean run( final int nFrames, final double[] flowThresholds, final double[] cellProbThresholds )
+	{
+		results = null;
+		if ( flowThresholds.length == 0 || cellProbThresholds.length == 0 )
+		{
+			errorMessage = "No threshold to test.";
+			return false;
+		}
+		if ( !factory.setTarget( img, settings ) )
+		{
+			errorMessage = factory.getErrorMessage();
+			return false;
+		}
+
+		final CellposeDetector< T > detector = ( CellposeDetector< T > ) factory.getDetector( interval );
+		detector.setNumThreads();
+		detector.setFrameSubset( CellposePreviewSweep.sampleFrames( interval, nFrames ) );
+		if ( !detector.checkInput() )
+		{
+			errorMessage = detector.getErrorMessage();
+			return false;
+		}
+		if ( !"cellpose".equals( detector.getCellposeSettings().getExecutableName() ) )
+		{
+			errorMessage = "The threshold sweep only supports cellpose.";
+			return false;
+		}
+
+		/*
+		 * Save the frames.
+		 */
+
+		final List< ImagePlus > imps = detector.prepareFrames();
+		final Path tmpDir;
+		try
+		{
+			tmpDir = Files.createTempDirectory( "TrackMate-cellpose-sweep_" );
+			CellposeDetector.recursiveDeleteOnShutdownHook( tmpDir );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Could not create tmp dir to save and load images:\n" + e.getMessage();
+			return false;
+		}
+		for ( final ImagePlus imp : imps )
+			IJ.saveAsTiff( imp, Paths.get( tmpDir.toString(), imp.getShortTitle() + ".tif" ).toString() );
+
+		/*
+		 * Run the network once, and the post-processing for each combination.
+		 */
+
+		try
+		{
+			final List< String > full = detector.buildCommand( tmpDir.toString() );
+			final List< String > cmd = PythonScripts.command( full, SCRIPT );
+			cmd.addAll( full.subList( full.indexOf( "--dir" ), full.size() ) );
+			cmd.add( "--flow_thresholds" );
+			cmd.add( toCsv( flowThresholds ) );
+			cmd.add( "--cellprob_thresholds" );
+			cmd.add( toCsv( cellProbThresholds ) );
+
+			logger.setStatus( "Running the threshold sweep" );
+			logger.log( "Running the threshold sweep with args:\n" );
+			logger.log( String.join( " ", cmd ) );
+			logger.log( "\n" );
+
+			final ProcessBuilder pb = new ProcessBuilder( cmd );
+			pb.redirectOutput( ProcessBuilder.Redirect.INHERIT );
+			pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+			final int exitCode = pb.start().waitFor();
+			if ( exitCode != 0 )
+			{
+				errorMessage = "The threshold sweep failed with exit code " + exitCode + '.';
+				return false;
+			}
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Problem running the threshold sweep:\n" + e.getMessage();
+			return false;
+		}
+		catch ( final InterruptedException e )
+		{
+			errorMessage = "Interrupted while running the threshold sweep.";
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		/*
+		 * Statistics, one combination per task.
+		 */
+
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final int factor = detector.getDownsampleFactor();
+		final double pixelArea = calibration[ 0 ] * calibration[ 1 ] * factor * factor;
+		final List< String > names = new ArrayList<>( imps.size() );
+		for ( final ImagePlus imp : imps )
+			names.add( imp.getShortTitle() );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Runtime.getRuntime().availableProcessors() ) );
+		try
+		{
+			final List< List< Future< Result > > > futures = new ArrayList<>( flowThresholds.length );
+			for ( int i = 0; i < flowThresholds.length; i++ )
+			{
+				final List< Future< Result > > row = new ArrayList<>( cellProbThresholds.length );
+				for ( int j = 0; j < cellProbThresholds.length; j++ )
+				{
+					final double flowThreshold = flowThresholds[ i ];
+					final double cellProbThreshold = cellProbThresholds[ j ];
+					final String suffix = "_sweep_" + i + "_" + j + "_cp_masks.npy";
+					row.add( executor.submit( () -> computeResult( tmpDir, names, suffix, flowThreshold, cellProbThreshold, pixelArea ) ) );
+				}
+				futures.add( row );
+			}
+
+			final Result[][] res = new Result[ flowThresholds.length ][ cellProbThresholds.length ];
+			for ( int i = 0; i < flowThresholds.length; i++ )
+				for ( int j = 0; j < cellProbThresholds.length; j++ )
+					res[ i ][ j ] = futures.get( i ).get( j ).get();
+			results = res;
+		}
+		catch ( final ExecutionException e )
+		{
+			errorMessage = "Could not read the threshold sweep results:\n" + e.getCause().getMessage();
+			return false;
+		}
+		catch ( final InterruptedException e )
+		{
+			errorMessage = "Interrupted while reading the threshold sweep results.";
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return true;
+	}
+
+	private static Result computeResult(
+			final Path dir,
+			final List< String > names,
+			final String suffix,
+			final double flowThreshold,
+			final double cellProbThreshold,
+			final double pixelArea ) throws IOException
+	{
+		final List< Double > areas = new ArrayList<>();
+		for ( final String name : names )
+		{
+			final File file = dir.resolve( name + suffix ).toFile();
+			final ImageProcessor labels = CellposeDetector.toProcessor( file, name );
+			final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+			for ( int label = 1; label < stats.getNLabels(); label++ )
+			{
+				final long count = stats.getCount( label );
+				if ( count > 0 )
+					areas.add( Double.valueOf( count * pixelArea ) );
+			}
+		}
+		return new Result( flowThreshold, cellProbThreshold, names.size(), areas );
+	}
+
+	private static String toCsv( final double[] values )
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( int i = 0; i < values.length; i++ )
+		{
+			if ( i > 0 )
+				str.append( ',' );
+			str.append( String.format( Locale.US, "%s", values[ i ] ) );
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Returns the statistics of the last sweep, indexed by flow threshold and
+	 * cell probability threshold.
+	 *
+	 * @return the results, or <code>null</code> if the sweep did not run.
+	 */
+	public Result[][] getResults()
+	{
+		return results;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns a table with one row per combination of thresholds.
+	 *
+	 * @param spaceUnits
+	 *            the spatial units of the image, for display.
+	 * @return a new table.
+	 */
+	public ResultsTable getResultsTable( final String spaceUnits )
+	{
+		final ResultsTable table = new ResultsTable();
+		if ( results == null )
+			return table;
+		for ( final Result[] row : results )
+		{
+			for ( final Result result : row )
+			{
+				table.incrementCounter();
+				table.addValue( "Flow threshold", result.flowThreshold );
+				table.addValue( "Cell prob. threshold", result.cellProbThreshold );
+				table.addValue( "N objects", result.nObjects );
+				table.addValue( "N objects / frame", result.getObjectsPerFrame() );
+				table.addValue( "Mean area (" + spaceUnits + "^2)", result.meanArea );
+				table.addValue( "Median area (" + spaceUnits + "^2)", result.medianArea );
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * The statistics of the objects found with one combination of thresholds.
+	 */
+	public static class Result
+	{
+
+		public final double flowThreshold;
+
+		public final double cellProbThreshold;
+
+		public final int nFrames;
+
+		public final int nObjects;
+
+		public final double meanArea;
+
+		public final double medianArea;
+
+		private Result( final double flowThreshold, final double cellProbThreshold, final int nFrames, final List< Double > areas )
+		{
+			this.flowThreshold = flowThreshold;
+			this.cellProbThreshold = cellProbThreshold;
+			this.nFrames = nFrames;
+			this.nObjects = areas.size();
+
+			final double[] arr = new double[ areas.size() ];
+			double sum = 0.;
+			for ( int i = 0; i < arr.length; i++ )
+			{
+				arr[ i ] = areas.get( i ).doubleValue();
+				sum += arr[ i ];
+			}
+			Arrays.sort( arr );
+			this.meanArea = arr.length == 0 ? 0. : sum / arr.length;
+			if ( arr.length == 0 )
+				this.medianArea = 0.;
+			else if ( arr.length % 2 == 1 )
+				this.medianArea = arr[ arr.length / 2 ];
+			else
+				this.medianArea = 0.5 * ( arr[ arr.length / 2 - 1 ] + arr[ arr.length / 2 ] );
+		}
+
+		/**
+		 * Returns the mean number of objects per sampled frame.
+		 *
+		 * @return the mean number of objects per frame.
+		 */
+		public double getObjectsPerFrame()
+		{
+			return nFrames == 0 ? 0. : ( double ) nObjects / nFrames;
+		}
+	}
+}
@@ -160,4 +160,30 @@ public class CellposeUtils
 		return interval;
 	}
 
+	/**
+	 * Returns the interval spanning the full extent of the specified image,
+	 * including time but excluding the channel dimension.
+	 * 
+	 * @param img
+	 *            the image.
+	 * @return a new interval.
+	 */
+	public static final Interval getFullIntervalWithTime( final ImgPlus< ? > img )
+	{
+		final int cindex = img.dimensionIndex( Axes.CHANNEL );
+		final int n = ( cindex >= 0 ) ? img.numDimensions() - 1 : img.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		int d2 = 0;
+		for ( int d = 0; d < img.numDimensions(); d++ )
+		{
+			if ( d == cindex )
+				continue;
+			min[ d2 ] = img.min( d );
+			max[ d2 ] = img.max( d );
+			d2++;
+		}
+		return new FinalInterval( min, max );
+	}
+
 }
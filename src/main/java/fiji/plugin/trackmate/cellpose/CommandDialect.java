@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The command line arguments and output files of a given cellpose or
+ * omnipose version.
+ * <p>
+ * Settings build their command line with a dialect, so that the same
+ * settings run on older and newer installations. The dialect of an
+ * installation is chosen from the flags it reports, see
+ * {@link CellposeEnvironmentProbe}. Without report, the default dialect of
+ * the tool is used, which matches the versions this plugin was written for.
+ * Installations that cannot be probed, such as the ones that process a job
+ * queue on other computers, use the {@link #unprobed(String)} dialect.
+ */
+public class CommandDialect
+{
+
+	/**
+	 * The optional flags of current cellpose versions, assumed for
+	 * installations that cannot be probed.
+	 */
+	private static final Set< String > UNPROBED_FLAGS = Collections.unmodifiableSet( new HashSet<>(
+			Arrays.asList( "batch_size", "no_tile", "tile_overlap", "no_resample" ) ) );
+
+	/**
+	 * The formats in which cellpose can save the masks.
+	 */
+	public enum MaskFormat
+	{
+		PNG( "--save_png", "_cp_masks.png" ),
+		TIF( "--save_tif", "_cp_masks.tif" );
+
+		private final String flag;
+
+		private final String suffix;
+
+		private MaskFormat( final String flag, final String suffix )
+		{
+			this.flag = flag;
+			this.suffix = suffix;
+		}
+
+		/**
+		 * Returns the flag that makes cellpose save the masks in this
+		 * format.
+		 *
+		 * @return the flag.
+		 */
+		public String getFlag()
+		{
+			return flag;
+		}
+
+		/**
+		 * Returns the suffix appended to the image name for the mask file.
+		 *
+		 * @return the suffix, with extension.
+		 */
+		public String getSuffix()
+		{
+			return suffix;
+		}
+	}
+
+	private final String cellProbThresholdFlag;
+
+	private final MaskFormat maskFormat;
+
+	private final boolean noNpy;
+
+	private final Set< String > flags;
+
+	private CommandDialect( final String cellProbThresholdFlag, final MaskFormat maskFormat, final boolean noNpy, final Set< String > flags )
+	{
+		this.cellProbThresholdFlag = cellProbThresholdFlag;
+		this.maskFormat = maskFormat;
+		this.noNpy = noNpy;
+		this.flags = flags;
+	}
+
+	/**
+	 * Returns the default dialect of the specified tool.
+	 *
+	 * @param executableName
+	 *            the tool name, <code>cellpose</code> or
+	 *            <code>omnipose</code>.
+	 * @return the dialect.
+	 */
+	public static CommandDialect defaultFor( final String executableName )
+	{
+		/*
+		 * Careful! Because omnipose is still based on cellpose 1, the
+		 * cellprob_threshold parameter is still called mask_threshold.
+		 */
+		final String cellProbFlag = "omnipose".equals( executableName ) ? "--mask_threshold" : "--cellprob_threshold";
+		return new CommandDialect( cellProbFlag, MaskFormat.PNG, true, Collections.emptySet() );
+	}
+
+	/**
+	 * Returns the dialect of an installation that cannot be probed, for
+	 * instance because it runs on another computer. It is the default dialect
+	 * of the tool, with the optional flags of current cellpose versions, so
+	 * that the batch size, tiling and resampling settings are passed to
+	 * cellpose rather than dropped. An installation that does not know these
+	 * flags fails on them.
+	 *
+	 * @param executableName
+	 *            the tool name, <code>cellpose</code> or
+	 *            <code>omnipose</code>.
+	 * @return the dialect.
+	 */
+	public static CommandDialect unprobed( final String executableName )
+	{
+		final CommandDialect defaults = defaultFor( executableName );
+		return new CommandDialect( defaults.cellProbThresholdFlag, defaults.maskFormat, defaults.noNpy, UNPROBED_FLAGS );
+	}
+
+	/**
+	 * Returns the dialect of an installation, from the flags it reported.
+	 * Masks are saved as TIFF when possible, which is faster to write and
+	 * read than PNG.
+	 *
+	 * @param executableName
+	 *            the tool name, <code>cellpose</code> or
+	 *            <code>omnipose</code>.
+	 * @param report
+	 *            the report of the installation.
+	 * @return the dialect.
+	 */
+	public static CommandDialect from( final String executableName, final CellposeEnvironmentProbe.Report report )
+	{
+		final CommandDialect defaults = defaultFor( executableName );
+		if ( report == null || !report.isOk() || report.getFlags().isEmpty() )
+			return defaults;
+
+		final String cellProbFlag;
+		if ( report.supports( "cellprob_threshold" ) )
+			cellProbFlag = "--cellprob_threshold";
+		else if ( report.supports( "mask_threshold" ) )
+			cellProbFlag = "--mask_threshold";
+		else
+			cellProbFlag = defaults.cellProbThresholdFlag;
+
+		final MaskFormat maskFormat = report.supports( "save_tif" ) ? MaskFormat.TIF : MaskFormat.PNG;
+		return new CommandDialect( cellProbFlag, maskFormat, report.supports( "no_npy" ), new HashSet<>( report.getFlags() ) );
+	}
+
+	/**
+	 * Returns the flag of the cell probability threshold.
+	 *
+	 * @return <code>--cellprob_threshold</code> or
+	 *         <code>--mask_threshold</code>.
+	 */
+	public String getCellProbThresholdFlag()
+	{
+		return cellProbThresholdFlag;
+	}
+
+	/**
+	 * Returns the format in which the masks are saved.
+	 *
+	 * @return the mask format.
+	 */
+	public MaskFormat getMaskFormat()
+	{
+		return maskFormat;
+	}
+
+	/**
+	 * Returns whether saving the <code>_seg.npy</code> files can be disabled.
+	 *
+	 * @return <code>true</code> if <code>--no_npy</code> is supported.
+	 */
+	public boolean supportsNoNpy()
+	{
+		return noNpy;
+	}
+
+	/**
+	 * Returns whether the number of tiles processed at once can be set.
+	 *
+	 * @return <code>true</code> if <code>--batch_size</code> is supported.
+	 */
+	public boolean supportsBatchSize()
+	{
+		return supports( "batch_size" );
+	}
+
+	/**
+	 * Returns whether the installation reported the specified optional flag.
+	 * The default dialect reports none, so optional flags are only passed to
+	 * installations that were probed, or assumed to know them, see
+	 * {@link #unprobed(String)}.
+	 *
+	 * @param flag
+	 *            the flag name, without leading dashes.
+	 * @return <code>true</code> if the flag is supported.
+	 */
+	public boolean supports( final String flag )
+	{
+		return flags.contains( flag );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "masks as " + maskFormat + ", " + cellProbThresholdFlag
+				+ ( noNpy ? ", --no_npy" : "" )
+				+ ( supportsBatchSize() ? ", --batch_size" : "" );
+	}
+}
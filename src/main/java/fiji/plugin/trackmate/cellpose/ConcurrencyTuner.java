@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Learns the number of concurrent cellpose processes that gives the best
+ * throughput on this computer, for a given executable and model.
+ * <p>
+ * The tuning starts with one process, and adds processes as long as the
+ * measured number of frames processed per second keeps improving noticeably
+ * and there is enough free memory left. The best value found is stored in a
+ * small properties file next to the cellpose log file, so that the next
+ * detection with the same executable and model can use it right away.
+ */
+public class ConcurrencyTuner
+{
+
+	/**
+	 * Minimal relative throughput improvement required to add one more
+	 * process.
+	 */
+	private static final double MIN_IMPROVEMENT = 0.1;
+
+	/**
+	 * Minimal fraction of the physical memory that must be free to add one
+	 * more process.
+	 */
+	private static final double MIN_FREE_MEMORY_FRACTION = 0.2;
+
+	private final File file;
+
+	private final String key;
+
+	private final int maxTasks;
+
+	private int nTasks = 1;
+
+	private int bestNTasks = 1;
+
+	private double bestThroughput = 0.;
+
+	private boolean settled = false;
+
+	/**
+	 * Creates a tuner for the specified settings.
+	 *
+	 * @param cellposeSettings
+	 *            the settings of the detection to tune.
+	 * @param maxTasks
+	 *            the maximal number of concurrent processes to try.
+	 */
+	public ConcurrencyTuner( final AbstractCellposeSettings cellposeSettings, final int maxTasks )
+	{
+		this.file = new File( new File( System.getProperty( "user.home" ), "." + cellposeSettings.getExecutableName() ), "trackmate-concurrency.properties" );
+		final String model = cellposeSettings.getModel().isCustom()
+				? cellposeSettings.customModelPath
+				: cellposeSettings.getModel().getPath();
+		this.key = hostName() + "|" + cellposeSettings.executablePath + "|" + model + "|" + ( cellposeSettings.useGPU ? "gpu" : "cpu" );
+		this.maxTasks = Math.max( 1, maxTasks );
+	}
+
+	/**
+	 * Returns the number of concurrent processes learned in a previous
+	 * detection with the same computer, executable and model, or -1 if there
+	 * is none.
+	 *
+	 * @return the learned number of processes, or -1.
+	 */
+	public int getLearned()
+	{
+		final Properties properties = load();
+		final String val = properties.getProperty( key );
+		if ( val == null )
+			return -1;
+		try
+		{
+			return Math.min( maxTasks, Math.max( 1, Integer.parseInt( val ) ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the number of concurrent processes to use for the next round
+	 * of frames.
+	 *
+	 * @return the number of processes.
+	 */
+	public int getNTasks()
+	{
+		return settled ? bestNTasks : nTasks;
+	}
+
+	/**
+	 * Returns <code>true</code> if the tuning is over.
+	 *
+	 * @return whether the best number of processes is found.
+	 */
+	public boolean isSettled()
+	{
+		return settled;
+	}
+
+	/**
+	 * Reports the throughput measured with the current number of processes,
+	 * and decides on the number of processes to use for the next round.
+	 *
+	 * @param nFrames
+	 *            the number of frames processed in the round.
+	 * @param time
+	 *            the time it took, in ms.
+	 */
+	public void report( final int nFrames, final long time )
+	{
+		if ( settled )
+			return;
+
+		final double throughput = 1000. * nFrames / Math.max( 1, time );
+		if ( throughput > bestThroughput * ( 1. + MIN_IMPROVEMENT ) )
+		{
+			bestThroughput = throughput;
+			bestNTasks = nTasks;
+			if ( nTasks < maxTasks && hasMemoryHeadroom() )
+				nTasks++;
+			else
+				settled = true;
+		}
+		else
+		{
+			settled = true;
+		}
+	}
+
+	/**
+	 * Stops the tuning and keeps the best number of processes found so far.
+	 */
+	public void settle()
+	{
+		settled = true;
+	}
+
+	public double getBestThroughput()
+	{
+		return bestThroughput;
+	}
+
+	/**
+	 * Stores the best number of processes found, for the next detections.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void store() throws IOException
+	{
+		final Properties properties = load();
+		properties.setProperty( key, Integer.toString( bestNTasks ) );
+		file.getParentFile().mkdirs();
+		try (OutputStream os = Files.newOutputStream( file.toPath() ))
+		{
+			properties.store( os, "Number of concurrent processes learned by TrackMate" );
+		}
+	}
+
+	private Properties load()
+	{
+		final Properties properties = new Properties();
+		if ( !file.exists() )
+			return properties;
+
+		try (InputStream is = Files.newInputStream( file.toPath() ))
+		{
+			properties.load( is );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		return properties;
+	}
+
+	private static boolean hasMemoryHeadroom()
+	{
+		final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if ( !( bean instanceof com.sun.management.OperatingSystemMXBean ) )
+			return true;
+
+		final com.sun.management.OperatingSystemMXBean os = ( com.sun.management.OperatingSystemMXBean ) bean;
+		final long total = os.getTotalPhysicalMemorySize();
+		final long free = os.getFreePhysicalMemorySize();
+		return total <= 0 || free > MIN_FREE_MEMORY_FRACTION * total;
+	}
+
+	private static String hostName()
+	{
+		try
+		{
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch ( final IOException e )
+		{
+			return "localhost";
+		}
+	}
+}
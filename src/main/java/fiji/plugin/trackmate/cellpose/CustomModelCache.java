@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Keeps local copies of the custom model files, so that a model stored on a
+ * network share is read from it only once.
+ * <p>
+ * Models are copied on first use in the <code>trackmate-models</code> folder
+ * of the <code>.cellpose</code> or <code>.omnipose</code> folder of the user
+ * home, in a sub-folder named after the SHA-256 of their content, with their
+ * original file name. An index records the hash of each model file with its
+ * size and modification time, so that a model that did not change is neither
+ * read nor hashed again, whether it is copied or used in place. Since the
+ * local path of a model does not change between detections, the persistent
+ * worker keeps it loaded across them.
+ * <p>
+ * Old copies are not removed when a model file changes.
+ */
+public class CustomModelCache
+{
+
+	private static final String INDEX = "index.json";
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	private static final Type INDEX_TYPE = new TypeToken< Map< String, Record > >()
+	{}.getType();
+
+	private CustomModelCache()
+	{}
+
+	/**
+	 * The local copy of a custom model.
+	 */
+	public static final class Entry
+	{
+
+		private final File file;
+
+		private final String hash;
+
+		private Entry( final File file, final String hash )
+		{
+			this.file = file;
+			this.hash = hash;
+		}
+
+		/**
+		 * Returns the local copy of the model file.
+		 *
+		 * @return the local file.
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Returns the SHA-256 of the model file.
+		 *
+		 * @return the hash, as an hexadecimal string.
+		 */
+		public String getHash()
+		{
+			return hash;
+		}
+	}
+
+	/**
+	 * What the index knows about a model file.
+	 */
+	private static final class Record
+	{
+
+		private long size;
+
+		private long modified;
+
+		private String hash;
+	}
+
+	/**
+	 * Returns the local copy of the custom model of the specified settings,
+	 * copying it first if needed.
+	 *
+	 * @param settings
+	 *            the cellpose settings, with a custom model.
+	 * @param logger
+	 *            a logger to report copies to.
+	 * @return the local copy of the model.
+	 * @throws IOException
+	 *             if the model file cannot be read or copied.
+	 */
+	public static synchronized Entry get( final AbstractCellposeSettings settings, final Logger logger ) throws IOException
+	{
+		final File model = new File( settings.customModelPath ).getAbsoluteFile();
+		if ( !model.isFile() )
+			throw new IOException( "Cannot find the custom model file " + model );
+
+		final File cacheDir = getCacheDir( settings );
+		final File indexFile = new File( cacheDir, INDEX );
+		final Map< String, Record > index = load( indexFile );
+		final Record record = index.get( model.getPath() );
+		if ( record != null && record.size == model.length() && record.modified == model.lastModified() )
+		{
+			final File local = new File( new File( cacheDir, record.hash ), model.getName() );
+			if ( local.isFile() && local.length() == record.size )
+				return new Entry( local, record.hash );
+		}
+
+		/*
+		 * Copy and hash in a single read of the model file, then move the copy
+		 * to the folder of its hash.
+		 */
+
+		logger.log( "Copying the custom model " + model + " to the local model cache " + cacheDir + ".\n" );
+		Files.createDirectories( cacheDir.toPath() );
+		final Path tmp = Files.createTempFile( cacheDir.toPath(), "model_", ".part" );
+		final String hash;
+		try
+		{
+			final MessageDigest digest = CellposeProvenance.sha256();
+			try (InputStream is = new DigestInputStream( Files.newInputStream( model.toPath() ), digest ))
+			{
+				Files.copy( is, tmp, StandardCopyOption.REPLACE_EXISTING );
+			}
+			hash = CellposeProvenance.toHex( digest.digest() );
+			final Path dir = cacheDir.toPath().resolve( hash );
+			Files.createDirectories( dir );
+			Files.move( tmp, dir.resolve( model.getName() ), StandardCopyOption.REPLACE_EXISTING );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+
+		final Record newRecord = new Record();
+		newRecord.size = model.length();
+		newRecord.modified = model.lastModified();
+		newRecord.hash = hash;
+		index.put( model.getPath(), newRecord );
+		try
+		{
+			store( indexFile, index );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not update the model cache index " + indexFile + ": " + e.getMessage() + '\n' );
+		}
+		return new Entry( new File( new File( cacheDir, hash ), model.getName() ), hash );
+	}
+
+	/**
+	 * Returns the custom model of the specified settings used in place, with
+	 * its hash, without copying it. Used when the model cannot be copied, or
+	 * when the model must be read from its original path, as for jobs run on
+	 * other computers. The hash is taken from the index when the model file
+	 * did not change, so that the model is only read when it changed.
+	 *
+	 * @param settings
+	 *            the cellpose settings, with a custom model.
+	 * @return the model file, as an entry.
+	 * @throws IOException
+	 *             if the model file cannot be read.
+	 */
+	public static synchronized Entry inPlace( final AbstractCellposeSettings settings ) throws IOException
+	{
+		final File model = new File( settings.customModelPath ).getAbsoluteFile();
+		if ( !model.isFile() )
+			throw new IOException( "Cannot find the custom model file " + model );
+
+		final File cacheDir = getCacheDir( settings );
+		final File indexFile = new File( cacheDir, INDEX );
+		final Map< String, Record > index = load( indexFile );
+		final Record record = index.get( model.getPath() );
+		if ( record != null && record.size == model.length() && record.modified == model.lastModified() )
+			return new Entry( model, record.hash );
+
+		final MessageDigest digest = CellposeProvenance.sha256();
+		try (InputStream is = new DigestInputStream( Files.newInputStream( model.toPath() ), digest ))
+		{
+			final byte[] buffer = new byte[ 1 << 16 ];
+			while ( is.read( buffer ) >= 0 )
+			{}
+		}
+		final String hash = CellposeProvenance.toHex( digest.digest() );
+
+		// Shared with the local copies, which are checked separately.
+		final Record newRecord = new Record();
+		newRecord.size = model.length();
+		newRecord.modified = model.lastModified();
+		newRecord.hash = hash;
+		index.put( model.getPath(), newRecord );
+		try
+		{
+			Files.createDirectories( cacheDir.toPath() );
+			store( indexFile, index );
+		}
+		catch ( final IOException e )
+		{
+			// Hashed again next time.
+		}
+		return new Entry( model, hash );
+	}
+
+	private static File getCacheDir( final AbstractCellposeSettings settings )
+	{
+		return new File( new File( System.getProperty( "user.home" ), "." + settings.getExecutableName() ), "trackmate-models" );
+	}
+
+	private static Map< String, Record > load( final File file )
+	{
+		if ( !file.exists() )
+			return new HashMap<>();
+		try (Reader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			final Map< String, Record > index = GSON.fromJson( reader, INDEX_TYPE );
+			return index == null ? new HashMap<>() : new HashMap<>( index );
+		}
+		catch ( final IOException | JsonParseException e )
+		{
+			// Start from scratch.
+			return new HashMap<>();
+		}
+	}
+
+	private static void store( final File file, final Map< String, Record > index ) throws IOException
+	{
+		try (Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			GSON.toJson( index, INDEX_TYPE, writer );
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Downsamples frames before they are sent to cellpose, when the objects are
+ * much larger than the diameter cellpose works at, and maps the resulting
+ * labels back to the source resolution.
+ * <p>
+ * Cellpose rescales every image so that objects have its nominal diameter of
+ * {@value #NOMINAL_DIAMETER} pixels. Frames of large objects can therefore be
+ * downsampled beforehand with little loss, which cuts the amount of data
+ * written to disk and read by cellpose. The downsampling factor is an
+ * integer, so that each pixel of the downsampled image covers a block of the
+ * source image, and labels are mapped back by nearest neighbour.
+ */
+public class Downsampler
+{
+
+	/**
+	 * The object diameter cellpose rescales images to, in pixels.
+	 */
+	public static final double NOMINAL_DIAMETER = 30.;
+
+	private Downsampler()
+	{}
+
+	/**
+	 * Returns the downsampling factor for objects of the specified diameter.
+	 *
+	 * @param diameter
+	 *            the object diameter, in pixels of the source image.
+	 * @return the factor, 1 if the image should not be downsampled.
+	 */
+	public static int factor( final double diameter )
+	{
+		if ( diameter <= 0. )
+			return 1;
+		return Math.max( 1, ( int ) Math.floor( diameter / NOMINAL_DIAMETER ) );
+	}
+
+	/**
+	 * Downsamples all the planes of the specified image, by averaging blocks
+	 * of pixels. The pixel type is preserved.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param factor
+	 *            the downsampling factor.
+	 * @param name
+	 *            the name of the downsampled image, without extension.
+	 * @return a new image.
+	 */
+	public static ImagePlus downsample( final ImagePlus imp, final int factor, final String name )
+	{
+		final int dw = ( imp.getWidth() + factor - 1 ) / factor;
+		final int dh = ( imp.getHeight() + factor - 1 ) / factor;
+
+		final ImageStack stack = imp.getStack();
+		final ImageStack out = new ImageStack( dw, dh );
+		for ( int i = 1; i <= stack.getSize(); i++ )
+			out.addSlice( stack.getSliceLabel( i ), downsample( stack.getProcessor( i ), factor ) );
+		final ImagePlus downsampled = new ImagePlus( name + ".tif", out );
+		downsampled.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		return downsampled;
+	}
+
+	/**
+	 * Downsamples the specified image plane by plane when its planes are
+	 * read, instead of all at once. Only the planes being read are in memory,
+	 * which bounds the memory used when many frames are downsampled.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param factor
+	 *            the downsampling factor.
+	 * @param name
+	 *            the name of the downsampled image, without extension.
+	 * @return a new image, backed by a virtual stack.
+	 */
+	public static ImagePlus lazy( final ImagePlus imp, final int factor, final String name )
+	{
+		final ImagePlus downsampled = new ImagePlus( name + ".tif", new DownsampledStack( imp.getStack(), factor ) );
+		downsampled.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		return downsampled;
+	}
+
+	/**
+	 * Downsamples one plane, by averaging blocks of pixels. The pixel type is
+	 * preserved.
+	 */
+	private static ImageProcessor downsample( final ImageProcessor ip, final int factor )
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int dw = ( width + factor - 1 ) / factor;
+		final int dh = ( height + factor - 1 ) / factor;
+		final boolean integer = ip.getBitDepth() != 32;
+
+		final float[] sums = new float[ dw * dh ];
+		final int[] counts = new int[ dw * dh ];
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = ( y / factor ) * dw;
+			for ( int x = 0; x < width; x++ )
+			{
+				sums[ row + x / factor ] += ip.getf( x, y );
+				counts[ row + x / factor ]++;
+			}
+		}
+		final ImageProcessor dp = ip.createProcessor( dw, dh );
+		for ( int j = 0; j < sums.length; j++ )
+		{
+			final float mean = sums[ j ] / counts[ j ];
+			dp.setf( j, integer ? Math.round( mean ) : mean );
+		}
+		return dp;
+	}
+
+	/**
+	 * Maps a label image computed on a downsampled image back to the source
+	 * resolution, by nearest neighbour. Each pixel of the labels covers a
+	 * block of pixels of the result.
+	 *
+	 * @param labels
+	 *            the labels of the downsampled image.
+	 * @param factor
+	 *            the downsampling factor.
+	 * @param width
+	 *            the width of the source image.
+	 * @param height
+	 *            the height of the source image.
+	 * @return a view of the labels at the source resolution.
+	 */
+	public static < R extends IntegerType< R > > RandomAccessibleInterval< R > upsample( final RandomAccessibleInterval< R > labels, final int factor, final long width, final long height )
+	{
+		// Downsampled pixel i covers the block [i*f, i*f+f-1].
+		final double center = ( factor - 1 ) / 2.;
+		final AffineTransform2D transform = new AffineTransform2D();
+		transform.set(
+				factor, 0., center,
+				0., factor, center );
+		return Views.interval(
+				RealViews.affine(
+						Views.interpolate( Views.extendBorder( labels ), new NearestNeighborInterpolatorFactory<>() ),
+						transform ),
+				Intervals.createMinSize( 0, 0, width, height ) );
+	}
+
+	/**
+	 * The planes of an image, downsampled when they are read.
+	 */
+	private static final class DownsampledStack extends VirtualStack
+	{
+
+		private final ImageStack source;
+
+		private final int factor;
+
+		private DownsampledStack( final ImageStack source, final int factor )
+		{
+			super( ( source.getWidth() + factor - 1 ) / factor, ( source.getHeight() + factor - 1 ) / factor, null, null );
+			this.source = source;
+			this.factor = factor;
+		}
+
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			return downsample( source.getProcessor( n ), factor );
+		}
+
+		@Override
+		public Object getPixels( final int n )
+		{
+			return getProcessor( n ).getPixels();
+		}
+
+		@Override
+		public int getSize()
+		{
+			return source.getSize();
+		}
+
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return source.getSliceLabel( n );
+		}
+
+		@Override
+		public int getBitDepth()
+		{
+			return source.getBitDepth();
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.process.AutoThresholder;
+import ij.process.AutoThresholder.Method;
+import ij.process.ImageProcessor;
+
+/**
+ * Finds the occupied regions of a frame, so that only these are sent to
+ * cellpose.
+ * <p>
+ * The regions are found either from an Otsu threshold of the frame, or from
+ * a set of ImageJ ROIs. With the threshold, the frame is divided into square
+ * tiles, a tile is occupied if it contains enough foreground pixels, and each
+ * group of touching occupied tiles gives one region, padded by one tile so
+ * that objects on its border are not cut. Overlapping regions are merged.
+ */
+public class ForegroundPatches
+{
+
+	/**
+	 * Fraction of foreground pixels above which a tile is occupied.
+	 */
+	private static final double MIN_TILE_FILL = 0.01;
+
+	/**
+	 * Fraction of the frame above which the regions are not worth cropping.
+	 */
+	public static final double MAX_COVERAGE = 0.8;
+
+	private ForegroundPatches()
+	{}
+
+	/**
+	 * Returns the occupied regions of the specified image, found with an Otsu
+	 * threshold. Since the threshold alone does not tell whether objects are
+	 * bright or dark, the foreground is taken as the smaller of the two
+	 * classes.
+	 *
+	 * @param ip
+	 *            the image.
+	 * @param tileSize
+	 *            the size of the tiles, in pixels. Typically twice the object
+	 *            diameter.
+	 * @return a new list of regions, empty if the image has no foreground.
+	 */
+	public static List< Rectangle > fromOtsu( final ImageProcessor ip, final int tileSize )
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final ImageProcessor bp = ip.convertToByte( true );
+		final int[] histogram = bp.getHistogram();
+		final int threshold = new AutoThresholder().getThreshold( Method.Otsu, histogram );
+		long above = 0;
+		for ( int i = threshold + 1; i < histogram.length; i++ )
+			above += histogram[ i ];
+		final boolean bright = above <= ( long ) width * height / 2;
+
+		/*
+		 * Foreground pixels per tile.
+		 */
+
+		final int nx = ( width + tileSize - 1 ) / tileSize;
+		final int ny = ( height + tileSize - 1 ) / tileSize;
+		final int[] counts = new int[ nx * ny ];
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = ( y / tileSize ) * nx;
+			for ( int x = 0; x < width; x++ )
+			{
+				final int v = bp.get( x, y );
+				if ( bright ? v > threshold : v <= threshold )
+					counts[ row + x / tileSize ]++;
+			}
+		}
+		final double minCount = MIN_TILE_FILL * tileSize * tileSize;
+		final boolean[] occupied = new boolean[ nx * ny ];
+		for ( int i = 0; i < occupied.length; i++ )
+			occupied[ i ] = counts[ i ] > minCount;
+
+		/*
+		 * Groups of touching tiles.
+		 */
+
+		final List< Rectangle > regions = new ArrayList<>();
+		final boolean[] visited = new boolean[ nx * ny ];
+		final Deque< Integer > queue = new ArrayDeque<>();
+		for ( int start = 0; start < occupied.length; start++ )
+		{
+			if ( !occupied[ start ] || visited[ start ] )
+				continue;
+
+			int minX = nx, minY = ny, maxX = -1, maxY = -1;
+			visited[ start ] = true;
+			queue.add( Integer.valueOf( start ) );
+			while ( !queue.isEmpty() )
+			{
+				final int tile = queue.poll().intValue();
+				final int tx = tile % nx;
+				final int ty = tile / nx;
+				minX = Math.min( minX, tx );
+				minY = Math.min( minY, ty );
+				maxX = Math.max( maxX, tx );
+				maxY = Math.max( maxY, ty );
+				for ( int dy = -1; dy <= 1; dy++ )
+				{
+					for ( int dx = -1; dx <= 1; dx++ )
+					{
+						final int x = tx + dx;
+						final int y = ty + dy;
+						if ( x < 0 || y < 0 || x >= nx || y >= ny )
+							continue;
+						final int neighbor = y * nx + x;
+						if ( occupied[ neighbor ] && !visited[ neighbor ] )
+						{
+							visited[ neighbor ] = true;
+							queue.add( Integer.valueOf( neighbor ) );
+						}
+					}
+				}
+			}
+
+			// Padded by one tile.
+			final Rectangle r = new Rectangle(
+					( minX - 1 ) * tileSize,
+					( minY - 1 ) * tileSize,
+					( maxX - minX + 3 ) * tileSize,
+					( maxY - minY + 3 ) * tileSize );
+			regions.add( r.intersection( new Rectangle( width, height ) ) );
+		}
+		return merge( regions );
+	}
+
+	/**
+	 * Returns the regions covered by the specified ROIs, in an image that is
+	 * a crop of the image the ROIs were drawn on.
+	 *
+	 * @param rois
+	 *            the ROIs.
+	 * @param x0
+	 *            the X position of the crop in the image of the ROIs.
+	 * @param y0
+	 *            the Y position of the crop in the image of the ROIs.
+	 * @param width
+	 *            the width of the crop.
+	 * @param height
+	 *            the height of the crop.
+	 * @param margin
+	 *            the padding around each ROI, in pixels.
+	 * @return a new list of regions, in the crop coordinates.
+	 */
+	public static List< Rectangle > fromRois( final List< Roi > rois, final int x0, final int y0, final int width, final int height, final int margin )
+	{
+		final Rectangle frame = new Rectangle( width, height );
+		final List< Rectangle > regions = new ArrayList<>( rois.size() );
+		for ( final Roi roi : rois )
+		{
+			final Rectangle bounds = roi.getBounds();
+			final Rectangle r = new Rectangle(
+					bounds.x - x0 - margin,
+					bounds.y - y0 - margin,
+					bounds.width + 2 * margin,
+					bounds.height + 2 * margin ).intersection( frame );
+			if ( !r.isEmpty() )
+				regions.add( r );
+		}
+		return merge( regions );
+	}
+
+	/**
+	 * Merges overlapping regions into their bounding box, until no two
+	 * regions overlap.
+	 *
+	 * @param regions
+	 *            the regions to merge.
+	 * @return a new list of regions.
+	 */
+	public static List< Rectangle > merge( final List< Rectangle > regions )
+	{
+		final List< Rectangle > merged = new ArrayList<>( regions );
+		boolean changed = true;
+		while ( changed )
+		{
+			changed = false;
+			for ( int i = 0; i < merged.size() && !changed; i++ )
+			{
+				for ( int j = i + 1; j < merged.size(); j++ )
+				{
+					if ( merged.get( i ).intersects( merged.get( j ) ) )
+					{
+						merged.set( i, merged.get( i ).union( merged.remove( j ) ) );
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns the fraction of an image of the specified size covered by the
+	 * specified non-overlapping regions.
+	 *
+	 * @param regions
+	 *            the regions.
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @return the covered fraction.
+	 */
+	public static double coverage( final List< Rectangle > regions, final int width, final int height )
+	{
+		long area = 0;
+		for ( final Rectangle r : regions )
+			area += ( long ) r.width * r.height;
+		return ( double ) area / ( ( long ) width * height );
+	}
+
+	/**
+	 * Crops a region of all the planes of the specified image.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param region
+	 *            the region to crop.
+	 * @param name
+	 *            the name of the cropped image, without extension.
+	 * @return a new image.
+	 */
+	public static ImagePlus crop( final ImagePlus imp, final Rectangle region, final String name )
+	{
+		final ImageStack stack = imp.getStack();
+		final ImageStack out = new ImageStack( region.width, region.height );
+		for ( int i = 1; i <= stack.getSize(); i++ )
+		{
+			final ImageProcessor ip = stack.getProcessor( i );
+			ip.setRoi( region );
+			out.addSlice( stack.getSliceLabel( i ), ip.crop() );
+		}
+		final ImagePlus patch = new ImagePlus( name + ".tif", out );
+		patch.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		patch.setCalibration( imp.getCalibration() );
+		return patch;
+	}
+
+	/**
+	 * Reads a ROI set, as saved by the ImageJ ROI manager in a ZIP file, or a
+	 * single ROI file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return a new list of ROIs.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public static List< Roi > readRois( final File file ) throws IOException
+	{
+		final List< Roi > rois = new ArrayList<>();
+		if ( !file.getName().toLowerCase().endsWith( ".zip" ) )
+		{
+			final Roi roi = new RoiDecoder( Files.readAllBytes( file.toPath() ), file.getName() ).getRoi();
+			if ( roi != null )
+				rois.add( roi );
+			return rois;
+		}
+
+		try (ZipInputStream in = new ZipInputStream( Files.newInputStream( file.toPath() ) ))
+		{
+			ZipEntry entry;
+			while ( ( entry = in.getNextEntry() ) != null )
+			{
+				if ( !entry.getName().toLowerCase().endsWith( ".roi" ) )
+					continue;
+				final Roi roi = new RoiDecoder( readAll( in ), entry.getName() ).getRoi();
+				if ( roi != null )
+					rois.add( roi );
+			}
+		}
+		return rois;
+	}
+
+	private static byte[] readAll( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 8192 ];
+		int n;
+		while ( ( n = in.read( buffer ) ) > 0 )
+			out.write( buffer, 0, n );
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,428 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Per-label statistics of a 2D label image, accumulated in a single pass over
+ * the pixels in primitive arrays indexed by label.
+ * <p>
+ * Used to attach values computed over each object of a cellpose mask to the
+ * spot created for it. Spots are matched to their label through their
+ * centroid.
+ * <p>
+ * Besides the pixel count, centroid and mean quality, the pass accumulates
+ * the shape of each object: its second moments, for the ellipse with the
+ * same moments, and the length and corners of its pixel outline, for the
+ * perimeter. The perimeter is computed as by ImageJ for traced outlines: the
+ * outline length minus <code>2 - sqrt(2)</code> per corner, where ImageJ
+ * only counts every other corner along a run of one-pixel sides. Here a
+ * corner with a one-pixel side counts for half, which gives the same
+ * perimeter on straight and diagonal runs. Outlines of holes are included.
+ */
+public class LabelStatistics
+{
+
+	/*
+	 * Keys of the spot features set from the label statistics. They differ
+	 * from the keys of the TrackMate shape analyzers, which measure the
+	 * possibly simplified ROI polygon instead of the label pixels.
+	 */
+
+	/** Area of the object, from its pixel count, in physical units. */
+	public static final String AREA = "LABEL_AREA";
+
+	/** Perimeter of the object, from its pixel outline, in physical units. */
+	public static final String PERIMETER = "LABEL_PERIMETER";
+
+	/** Circularity of the object, <code>4 pi area / perimeter^2</code>. */
+	public static final String CIRCULARITY = "LABEL_CIRCULARITY";
+
+	/** Shape index of the object, <code>perimeter / sqrt(area)</code>. */
+	public static final String SHAPE_INDEX = "LABEL_SHAPE_INDEX";
+
+	/** X of the moment ellipse center, relative to the spot. */
+	public static final String ELLIPSE_X0 = "LABEL_ELLIPSE_X0";
+
+	/** Y of the moment ellipse center, relative to the spot. */
+	public static final String ELLIPSE_Y0 = "LABEL_ELLIPSE_Y0";
+
+	/** Major semi-axis of the moment ellipse, in physical units. */
+	public static final String ELLIPSE_MAJOR = "LABEL_ELLIPSE_MAJOR";
+
+	/** Minor semi-axis of the moment ellipse, in physical units. */
+	public static final String ELLIPSE_MINOR = "LABEL_ELLIPSE_MINOR";
+
+	/** Angle of the major axis of the moment ellipse with X, in radians. */
+	public static final String ELLIPSE_THETA = "LABEL_ELLIPSE_THETA";
+
+	/** Aspect ratio of the moment ellipse, major over minor axis. */
+	public static final String ELLIPSE_ASPECTRATIO = "LABEL_ELLIPSE_ASPECTRATIO";
+
+	private final ImageProcessor labels;
+
+	private final int nLabels;
+
+	private final long[] count;
+
+	private final double[] sumX;
+
+	private final double[] sumY;
+
+	private final double[] sumXX;
+
+	private final double[] sumYY;
+
+	private final double[] sumXY;
+
+	private final double[] sumQ;
+
+	private final long[] edges;
+
+	private final double[] corners;
+
+	private LabelStatistics( final ImageProcessor labels, final int nLabels )
+	{
+		this.labels = labels;
+		this.nLabels = nLabels;
+		this.count = new long[ nLabels ];
+		this.sumX = new double[ nLabels ];
+		this.sumY = new double[ nLabels ];
+		this.sumXX = new double[ nLabels ];
+		this.sumYY = new double[ nLabels ];
+		this.sumXY = new double[ nLabels ];
+		this.sumQ = new double[ nLabels ];
+		this.edges = new long[ nLabels ];
+		this.corners = new double[ nLabels ];
+	}
+
+	/**
+	 * Computes the statistics of the specified label image.
+	 *
+	 * @param labels
+	 *            the label image. 0 is the background.
+	 * @param quality
+	 *            an image of the same size, whose mean value over each object
+	 *            is used as quality. Can be <code>null</code>.
+	 * @param sigmoid
+	 *            if <code>true</code>, the quality values are passed through
+	 *            a sigmoid before being averaged, as for the cell probability
+	 *            logits of cellpose.
+	 * @return a new statistics object.
+	 */
+	public static LabelStatistics compute( final ImageProcessor labels, final ImageProcessor quality, final boolean sigmoid )
+	{
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+		final int nPixels = width * height;
+
+		int max = 0;
+		for ( int i = 0; i < nPixels; i++ )
+			max = Math.max( max, ( int ) labels.getf( i ) );
+
+		final LabelStatistics stats = new LabelStatistics( labels, max + 1 );
+
+		/*
+		 * We slide a 2x2 window over the image padded with background, so that
+		 * each window has the current pixel at its bottom right. The rows are
+		 * read once each, in padded buffers.
+		 */
+		int[] above = new int[ width + 2 ];
+		int[] row = new int[ width + 2 ];
+		for ( int y = 0; y <= height; y++ )
+		{
+			for ( int x = 0; x < width; x++ )
+				row[ x + 1 ] = ( y < height ) ? ( int ) labels.getf( y * width + x ) : 0;
+
+			for ( int x = 0; x <= width; x++ )
+			{
+				final int a = above[ x ];
+				final int b = above[ x + 1 ];
+				final int c = row[ x ];
+				final int d = row[ x + 1 ];
+
+				// Outline edges, to the left and above the current pixel.
+				if ( c != d )
+				{
+					stats.edges[ c ]++;
+					stats.edges[ d ]++;
+				}
+				if ( b != d )
+				{
+					stats.edges[ b ]++;
+					stats.edges[ d ]++;
+				}
+
+				// Outline corners at the top left of the current pixel.
+				if ( a != b || a != c || a != d )
+				{
+					stats.addCorners( a, x, y, a, b, c, d );
+					if ( b != a )
+						stats.addCorners( b, x, y, a, b, c, d );
+					if ( c != a && c != b )
+						stats.addCorners( c, x, y, a, b, c, d );
+					if ( d != a && d != b && d != c )
+						stats.addCorners( d, x, y, a, b, c, d );
+				}
+
+				if ( d == 0 || x == width )
+					continue;
+
+				final int i = y * width + x;
+				stats.count[ d ]++;
+				stats.sumX[ d ] += x;
+				stats.sumY[ d ] += y;
+				stats.sumXX[ d ] += ( double ) x * x;
+				stats.sumYY[ d ] += ( double ) y * y;
+				stats.sumXY[ d ] += ( double ) x * y;
+				if ( quality != null )
+				{
+					final double q = quality.getf( i );
+					stats.sumQ[ d ] += sigmoid ? 1. / ( 1. + Math.exp( -q ) ) : q;
+				}
+			}
+
+			final int[] tmp = above;
+			above = row;
+			row = tmp;
+		}
+		return stats;
+	}
+
+	/**
+	 * Counts the outline corners of the specified label at the vertex
+	 * <code>(x, y)</code>, whose 2x2 window is <code>a b / c d</code>: one if
+	 * the label covers one or three pixels of the window, two if it covers
+	 * two diagonal pixels. A corner with a one-pixel side, that is with
+	 * another corner at the next vertex along one of its sides, counts for
+	 * half.
+	 */
+	private void addCorners( final int label, final int x, final int y, final int a, final int b, final int c, final int d )
+	{
+		if ( label == 0 )
+			return;
+		final boolean ma = a == label;
+		final boolean mb = b == label;
+		final boolean mc = c == label;
+		final boolean md = d == label;
+		final int n = ( ma ? 1 : 0 ) + ( mb ? 1 : 0 ) + ( mc ? 1 : 0 ) + ( md ? 1 : 0 );
+		if ( n == 1 || n == 3 )
+		{
+			// The two sides are the edges of the window across the label.
+			final int dx = ( mb != md ) ? 1 : -1;
+			final int dy = ( mc != md ) ? 1 : -1;
+			corners[ label ] += cornerWeight( label, x, y, dx, dy );
+		}
+		else if ( n == 2 && ma == md )
+		{
+			// Two corners, each with its own pair of sides.
+			final int dx = ma ? -1 : 1;
+			corners[ label ] += cornerWeight( label, x, y, dx, -1 );
+			corners[ label ] += cornerWeight( label, x, y, -dx, 1 );
+		}
+	}
+
+	/**
+	 * Returns the weight of the corner of the specified label at the vertex
+	 * <code>(x, y)</code>, whose sides go in the X direction <code>dx</code>
+	 * and in the Y direction <code>dy</code>.
+	 */
+	private double cornerWeight( final int label, final int x, final int y, final int dx, final int dy )
+	{
+		return ( isCorner( label, x + dx, y ) || isCorner( label, x, y + dy ) ) ? 0.5 : 1.;
+	}
+
+	/**
+	 * Returns whether the outline of the specified label turns at the vertex
+	 * <code>(x, y)</code>, the top left corner of the pixel at
+	 * <code>(x, y)</code>.
+	 */
+	private boolean isCorner( final int label, final int x, final int y )
+	{
+		final boolean ma = get( x - 1, y - 1 ) == label;
+		final boolean mb = get( x, y - 1 ) == label;
+		final boolean mc = get( x - 1, y ) == label;
+		final boolean md = get( x, y ) == label;
+		final int n = ( ma ? 1 : 0 ) + ( mb ? 1 : 0 ) + ( mc ? 1 : 0 ) + ( md ? 1 : 0 );
+		return n == 1 || n == 3 || ( n == 2 && ma == md );
+	}
+
+	/**
+	 * Returns the label at the specified pixel, 0 outside of the image.
+	 */
+	private int get( final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= labels.getWidth() || y >= labels.getHeight() )
+			return 0;
+		return ( int ) labels.getf( y * labels.getWidth() + x );
+	}
+
+	/**
+	 * Returns the label of the object whose centroid is the closest to the
+	 * specified position.
+	 *
+	 * @param x
+	 *            the X position, in pixels of the label image.
+	 * @param y
+	 *            the Y position, in pixels of the label image.
+	 * @return the label, or 0 if there is no object.
+	 */
+	public int match( final double x, final double y )
+	{
+		/*
+		 * Fast path: the object under the position, if its centroid is close
+		 * enough. Fails for objects whose centroid lies outside of them.
+		 */
+		final int ix = ( int ) Math.round( x );
+		final int iy = ( int ) Math.round( y );
+		if ( ix >= 0 && iy >= 0 && ix < labels.getWidth() && iy < labels.getHeight() )
+		{
+			final int label = ( int ) labels.getf( ix, iy );
+			if ( label > 0 && distanceSquared( label, x, y ) < 2.25 )
+				return label;
+		}
+
+		int best = 0;
+		double bestD2 = Double.POSITIVE_INFINITY;
+		for ( int label = 1; label < nLabels; label++ )
+		{
+			if ( count[ label ] == 0 )
+				continue;
+			final double d2 = distanceSquared( label, x, y );
+			if ( d2 < bestD2 )
+			{
+				bestD2 = d2;
+				best = label;
+			}
+		}
+		return best;
+	}
+
+	private double distanceSquared( final int label, final double x, final double y )
+	{
+		final double dx = sumX[ label ] / count[ label ] - x;
+		final double dy = sumY[ label ] / count[ label ] - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Returns the number of labels, that is the largest label plus one.
+	 *
+	 * @return the number of labels.
+	 */
+	public int getNLabels()
+	{
+		return nLabels;
+	}
+
+	/**
+	 * Returns the number of pixels in the specified object.
+	 *
+	 * @param label
+	 *            the object label.
+	 * @return the number of pixels.
+	 */
+	public long getCount( final int label )
+	{
+		return count[ label ];
+	}
+
+	/**
+	 * Returns the mean quality value over the specified object.
+	 *
+	 * @param label
+	 *            the object label.
+	 * @return the mean quality.
+	 */
+	public double getMeanQuality( final int label )
+	{
+		return count[ label ] == 0 ? 0. : sumQ[ label ] / count[ label ];
+	}
+
+	/**
+	 * Returns the centroid of the specified object.
+	 *
+	 * @param label
+	 *            the object label.
+	 * @return the X and Y position of the centroid, in pixels.
+	 */
+	public double[] getCentroid( final int label )
+	{
+		return new double[] { sumX[ label ] / count[ label ], sumY[ label ] / count[ label ] };
+	}
+
+	/**
+	 * Returns the perimeter of the specified object, from its pixel outline.
+	 *
+	 * @param label
+	 *            the object label.
+	 * @return the perimeter, in pixels.
+	 */
+	public double getPerimeter( final int label )
+	{
+		return edges[ label ] - corners[ label ] * ( 2. - Math.sqrt( 2. ) );
+	}
+
+	/**
+	 * Returns the circularity of the specified object,
+	 * <code>4 pi area / perimeter^2</code>, at most 1.
+	 *
+	 * @param label
+	 *            the object label.
+	 * @return the circularity.
+	 */
+	public double getCircularity( final int label )
+	{
+		final double perimeter = getPerimeter( label );
+		return perimeter <= 0. ? 0. : Math.min( 1., 4. * Math.PI * count[ label ] / ( perimeter * perimeter ) );
+	}
+
+	/**
+	 * Returns the ellipse with the same second moments as the specified
+	 * object.
+	 *
+	 * @param label
+	 *            the object label.
+	 * @return the semi-axis lengths in pixels, major first, and the angle of
+	 *         the major axis with the X axis in radians, from
+	 *         <code>-pi/2</code> to <code>pi/2</code>.
+	 */
+	public double[] getEllipse( final int label )
+	{
+		final double n = count[ label ];
+		final double mx = sumX[ label ] / n;
+		final double my = sumY[ label ] / n;
+		// Central moments, each pixel being a unit square.
+		final double uxx = sumXX[ label ] / n - mx * mx + 1. / 12.;
+		final double uyy = sumYY[ label ] / n - my * my + 1. / 12.;
+		final double uxy = sumXY[ label ] / n - mx * my;
+
+		final double mean = 0.5 * ( uxx + uyy );
+		final double delta = Math.sqrt( 0.25 * ( uxx - uyy ) * ( uxx - uyy ) + uxy * uxy );
+		final double l1 = mean + delta;
+		final double l2 = Math.max( 0., mean - delta );
+		final double theta = 0.5 * Math.atan2( 2. * uxy, uxx - uyy );
+		// The variance along an axis of an ellipse is a^2 / 4.
+		return new double[] { 2. * Math.sqrt( l1 ), 2. * Math.sqrt( l2 ), theta };
+	}
+}
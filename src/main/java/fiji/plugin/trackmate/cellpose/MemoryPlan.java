@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+/**
+ * Decides how much of a detection run is held in memory at once, so that
+ * it stays within a memory budget.
+ * <p>
+ * The footprint of a frame is estimated from the size of the detection
+ * interval, the number of channels and the bit depth of the source image.
+ * Frames are held in memory at three stages:
+ * <ul>
+ * <li>before being saved for cellpose, when they are downsampled. The
+ * downsampled frames are computed all at once if they fit in a quarter of
+ * the budget, and when they are saved otherwise;</li>
+ * <li>while they are saved, where each saving thread holds a frame at the
+ * source and at the saved resolution. Saving threads get a quarter of the
+ * budget;</li>
+ * <li>while their masks are converted to spots, where each converting thread
+ * holds the mask, its copy for the label statistics and the labeling built
+ * by the label detector, about {@value #MASK_BYTES_PER_PIXEL} bytes per pixel
+ * of the source. Converting threads get half of the budget.</li>
+ * </ul>
+ * The rest is left for the spots. There is at least one thread for each
+ * stage, even if the budget is too low for it.
+ */
+public class MemoryPlan
+{
+
+	/**
+	 * The fraction of the memory available to Fiji used when no budget is
+	 * set.
+	 */
+	public static final double AUTO_FRACTION = 0.5;
+
+	/**
+	 * Estimated memory used to convert the mask of a frame to spots, in
+	 * bytes per pixel of the source image.
+	 */
+	public static final int MASK_BYTES_PER_PIXEL = 16;
+
+	private static final double MB = 1024. * 1024.;
+
+	private final long budget;
+
+	private final long frameBytes;
+
+	private final long savedFrameBytes;
+
+	private final long maskBytes;
+
+	private final long downsampledBytes;
+
+	private final boolean lazyDownsampling;
+
+	private final int exportThreads;
+
+	private final int ingestThreads;
+
+	private MemoryPlan( final long budget, final long frameBytes, final long savedFrameBytes, final long maskBytes,
+			final long downsampledBytes, final boolean lazyDownsampling, final int exportThreads, final int ingestThreads )
+	{
+		this.budget = budget;
+		this.frameBytes = frameBytes;
+		this.savedFrameBytes = savedFrameBytes;
+		this.maskBytes = maskBytes;
+		this.downsampledBytes = downsampledBytes;
+		this.lazyDownsampling = lazyDownsampling;
+		this.exportThreads = exportThreads;
+		this.ingestThreads = ingestThreads;
+	}
+
+	/**
+	 * Returns the memory Fiji can still allocate, in bytes.
+	 *
+	 * @return the available memory.
+	 */
+	public static long availableMemory()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+	}
+
+	/**
+	 * Plans a detection run.
+	 *
+	 * @param budget
+	 *            the memory budget, in bytes. If 0 or less,
+	 *            {@value #AUTO_FRACTION} of the available memory.
+	 * @param width
+	 *            the width of the frames, in pixels.
+	 * @param height
+	 *            the height of the frames, in pixels.
+	 * @param nChannels
+	 *            the number of channels of the frames.
+	 * @param bitDepth
+	 *            the bit depth of the frames, 8, 16 or 32.
+	 * @param nFrames
+	 *            the number of frames to segment.
+	 * @param factor
+	 *            the factor by which frames are downsampled, 1 if they are
+	 *            not.
+	 * @param maxExportThreads
+	 *            the maximal number of threads saving frames.
+	 * @param maxIngestThreads
+	 *            the maximal number of threads converting masks to spots.
+	 * @return a new plan.
+	 */
+	public static MemoryPlan create( final long budget, final long width, final long height, final int nChannels, final int bitDepth,
+			final int nFrames, final int factor, final int maxExportThreads, final int maxIngestThreads )
+	{
+		final long b = ( budget > 0 ) ? budget : ( long ) ( AUTO_FRACTION * availableMemory() );
+		final long pixelBytes = ( long ) nChannels * bitDepth / 8;
+		final long frameBytes = width * height * pixelBytes;
+		final long savedFrameBytes = ( ( width + factor - 1 ) / factor ) * ( ( height + factor - 1 ) / factor ) * pixelBytes;
+		final long maskBytes = width * height * MASK_BYTES_PER_PIXEL;
+
+		// Frames that are not downsampled are read from the source when saved.
+		final long downsampledBytes = ( factor > 1 ) ? nFrames * savedFrameBytes : 0l;
+		final boolean lazyDownsampling = downsampledBytes > b / 4;
+
+		final int exportThreads = clamp( b / 4 / Math.max( 1l, frameBytes + savedFrameBytes ), maxExportThreads );
+		final int ingestThreads = clamp( b / 2 / Math.max( 1l, maskBytes ), maxIngestThreads );
+		return new MemoryPlan( b, frameBytes, savedFrameBytes, maskBytes, downsampledBytes, lazyDownsampling, exportThreads, ingestThreads );
+	}
+
+	private static int clamp( final long n, final int max )
+	{
+		return ( int ) Math.max( 1l, Math.min( Math.max( 1, max ), n ) );
+	}
+
+	/**
+	 * Returns the memory budget, in bytes.
+	 *
+	 * @return the budget.
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Returns whether downsampled frames must be computed when they are saved
+	 * rather than all at once.
+	 *
+	 * @return <code>true</code> to downsample frames when they are saved.
+	 */
+	public boolean isLazyDownsampling()
+	{
+		return lazyDownsampling;
+	}
+
+	/**
+	 * Returns the number of threads saving frames for cellpose.
+	 *
+	 * @return the number of threads.
+	 */
+	public int getExportThreads()
+	{
+		return exportThreads;
+	}
+
+	/**
+	 * Returns the number of threads converting masks to spots, that is the
+	 * number of masks in memory at once.
+	 *
+	 * @return the number of threads.
+	 */
+	public int getIngestThreads()
+	{
+		return ingestThreads;
+	}
+
+	/**
+	 * Returns the estimated peak memory use of the frames and masks, in bytes.
+	 * Does not include the spots.
+	 *
+	 * @return the estimated memory use.
+	 */
+	public long getPeakBytes()
+	{
+		final long downsampled = lazyDownsampling ? 0l : downsampledBytes;
+		// Conservative, saving and converting do not overlap within a run.
+		return downsampled + exportThreads * ( frameBytes + savedFrameBytes ) + ingestThreads * maskBytes;
+	}
+
+	/**
+	 * Returns whether the estimated peak memory use fits in the budget.
+	 *
+	 * @return <code>true</code> if the plan fits.
+	 */
+	public boolean fits()
+	{
+		return getPeakBytes() <= budget;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( "Memory budget: %.0f MB. Frames: %.1f MB each, %.1f MB saved.\n", budget / MB, frameBytes / MB, savedFrameBytes / MB ) );
+		if ( downsampledBytes > 0 )
+			str.append( lazyDownsampling
+					? String.format( " - Downsampling frames when saving them, %.0f MB would not fit.\n", downsampledBytes / MB )
+					: String.format( " - Downsampling all frames at once, %.0f MB.\n", downsampledBytes / MB ) );
+		str.append( String.format( " - Saving frames on %d thread(s), %.0f MB.\n", exportThreads, exportThreads * ( frameBytes + savedFrameBytes ) / MB ) );
+		str.append( String.format( " - Converting masks on %d thread(s), %.0f MB.\n", ingestThreads, ingestThreads * maskBytes / MB ) );
+		if ( !fits() )
+			str.append( String.format( " - Estimated peak of %.0f MB exceeds the budget even with one thread per stage.\n", getPeakBytes() / MB ) );
+		return str.toString();
+	}
+}
@@ -0,0 +1,546 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import net.imglib2.view.Views;
+
+/**
+ * Reads numpy <code>.npy</code> files by memory-mapping them, and exposes
+ * their content as an ImgLib2 image backed by the mapped file, without
+ * copying the data.
+ * <p>
+ * Only plain numeric arrays are supported: the <code>_seg.npy</code> files
+ * written by cellpose are pickled dictionaries and cannot be read this way.
+ * Cellpose masks and probability maps saved with <code>np.save</code> can.
+ * <p>
+ * The ImgLib2 dimensions are the numpy dimensions reversed: an array of
+ * shape <code>(H, W)</code> gives an image of dimensions <code>W x H</code>,
+ * whatever the memory order of the array. Arrays in C order are exposed as
+ * they are laid out; arrays in Fortran order through a view with permuted
+ * axes. The returned images are read-only.
+ * <p>
+ * The mapping is released by {@link #close()}, after which the images must
+ * not be used anymore. Until then the file cannot be deleted on Windows.
+ */
+public class NpyReader implements Closeable
+{
+
+	private static final byte[] MAGIC = new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y' };
+
+	private static final Pattern DESCR = Pattern.compile( "'descr'\\s*:\\s*'([^']*)'" );
+
+	private static final Pattern FORTRAN = Pattern.compile( "'fortran_order'\\s*:\\s*(True|False)" );
+
+	private static final Pattern SHAPE = Pattern.compile( "'shape'\\s*:\\s*\\(([^)]*)\\)" );
+
+	private final File file;
+
+	private final String descr;
+
+	private final long[] dimensions;
+
+	/**
+	 * Whether the array is in Fortran order, in which case the dimensions are
+	 * laid out in memory in numpy order, the first one varying fastest.
+	 */
+	private final boolean fortranOrder;
+
+	private final MappedByteBuffer mapped;
+
+	private final ByteBuffer data;
+
+	/**
+	 * Opens and maps the specified file, and parses its header.
+	 *
+	 * @param file
+	 *            the <code>.npy</code> file.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a numeric numpy array.
+	 */
+	public NpyReader( final File file ) throws IOException
+	{
+		this.file = file;
+		final MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			if ( channel.size() > Integer.MAX_VALUE )
+				throw new IOException( "File too large to be mapped: " + file );
+			// The mapping stays valid after the channel is closed.
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		this.mapped = buffer;
+
+		/*
+		 * Header.
+		 */
+
+		for ( int i = 0; i < MAGIC.length; i++ )
+			if ( buffer.get( i ) != MAGIC[ i ] )
+				throw new IOException( "Not a numpy file: " + file );
+
+		final int major = buffer.get( 6 ) & 0xff;
+		buffer.order( ByteOrder.LITTLE_ENDIAN );
+		final int headerLength;
+		final int headerStart;
+		if ( major == 1 )
+		{
+			headerLength = buffer.getShort( 8 ) & 0xffff;
+			headerStart = 10;
+		}
+		else
+		{
+			headerLength = buffer.getInt( 8 );
+			headerStart = 12;
+		}
+		final byte[] headerBytes = new byte[ headerLength ];
+		buffer.position( headerStart );
+		buffer.get( headerBytes );
+		final String header = new String( headerBytes, major >= 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1 );
+
+		this.descr = parse( DESCR, header );
+		if ( descr.contains( "O" ) )
+			throw new IOException( "Object arrays are not supported (pickled file?): " + file );
+		this.fortranOrder = "True".equals( parse( FORTRAN, header ) );
+
+		final String[] tokens = parse( SHAPE, header ).split( "," );
+		final long[] shape = new long[ tokens.length ];
+		int nDims = 0;
+		for ( final String token : tokens )
+		{
+			final String t = token.trim();
+			if ( !t.isEmpty() )
+				shape[ nDims++ ] = Long.parseLong( t );
+		}
+		this.dimensions = new long[ Math.max( 1, nDims ) ];
+		if ( nDims == 0 )
+			dimensions[ 0 ] = 1; // Scalar.
+		for ( int d = 0; d < nDims; d++ )
+			dimensions[ d ] = shape[ nDims - 1 - d ];
+
+		/*
+		 * Data.
+		 */
+
+		buffer.position( headerStart + headerLength );
+		final ByteBuffer slice = buffer.slice();
+		slice.order( descr.charAt( 0 ) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN );
+		this.data = slice;
+
+		long nElements = 1;
+		for ( final long d : dimensions )
+			nElements *= d;
+		if ( nElements * getBytesPerElement() > data.capacity() )
+			throw new IOException( "File is truncated: " + file );
+	}
+
+	private String parse( final Pattern pattern, final String header ) throws IOException
+	{
+		final Matcher matcher = pattern.matcher( header );
+		if ( !matcher.find() )
+			throw new IOException( "Malformed numpy header in " + file + ": " + header );
+		return matcher.group( 1 );
+	}
+
+	/**
+	 * Returns the numpy type descriptor of the array, for instance
+	 * <code>&lt;u2</code>.
+	 *
+	 * @return the type descriptor.
+	 */
+	public String getDescr()
+	{
+		return descr;
+	}
+
+	/**
+	 * Returns the dimensions of the image, in ImgLib2 order.
+	 *
+	 * @return a new array.
+	 */
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * Returns <code>true</code> if the array holds integer values, and can be
+	 * used as a label image.
+	 *
+	 * @return whether the array is of an integer type.
+	 */
+	public boolean isIntegerType()
+	{
+		final char kind = descr.charAt( 1 );
+		return kind == 'u' || kind == 'i' || kind == 'b';
+	}
+
+	private int getBytesPerElement() throws IOException
+	{
+		try
+		{
+			return Integer.parseInt( descr.substring( 2 ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( "Unsupported numpy type " + descr + " in " + file );
+		}
+	}
+
+	/**
+	 * Returns an image backed by the mapped file. The pixel type depends on
+	 * the numpy type of the array, and must be checked by the caller, for
+	 * instance with {@link #isIntegerType()}.
+	 *
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new read-only image.
+	 * @throws IOException
+	 *             if the numpy type is not supported.
+	 */
+	public < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > getImg() throws IOException
+	{
+		if ( !fortranOrder )
+			return createImg( dimensions );
+
+		// Laid out in numpy order, we reverse the axes.
+		final long[] memoryDims = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; d++ )
+			memoryDims[ d ] = dimensions[ dimensions.length - 1 - d ];
+		RandomAccessibleInterval< T > view = createImg( memoryDims );
+		for ( int d = 0; d < dimensions.length / 2; d++ )
+			view = Views.permute( view, d, dimensions.length - 1 - d );
+		return view;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private < T extends RealType< T > & NativeType< T > > ArrayImg< T, ? > createImg( final long[] dimensions ) throws IOException
+	{
+		final ByteBuffer buffer = data.duplicate().order( data.order() );
+		final String type = descr.substring( 1 );
+		switch ( type )
+		{
+		case "u1":
+		case "b1":
+		{
+			final ArrayImg< UnsignedByteType, ByteBufferAccess > img = new ArrayImg<>( new ByteBufferAccess( buffer ), dimensions, new Fraction() );
+			img.setLinkedType( new UnsignedByteType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "i1":
+		{
+			final ArrayImg< ByteType, ByteBufferAccess > img = new ArrayImg<>( new ByteBufferAccess( buffer ), dimensions, new Fraction() );
+			img.setLinkedType( new ByteType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "u2":
+		{
+			final ArrayImg< UnsignedShortType, ShortBufferAccess > img = new ArrayImg<>( new ShortBufferAccess( buffer.asShortBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new UnsignedShortType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "i2":
+		{
+			final ArrayImg< ShortType, ShortBufferAccess > img = new ArrayImg<>( new ShortBufferAccess( buffer.asShortBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new ShortType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "u4":
+		{
+			final ArrayImg< UnsignedIntType, IntBufferAccess > img = new ArrayImg<>( new IntBufferAccess( buffer.asIntBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new UnsignedIntType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "i4":
+		{
+			final ArrayImg< IntType, IntBufferAccess > img = new ArrayImg<>( new IntBufferAccess( buffer.asIntBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new IntType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "u8":
+		{
+			final ArrayImg< UnsignedLongType, LongBufferAccess > img = new ArrayImg<>( new LongBufferAccess( buffer.asLongBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new UnsignedLongType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "i8":
+		{
+			final ArrayImg< LongType, LongBufferAccess > img = new ArrayImg<>( new LongBufferAccess( buffer.asLongBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new LongType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "f4":
+		{
+			final ArrayImg< FloatType, FloatBufferAccess > img = new ArrayImg<>( new FloatBufferAccess( buffer.asFloatBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new FloatType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		case "f8":
+		{
+			final ArrayImg< DoubleType, DoubleBufferAccess > img = new ArrayImg<>( new DoubleBufferAccess( buffer.asDoubleBuffer() ), dimensions, new Fraction() );
+			img.setLinkedType( new DoubleType( img ) );
+			return ( ArrayImg< T, ? > ) img;
+		}
+		default:
+			throw new IOException( "Unsupported numpy type " + descr + " in " + file );
+		}
+	}
+
+	/**
+	 * Returns a label image backed by the mapped file.
+	 *
+	 * @param <R>
+	 *            the pixel type.
+	 * @return a new read-only image.
+	 * @throws IOException
+	 *             if the array is not of an integer type.
+	 */
+	public < R extends IntegerType< R > & NativeType< R > > RandomAccessibleInterval< R > getLabels() throws IOException
+	{
+		if ( !isIntegerType() )
+			throw new IOException( "Not a label image, type is " + descr + ": " + file );
+		return getImg();
+	}
+
+	/**
+	 * Releases the mapping of the file. The images returned by this reader
+	 * must not be used afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			// Java 9 and later.
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Field field = unsafeClass.getDeclaredField( "theUnsafe" );
+			field.setAccessible( true );
+			final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			invokeCleaner.invoke( field.get( null ), mapped );
+			return;
+		}
+		catch ( final NoSuchMethodException e )
+		{
+			// Java 8, see below.
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Released when the buffer is garbage-collected.
+			return;
+		}
+
+		try
+		{
+			final Method cleanerMethod = mapped.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			final Object cleaner = cleanerMethod.invoke( mapped );
+			if ( cleaner != null )
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Released when the buffer is garbage-collected.
+		}
+	}
+
+	/*
+	 * Accesses backed by NIO buffers.
+	 */
+
+	private static final class ByteBufferAccess implements ByteAccess
+	{
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferAccess( final ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public byte getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final byte value )
+		{
+			buffer.put( index, value );
+		}
+	}
+
+	private static final class ShortBufferAccess implements ShortAccess
+	{
+
+		private final ShortBuffer buffer;
+
+		private ShortBufferAccess( final ShortBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public short getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final short value )
+		{
+			buffer.put( index, value );
+		}
+	}
+
+	private static final class IntBufferAccess implements IntAccess
+	{
+
+		private final IntBuffer buffer;
+
+		private IntBufferAccess( final IntBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final int value )
+		{
+			buffer.put( index, value );
+		}
+	}
+
+	private static final class LongBufferAccess implements LongAccess
+	{
+
+		private final LongBuffer buffer;
+
+		private LongBufferAccess( final LongBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public long getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final long value )
+		{
+			buffer.put( index, value );
+		}
+	}
+
+	private static final class FloatBufferAccess implements FloatAccess
+	{
+
+		private final FloatBuffer buffer;
+
+		private FloatBufferAccess( final FloatBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public float getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final float value )
+		{
+			buffer.put( index, value );
+		}
+	}
+
+	private static final class DoubleBufferAccess implements DoubleAccess
+	{
+
+		private final DoubleBuffer buffer;
+
+		private DoubleBufferAccess( final DoubleBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public double getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final double value )
+		{
+			buffer.put( index, value );
+		}
+	}
+}
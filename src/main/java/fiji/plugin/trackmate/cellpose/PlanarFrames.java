@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Extracts the frames of an image for cellpose by copying rows of its pixel
+ * arrays, instead of going through generic pixel access.
+ * <p>
+ * This fast path applies to 2D images, with or without channels and time,
+ * stored as a {@link PlanarImg} or an {@link ArrayImg} of unsigned 8-bit,
+ * unsigned 16-bit or float pixels, with X and Y as first dimensions. In
+ * these layouts each XY plane is a contiguous array, or a contiguous part of
+ * one, so each row of the crop is copied with a single
+ * {@link System#arraycopy(Object, int, Object, int, int)}. Frames are
+ * virtual stacks of one slice per channel, copied only when they are read,
+ * as with {@link net.imglib2.img.display.imagej.ImageJFunctions#wrap}.
+ * Other images must go through the generic path.
+ */
+public class PlanarFrames
+{
+
+	private PlanarFrames()
+	{}
+
+	/**
+	 * Returns whether the frames of the specified image can be extracted by
+	 * this class.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return <code>true</code> if the fast path applies.
+	 */
+	public static boolean isSupported( final ImgPlus< ? > img )
+	{
+		if ( img.dimensionIndex( Axes.X ) != 0 || img.dimensionIndex( Axes.Y ) != 1 || img.dimensionIndex( Axes.Z ) >= 0 )
+			return false;
+		if ( img.dimension( 0 ) * img.dimension( 1 ) > Integer.MAX_VALUE )
+			return false;
+
+		final Object type = img.firstElement();
+		if ( !( type instanceof UnsignedByteType || type instanceof UnsignedShortType || type instanceof FloatType ) )
+			return false;
+
+		final Img< ? > source = unwrap( img );
+		if ( source instanceof PlanarImg )
+			return true;
+		if ( source instanceof ArrayImg )
+			return ( ( ArrayImg< ?, ? > ) source ).update( null ) instanceof ArrayDataAccess;
+		return false;
+	}
+
+	/**
+	 * Returns one frame of the specified image, cropped to the XY bounds of
+	 * the specified interval, with all the channels of the image.
+	 *
+	 * @param img
+	 *            the image, which must be supported, see
+	 *            {@link #isSupported(ImgPlus)}.
+	 * @param interval
+	 *            the interval whose XY bounds are used for the crop.
+	 * @param t
+	 *            the time-point of the frame. Ignored if the image has no
+	 *            time axis.
+	 * @param name
+	 *            the name of the frame.
+	 * @return a new image, backed by a virtual stack.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus wrap( final ImgPlus< T > img, final Interval interval, final long t, final String name )
+	{
+		final int cIndex = img.dimensionIndex( Axes.CHANNEL );
+		final int tIndex = img.dimensionIndex( Axes.TIME );
+		final int nChannels = ( cIndex < 0 ) ? 1 : ( int ) img.dimension( cIndex );
+
+		// Index of the XY plane of each channel.
+		final long[] position = new long[ img.numDimensions() ];
+		if ( tIndex >= 0 )
+			position[ tIndex ] = t;
+		final int[] planes = new int[ nChannels ];
+		for ( int c = 0; c < nChannels; c++ )
+		{
+			if ( cIndex >= 0 )
+				position[ cIndex ] = c;
+			planes[ c ] = planeIndex( img, position );
+		}
+
+		final Object type = img.firstElement();
+		final int bitDepth = ( type instanceof UnsignedByteType ) ? 8 : ( type instanceof UnsignedShortType ) ? 16 : 32;
+		final PlaneStack stack = new PlaneStack( unwrap( img ), planes, bitDepth,
+				( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ),
+				( int ) interval.min( 0 ), ( int ) interval.min( 1 ),
+				( int ) interval.dimension( 0 ), ( int ) interval.dimension( 1 ) );
+		final ImagePlus imp = new ImagePlus( name, stack );
+		imp.setDimensions( nChannels, 1, 1 );
+		return imp;
+	}
+
+	/**
+	 * Returns the index of the XY plane at the specified position, planes
+	 * being ordered with the first dimension after Y varying fastest.
+	 */
+	private static int planeIndex( final Interval img, final long[] position )
+	{
+		long index = 0;
+		long stride = 1;
+		for ( int d = 2; d < img.numDimensions(); d++ )
+		{
+			index += position[ d ] * stride;
+			stride *= img.dimension( d );
+		}
+		return ( int ) index;
+	}
+
+	private static Img< ? > unwrap( final ImgPlus< ? > img )
+	{
+		Img< ? > source = img.getImg();
+		while ( source instanceof ImgPlus )
+			source = ( ( ImgPlus< ? > ) source ).getImg();
+		return source;
+	}
+
+	/**
+	 * The channels of a cropped frame, copied from the pixel arrays of the
+	 * source image when they are read.
+	 */
+	private static final class PlaneStack extends VirtualStack
+	{
+
+		private final Img< ? > source;
+
+		private final int[] planes;
+
+		private final int bitDepth;
+
+		private final int sourceWidth;
+
+		private final int sourceHeight;
+
+		private final int x0;
+
+		private final int y0;
+
+		private final int width;
+
+		private final int height;
+
+		private PlaneStack( final Img< ? > source, final int[] planes, final int bitDepth,
+				final int sourceWidth, final int sourceHeight,
+				final int x0, final int y0, final int width, final int height )
+		{
+			super( width, height, null, null );
+			this.source = source;
+			this.planes = planes;
+			this.bitDepth = bitDepth;
+			this.sourceWidth = sourceWidth;
+			this.sourceHeight = sourceHeight;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			// The pixel array of the plane, and where the plane starts in it.
+			final Object array;
+			final int offset;
+			final int plane = planes[ n - 1 ];
+			if ( source instanceof PlanarImg )
+			{
+				array = ( ( PlanarImg< ?, ? > ) source ).getPlane( plane ).getCurrentStorageArray();
+				offset = 0;
+			}
+			else
+			{
+				array = ( ( ArrayDataAccess< ? > ) ( ( ArrayImg< ?, ? > ) source ).update( null ) ).getCurrentStorageArray();
+				offset = plane * sourceWidth * sourceHeight;
+			}
+
+			final Object pixels;
+			switch ( bitDepth )
+			{
+			case 8:
+				pixels = new byte[ width * height ];
+				break;
+			case 16:
+				pixels = new short[ width * height ];
+				break;
+			default:
+				pixels = new float[ width * height ];
+				break;
+			}
+			for ( int y = 0; y < height; y++ )
+				System.arraycopy( array, offset + ( y0 + y ) * sourceWidth + x0, pixels, y * width, width );
+
+			switch ( bitDepth )
+			{
+			case 8:
+				return new ByteProcessor( width, height, ( byte[] ) pixels );
+			case 16:
+				return new ShortProcessor( width, height, ( short[] ) pixels, null );
+			default:
+				return new FloatProcessor( width, height, ( float[] ) pixels );
+			}
+		}
+
+		@Override
+		public Object getPixels( final int n )
+		{
+			return getProcessor( n ).getPixels();
+		}
+
+		@Override
+		public int getSize()
+		{
+			return planes.length;
+		}
+
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return null;
+		}
+
+		@Override
+		public int getBitDepth()
+		{
+			return bitDepth;
+		}
+	}
+}
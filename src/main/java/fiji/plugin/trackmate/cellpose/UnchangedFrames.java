@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Detects the frames of a movie that barely differ from a frame segmented
+ * before, so that the segmentation of this frame can be reused instead of
+ * running cellpose again.
+ * <p>
+ * Frames are compared on a cheap signature: the segmented channel averaged
+ * over blocks of {@value #BLOCK_SIZE}x{@value #BLOCK_SIZE} pixels. The
+ * difference between two frames is the mean absolute difference of their
+ * signatures, relative to the mean intensity of the reference frame.
+ * Optionally, the frames are also compared after a global shift of a whole
+ * number of blocks, to follow a slow drift of the field of view.
+ */
+public class UnchangedFrames
+{
+
+	/**
+	 * The size of the blocks averaged in the signature, in pixels.
+	 */
+	public static final int BLOCK_SIZE = 4;
+
+	/**
+	 * The largest shift tested, in blocks.
+	 */
+	private static final int MAX_SHIFT = 4;
+
+	private UnchangedFrames()
+	{}
+
+	/**
+	 * The downsampled segmented channel of a frame.
+	 */
+	public static final class Signature
+	{
+
+		private final float[] values;
+
+		private final int width;
+
+		private final int height;
+
+		private final int depth;
+
+		private final double mean;
+
+		private Signature( final float[] values, final int width, final int height, final int depth )
+		{
+			this.values = values;
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			double sum = 0.;
+			for ( final float v : values )
+				sum += v;
+			this.mean = sum / Math.max( 1, values.length );
+		}
+	}
+
+	/**
+	 * Computes the signature of a frame.
+	 *
+	 * @param imp
+	 *            the frame, possibly with several channels and Z-slices.
+	 * @param channel
+	 *            the channel to compare, 1-based.
+	 * @return a new signature.
+	 */
+	public static Signature signature( final ImagePlus imp, final int channel )
+	{
+		final int c = Math.max( 1, Math.min( channel, imp.getNChannels() ) );
+		final int width = ( imp.getWidth() + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+		final int height = ( imp.getHeight() + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+		final int depth = imp.getNSlices();
+		final float[] values = new float[ width * height * depth ];
+		final int[] counts = new int[ width * height ];
+		final ImageStack stack = imp.getStack();
+		for ( int z = 0; z < depth; z++ )
+		{
+			final ImageProcessor ip = stack.getProcessor( imp.getStackIndex( c, z + 1, 1 ) );
+			final int offset = z * width * height;
+			for ( int y = 0; y < ip.getHeight(); y++ )
+			{
+				final int row = ( y / BLOCK_SIZE ) * width;
+				for ( int x = 0; x < ip.getWidth(); x++ )
+				{
+					values[ offset + row + x / BLOCK_SIZE ] += ip.getf( x, y );
+					if ( z == 0 )
+						counts[ row + x / BLOCK_SIZE ]++;
+				}
+			}
+			for ( int i = 0; i < counts.length; i++ )
+				values[ offset + i ] /= counts[ i ];
+		}
+		return new Signature( values, width, height, depth );
+	}
+
+	/**
+	 * Returns the relative difference between two signatures, the second one
+	 * being shifted by the specified number of blocks. Only the overlapping
+	 * blocks are compared.
+	 *
+	 * @param reference
+	 *            the signature of the reference frame.
+	 * @param frame
+	 *            the signature of the frame to compare.
+	 * @param dx
+	 *            the shift in X, in blocks.
+	 * @param dy
+	 *            the shift in Y, in blocks.
+	 * @return the mean absolute difference relative to the mean of the
+	 *         reference, or {@link Double#POSITIVE_INFINITY} if the signatures
+	 *         cannot be compared.
+	 */
+	public static double difference( final Signature reference, final Signature frame, final int dx, final int dy )
+	{
+		if ( reference.width != frame.width || reference.height != frame.height || reference.depth != frame.depth )
+			return Double.POSITIVE_INFINITY;
+
+		final int x0 = Math.max( 0, dx );
+		final int x1 = Math.min( reference.width, reference.width + dx );
+		final int y0 = Math.max( 0, dy );
+		final int y1 = Math.min( reference.height, reference.height + dy );
+		if ( x1 <= x0 || y1 <= y0 )
+			return Double.POSITIVE_INFINITY;
+
+		double sad = 0.;
+		final int plane = reference.width * reference.height;
+		for ( int z = 0; z < reference.depth; z++ )
+		{
+			for ( int y = y0; y < y1; y++ )
+			{
+				final int rRow = z * plane + y * reference.width;
+				final int fRow = z * plane + ( y - dy ) * reference.width - dx;
+				for ( int x = x0; x < x1; x++ )
+					sad += Math.abs( reference.values[ rRow + x ] - frame.values[ fRow + x ] );
+			}
+		}
+		final double n = ( double ) ( x1 - x0 ) * ( y1 - y0 ) * reference.depth;
+		return sad / n / Math.max( Math.abs( reference.mean ), Double.MIN_VALUE );
+	}
+
+	/**
+	 * Returns the shift, in pixels, that brings the specified frame within
+	 * the tolerance of the reference frame, or <code>null</code> if there is
+	 * none. Without shift, only the null shift is tested.
+	 *
+	 * @param reference
+	 *            the signature of the reference frame.
+	 * @param frame
+	 *            the signature of the frame to compare.
+	 * @param tolerance
+	 *            the largest relative difference for the frames to be
+	 *            considered unchanged.
+	 * @param shift
+	 *            whether to test shifts of the frame.
+	 * @return the shift <code>{ dx, dy }</code>, in pixels, to apply to the
+	 *         reference content to get the frame, or <code>null</code>.
+	 */
+	public static int[] match( final Signature reference, final Signature frame, final double tolerance, final boolean shift )
+	{
+		if ( difference( reference, frame, 0, 0 ) <= tolerance )
+			return new int[] { 0, 0 };
+		if ( !shift )
+			return null;
+
+		double best = Double.POSITIVE_INFINITY;
+		int bestX = 0;
+		int bestY = 0;
+		for ( int dy = -MAX_SHIFT; dy <= MAX_SHIFT; dy++ )
+		{
+			for ( int dx = -MAX_SHIFT; dx <= MAX_SHIFT; dx++ )
+			{
+				final double d = difference( reference, frame, dx, dy );
+				if ( d < best )
+				{
+					best = d;
+					bestX = dx;
+					bestY = dy;
+				}
+			}
+		}
+		if ( best > tolerance )
+			return null;
+		// The frame content is the reference content moved by -shift.
+		return new int[] { -bestX * BLOCK_SIZE, -bestY * BLOCK_SIZE };
+	}
+
+	/**
+	 * Copies the specified spots, translated by the specified shift. Spots
+	 * whose center falls outside the specified bounds are not copied.
+	 *
+	 * @param spots
+	 *            the spots to copy.
+	 * @param dx
+	 *            the shift in X, in physical units.
+	 * @param dy
+	 *            the shift in Y, in physical units.
+	 * @param bounds
+	 *            the bounds <code>{ minX, minY, maxX, maxY }</code> of the
+	 *            frame, in physical units.
+	 * @return a new list of spots.
+	 */
+	public static List< Spot > copy( final List< Spot > spots, final double dx, final double dy, final double[] bounds )
+	{
+		final List< Spot > copies = new ArrayList<>( spots.size() );
+		for ( final Spot spot : spots )
+		{
+			final double x = spot.getDoublePosition( 0 ) + dx;
+			final double y = spot.getDoublePosition( 1 ) + dy;
+			if ( x < bounds[ 0 ] || y < bounds[ 1 ] || x > bounds[ 2 ] || y > bounds[ 3 ] )
+				continue;
+
+			final Spot copy = new Spot( x, y, spot.getDoublePosition( 2 ),
+					spot.getFeature( Spot.RADIUS ).doubleValue(),
+					spot.getFeature( Spot.QUALITY ).doubleValue() );
+			for ( final Map.Entry< String, Double > feature : spot.getFeatures().entrySet() )
+				if ( !Spot.POSITION_X.equals( feature.getKey() ) && !Spot.POSITION_Y.equals( feature.getKey() ) )
+					copy.putFeature( feature.getKey(), feature.getValue() );
+
+			final SpotRoi roi = spot.getRoi();
+			if ( roi != null )
+				copy.setRoi( new SpotRoi( roi.x.clone(), roi.y.clone() ) );
+			copies.add( copy );
+		}
+		return copies;
+	}
+}
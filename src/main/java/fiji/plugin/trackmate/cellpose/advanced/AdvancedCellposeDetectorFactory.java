@@ -31,6 +31,7 @@ import static fiji.plugin.trackmate.io.IOUtils.writeAttribute;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -164,11 +165,16 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 				.simplifyContours( simplifyContours )
 				.flowThreshold( flowThreshold )
 				.cellProbThreshold( cellProbThreshold )
+				.batchSize( getOptional( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE ) )
+				.tile( getOptional( KEY_TILE, DEFAULT_TILE ) )
+				.tileOverlap( getOptional( KEY_TILE_OVERLAP, DEFAULT_TILE_OVERLAP ) )
+				.resample( getOptional( KEY_RESAMPLE, DEFAULT_RESAMPLE ) )
 				.get();
 
 		// Logger.
 		final Logger logger = ( Logger ) settings.get( KEY_LOGGER );
 		final CellposeDetector< T > detector = new CellposeDetector<>( img, interval, cellposeSettings, logger );
+		configureDetector( detector );
 		return detector;
 	}
 
@@ -199,6 +205,7 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_DIAMETER, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_USE_GPU, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		ok = ok && readRuntimeSettings( element, settings, errorHolder );
 		ok = ok && readDoubleAttribute( element, settings, KEY_FLOW_THRESHOLD, errorHolder );
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_PROB_THRESHOLD, errorHolder );
 
@@ -242,6 +249,7 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 		ok = ok & checkParameter( settings, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok & checkRuntimeSettings( settings, errorHolder );
 		ok = ok & checkParameter( settings, KEY_FLOW_THRESHOLD, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_CELL_PROB_THRESHOLD, Double.class, errorHolder );
 
@@ -262,11 +270,12 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 				KEY_CELL_DIAMETER,
 				KEY_USE_GPU,
 				KEY_SIMPLIFY_CONTOURS );
-		final List< String > optionalKeys = Arrays.asList(
+		final List< String > optionalKeys = new ArrayList<>( Arrays.asList(
 				KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH,
 				KEY_LOGGER,
 				KEY_FLOW_THRESHOLD,
-				KEY_CELL_PROB_THRESHOLD );
+				KEY_CELL_PROB_THRESHOLD ) );
+		optionalKeys.addAll( RUNTIME_KEYS.keySet() );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 			errorMessage = errorHolder.toString();
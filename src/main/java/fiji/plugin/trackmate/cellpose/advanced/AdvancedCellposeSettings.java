@@ -1,6 +1,7 @@
 package fiji.plugin.trackmate.cellpose.advanced;
 
 import fiji.plugin.trackmate.cellpose.CellposeSettings;
+import fiji.plugin.trackmate.cellpose.CommandDialect;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -24,18 +25,39 @@ public class AdvancedCellposeSettings extends CellposeSettings
 			double flowThreshold,
 			double cellProbThreshold )
 	{
-		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
+		this( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours, flowThreshold, cellProbThreshold,
+				DEFAULT_BATCH_SIZE, DEFAULT_TILE, DEFAULT_TILE_OVERLAP, DEFAULT_RESAMPLE );
+	}
+
+	public AdvancedCellposeSettings(
+			String cellposePythonPath,
+			PretrainedModelCellpose model,
+			String customModelPath,
+			int chan,
+			int chan2,
+			double diameter,
+			boolean useGPU,
+			boolean simplifyContours,
+			double flowThreshold,
+			double cellProbThreshold,
+			int batchSize,
+			boolean tile,
+			double tileOverlap,
+			final Boolean resample )
+	{
+		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				batchSize, tile, tileOverlap, resample );
 		this.flowThreshold = flowThreshold;
 		this.cellProbThreshold = cellProbThreshold;
 	}
 
 	@Override
-	public List< String > toCmdLine( String imagesDir )
+	public List< String > toCmdLine( String imagesDir, CommandDialect dialect )
 	{
-		List< String > cmd = new ArrayList<>(super.toCmdLine( imagesDir ));
+		List< String > cmd = new ArrayList<>(super.toCmdLine( imagesDir, dialect ));
 		cmd.add( "--flow_threshold" );
 		cmd.add( String.valueOf( flowThreshold ) );
-		cmd.add( "--cellprob_threshold" );
+		cmd.add( dialect.getCellProbThresholdFlag() );
 		cmd.add( String.valueOf( cellProbThreshold ) );
 		return Collections.unmodifiableList( cmd );
 	}
@@ -112,6 +134,30 @@ public class AdvancedCellposeSettings extends CellposeSettings
 			return this;
 		}
 
+		public Builder batchSize( final int batchSize )
+		{
+			super.batchSize( batchSize );
+			return this;
+		}
+
+		public Builder tile( final boolean tile )
+		{
+			super.tile( tile );
+			return this;
+		}
+
+		public Builder tileOverlap( final double tileOverlap )
+		{
+			super.tileOverlap( tileOverlap );
+			return this;
+		}
+
+		public Builder resample( final Boolean resample )
+		{
+			super.resample( resample );
+			return this;
+		}
+
 		@Override
 		public AdvancedCellposeSettings get()
 		{
@@ -125,7 +171,11 @@ public class AdvancedCellposeSettings extends CellposeSettings
 					useGPU,
 					simplifyContours,
 					flowThreshold,
-					cellProbThreshold );
+					cellProbThreshold,
+					batchSize,
+					tile,
+					tileOverlap,
+					resample );
 		}
 	}
 }
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import java.io.File;
+import java.util.List;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * A cellpose job: a folder of images to segment, and the command line to
+ * segment them.
+ */
+public class CellposeJob
+{
+
+	private final List< String > command;
+
+	private final File imagesDir;
+
+	private final String device;
+
+	private final File sharedDir;
+
+	private final Logger logger;
+
+	/**
+	 * Creates a new job.
+	 *
+	 * @param command
+	 *            the full cellpose command line, executable included.
+	 * @param imagesDir
+	 *            the folder containing the images to segment.
+	 * @param device
+	 *            the GPU device to run on, or <code>null</code> to use the
+	 *            default one.
+	 * @param sharedDir
+	 *            a folder shared with other computers, for the backends that
+	 *            need one. Can be <code>null</code>.
+	 * @param logger
+	 *            a logger to report to.
+	 */
+	public CellposeJob(
+			final List< String > command,
+			final File imagesDir,
+			final String device,
+			final File sharedDir,
+			final Logger logger )
+	{
+		this.command = command;
+		this.imagesDir = imagesDir;
+		this.device = device;
+		this.sharedDir = sharedDir;
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	/**
+	 * Returns the full cellpose command line, executable included.
+	 *
+	 * @return the command line.
+	 */
+	public List< String > getCommand()
+	{
+		return command;
+	}
+
+	/**
+	 * Returns the part of the command line that launches cellpose, that is
+	 * everything before the cellpose arguments.
+	 *
+	 * @return the command prefix.
+	 */
+	public List< String > getCommandPrefix()
+	{
+		return command.subList( 0, argumentsStart() );
+	}
+
+	/**
+	 * Returns the cellpose arguments of the command line, without the
+	 * executable.
+	 *
+	 * @return the cellpose arguments.
+	 */
+	public List< String > getArguments()
+	{
+		return command.subList( argumentsStart(), command.size() );
+	}
+
+	private int argumentsStart()
+	{
+		// Arguments always start with the target folder.
+		final int i = command.indexOf( "--dir" );
+		return ( i < 0 ) ? command.size() : i;
+	}
+
+	public File getImagesDir()
+	{
+		return imagesDir;
+	}
+
+	public String getDevice()
+	{
+		return device;
+	}
+
+	public File getSharedDir()
+	{
+		return sharedDir;
+	}
+
+	public Logger getLogger()
+	{
+		return logger;
+	}
+}
@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.plugin.SciJavaPlugin;
+
+/**
+ * Interface for the backends that execute cellpose on a folder of images.
+ * <p>
+ * Backends are discovered as SciJava plugins of this type, and selected by
+ * the name given in their {@link org.scijava.plugin.Plugin} annotation. A new
+ * instance is created for each job, so implementations can keep the state of
+ * the job they run, for instance to cancel it.
+ */
+public interface ExecutionBackend extends SciJavaPlugin
+{
+
+	/**
+	 * Runs cellpose on the specified job, and blocks until it is done.
+	 *
+	 * @param job
+	 *            the job to run.
+	 * @return the folder in which the cellpose results were written.
+	 * @throws IOException
+	 *             if cellpose could not be run, or failed.
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for the job.
+	 */
+	public File execute( CellposeJob job ) throws IOException, InterruptedException;
+
+	/**
+	 * Cancels the job currently executed by this backend, if any.
+	 */
+	public void cancel();
+}
@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.scijava.plugin.Plugin;
+
+/**
+ * Submits cellpose jobs to a queue in a folder shared with other computers,
+ * for instance the nodes of a cluster, and waits for them to be processed.
+ * <p>
+ * Each job is a folder of images copied in the queue folder, and a
+ * <code>.job</code> text file listing the cellpose arguments, one per line.
+ * The jobs are processed by {@link JobQueueConsumer}s running on the other
+ * computers, that write a <code>.done</code> or a <code>.failed</code> file
+ * when they are finished. The results are then moved back to the images
+ * folder of the job, and the job files are removed from the queue.
+ * <p>
+ * A consumer claims a job by renaming its <code>.job</code> file, and touches
+ * the renamed file while it runs cellpose. A job whose claim is not touched
+ * for {@value #DEFAULT_STALE_TIMEOUT} ms, because its consumer died, fails.
+ * Canceling a claimed job writes a <code>.cancel</code> file, upon which the
+ * consumer stops cellpose and removes the file.
+ * <p>
+ * The queue folder is given by the shared folder of the job.
+ */
+@Plugin( type = ExecutionBackend.class, name = JobQueueBackend.KEY )
+public class JobQueueBackend implements ExecutionBackend
+{
+
+	public static final String KEY = "QUEUE";
+
+	static final String JOB_EXTENSION = ".job";
+
+	static final String DONE_EXTENSION = ".done";
+
+	static final String FAILED_EXTENSION = ".failed";
+
+	static final String CANCEL_EXTENSION = ".cancel";
+
+	/**
+	 * Appended to the name of a job file when a consumer claims it, followed
+	 * by the consumer name.
+	 */
+	static final String CLAIM_INFIX = ".claimed-";
+
+	/**
+	 * The time after which a claimed job whose claim is not touched is
+	 * considered abandoned, in milliseconds.
+	 */
+	public static final long DEFAULT_STALE_TIMEOUT = 120000;
+
+	private static final long POLL_INTERVAL = 500;
+
+	/**
+	 * How long a canceled job waits for its consumer to acknowledge, in
+	 * milliseconds.
+	 */
+	private static final long CANCEL_TIMEOUT = 10000;
+
+	private volatile boolean canceled;
+
+	private long staleTimeout = DEFAULT_STALE_TIMEOUT;
+
+	/**
+	 * Sets the time after which a claimed job whose claim is not touched by
+	 * its consumer is considered abandoned and fails.
+	 *
+	 * @param staleTimeout
+	 *            the timeout, in milliseconds.
+	 */
+	public void setStaleTimeout( final long staleTimeout )
+	{
+		this.staleTimeout = staleTimeout;
+	}
+
+	@Override
+	public File execute( final CellposeJob job ) throws IOException, InterruptedException
+	{
+		canceled = false;
+		final File queueDir = job.getSharedDir();
+		if ( queueDir == null )
+			throw new IOException( "No queue folder was specified." );
+		Files.createDirectories( queueDir.toPath() );
+
+		/*
+		 * Copy the images in the queue.
+		 */
+
+		final String id = UUID.randomUUID().toString();
+		final Path jobDir = Files.createDirectory( queueDir.toPath().resolve( id ) );
+		try (DirectoryStream< Path > images = Files.newDirectoryStream( job.getImagesDir().toPath() ))
+		{
+			for ( final Path image : images )
+				Files.copy( image, jobDir.resolve( image.getFileName() ) );
+		}
+
+		/*
+		 * Publish the job. It is written under another name first, so that
+		 * consumers never see a partial file.
+		 */
+
+		final List< String > args = new ArrayList<>( job.getArguments() );
+		final int dirIndex = args.indexOf( "--dir" );
+		if ( dirIndex >= 0 && dirIndex + 1 < args.size() )
+			args.set( dirIndex + 1, jobDir.toString() );
+
+		final Path tmp = queueDir.toPath().resolve( id + JOB_EXTENSION + ".tmp" );
+		final Path jobFile = queueDir.toPath().resolve( id + JOB_EXTENSION );
+		Files.write( tmp, args, StandardCharsets.UTF_8 );
+		Files.move( tmp, jobFile, StandardCopyOption.ATOMIC_MOVE );
+		job.getLogger().log( "Submitted job " + id + " to the queue in " + queueDir + ".\n" );
+
+		/*
+		 * Wait for a consumer to process it.
+		 */
+
+		final Path done = queueDir.toPath().resolve( id + DONE_EXTENSION );
+		final Path failed = queueDir.toPath().resolve( id + FAILED_EXTENSION );
+		/*
+		 * Compared with the local clock only, as the clocks of the consumers
+		 * may differ.
+		 */
+		long lastHeartbeat = -1;
+		long lastChange = System.currentTimeMillis();
+		while ( true )
+		{
+			if ( Files.exists( done ) )
+			{
+				retrieve( jobDir, job.getImagesDir().toPath() );
+				delete( jobDir );
+				Files.deleteIfExists( done );
+				return job.getImagesDir();
+			}
+
+			if ( Files.exists( failed ) )
+			{
+				final String msg = new String( Files.readAllBytes( failed ), StandardCharsets.UTF_8 ).trim();
+				delete( jobDir );
+				Files.deleteIfExists( failed );
+				throw new IOException( "Job " + id + " failed: " + msg );
+			}
+
+			if ( canceled )
+			{
+				withdraw( queueDir.toPath(), id, jobDir );
+				throw new InterruptedException( "Job " + id + " was canceled." );
+			}
+
+			final long now = System.currentTimeMillis();
+			final long heartbeat = Files.exists( jobFile ) ? -1 : getHeartbeat( queueDir.toPath(), id );
+			if ( heartbeat != lastHeartbeat || heartbeat < 0 )
+			{
+				lastHeartbeat = heartbeat;
+				lastChange = now;
+			}
+			else if ( now - lastChange > staleTimeout )
+			{
+				deleteClaims( queueDir.toPath(), id );
+				delete( jobDir );
+				throw new IOException( "Job " + id + " was claimed, but its consumer stopped responding for "
+						+ ( now - lastChange ) / 1000 + " s." );
+			}
+			Thread.sleep( POLL_INTERVAL );
+		}
+	}
+
+	@Override
+	public void cancel()
+	{
+		canceled = true;
+	}
+
+	/**
+	 * Withdraws a job. If it was claimed, asks its consumer to stop and waits
+	 * for it to acknowledge, then removes all the files of the job.
+	 */
+	private static void withdraw( final Path queueDir, final String id, final Path jobDir ) throws IOException, InterruptedException
+	{
+		if ( !Files.deleteIfExists( queueDir.resolve( id + JOB_EXTENSION ) ) )
+		{
+			final Path cancel = queueDir.resolve( id + CANCEL_EXTENSION );
+			Files.write( cancel, new byte[ 0 ] );
+			final long start = System.currentTimeMillis();
+			while ( Files.exists( cancel ) && System.currentTimeMillis() - start < CANCEL_TIMEOUT )
+				Thread.sleep( POLL_INTERVAL );
+			Files.deleteIfExists( cancel );
+			deleteClaims( queueDir, id );
+			// The job may have finished in the meantime.
+			Files.deleteIfExists( queueDir.resolve( id + DONE_EXTENSION ) );
+			Files.deleteIfExists( queueDir.resolve( id + FAILED_EXTENSION ) );
+		}
+		delete( jobDir );
+	}
+
+	/**
+	 * Returns the last modification time of the claims of a job, or -1 if it
+	 * has no claim.
+	 */
+	private static long getHeartbeat( final Path queueDir, final String id ) throws IOException
+	{
+		long heartbeat = -1;
+		try (DirectoryStream< Path > claims = Files.newDirectoryStream( queueDir, id + JOB_EXTENSION + CLAIM_INFIX + "*" ))
+		{
+			for ( final Path claim : claims )
+				heartbeat = Math.max( heartbeat, claim.toFile().lastModified() );
+		}
+		return heartbeat;
+	}
+
+	private static void deleteClaims( final Path queueDir, final String id ) throws IOException
+	{
+		try (DirectoryStream< Path > claims = Files.newDirectoryStream( queueDir, id + JOB_EXTENSION + CLAIM_INFIX + "*" ))
+		{
+			for ( final Path claim : claims )
+				Files.deleteIfExists( claim );
+		}
+	}
+
+	/**
+	 * Moves the results of a job, the files that are not in the images
+	 * folder, back to it.
+	 */
+	private static void retrieve( final Path jobDir, final Path imagesDir ) throws IOException
+	{
+		try (DirectoryStream< Path > files = Files.newDirectoryStream( jobDir ))
+		{
+			for ( final Path file : files )
+			{
+				final Path target = imagesDir.resolve( file.getFileName() );
+				if ( !Files.exists( target ) )
+					Files.move( file, target );
+			}
+		}
+	}
+
+	private static void delete( final Path dir ) throws IOException
+	{
+		if ( !Files.exists( dir ) )
+			return;
+		try (Stream< Path > paths = Files.walk( dir ))
+		{
+			final List< Path > list = new ArrayList<>();
+			paths.sorted( Comparator.reverseOrder() ).forEach( list::add );
+			for ( final Path path : list )
+				Files.deleteIfExists( path );
+		}
+	}
+}
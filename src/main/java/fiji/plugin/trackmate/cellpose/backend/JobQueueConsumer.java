@@ -0,0 +1,239 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import static fiji.plugin.trackmate.cellpose.backend.JobQueueBackend.CANCEL_EXTENSION;
+import static fiji.plugin.trackmate.cellpose.backend.JobQueueBackend.CLAIM_INFIX;
+import static fiji.plugin.trackmate.cellpose.backend.JobQueueBackend.DONE_EXTENSION;
+import static fiji.plugin.trackmate.cellpose.backend.JobQueueBackend.FAILED_EXTENSION;
+import static fiji.plugin.trackmate.cellpose.backend.JobQueueBackend.JOB_EXTENSION;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes the cellpose jobs submitted to a shared queue folder by the
+ * {@link JobQueueBackend}.
+ * <p>
+ * A consumer polls the queue folder for <code>.job</code> files, claims them
+ * by renaming them, runs cellpose on them with its own cellpose command, and
+ * writes a <code>.done</code> or <code>.failed</code> file when finished.
+ * Claiming relies on the atomicity of file renaming, so several consumers can
+ * poll the same queue. While cellpose runs, the consumer touches the claimed
+ * file every second, so that the submitter can tell that it is alive, and
+ * stops cellpose if the job is canceled.
+ * <p>
+ * On a cluster node, run it with:
+ *
+ * <pre>
+ * java -cp ... fiji.plugin.trackmate.cellpose.backend.JobQueueConsumer /shared/queue /path/to/python -m cellpose
+ * </pre>
+ *
+ * It can also run in a thread, for instance to process the queue locally.
+ */
+public class JobQueueConsumer implements Runnable
+{
+
+	private static final long POLL_INTERVAL = 1000;
+
+	private final File queueDir;
+
+	private final List< String > commandPrefix;
+
+	private final String claimSuffix;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a consumer for the specified queue.
+	 *
+	 * @param queueDir
+	 *            the queue folder.
+	 * @param commandPrefix
+	 *            the command that launches cellpose on this computer, to
+	 *            which the cellpose arguments of each job are appended.
+	 */
+	public JobQueueConsumer( final File queueDir, final List< String > commandPrefix )
+	{
+		this.queueDir = queueDir;
+		this.commandPrefix = commandPrefix;
+		this.claimSuffix = CLAIM_INFIX + hostName() + "-" + Long.toHexString( System.nanoTime() );
+	}
+
+	@Override
+	public void run()
+	{
+		stopped = false;
+		while ( !stopped )
+		{
+			try
+			{
+				if ( !processNext() )
+					Thread.sleep( POLL_INTERVAL );
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops polling the queue after the current job.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	/**
+	 * Claims and processes one job of the queue, if there is one.
+	 *
+	 * @return <code>true</code> if a job was processed.
+	 * @throws IOException
+	 *             if the queue folder cannot be read.
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while running cellpose.
+	 */
+	public boolean processNext() throws IOException, InterruptedException
+	{
+		final List< Path > jobs = new ArrayList<>();
+		try (DirectoryStream< Path > stream = Files.newDirectoryStream( queueDir.toPath(), "*" + JOB_EXTENSION ))
+		{
+			for ( final Path job : stream )
+				jobs.add( job );
+		}
+		Collections.sort( jobs );
+
+		for ( final Path job : jobs )
+		{
+			final Path claimed = job.resolveSibling( job.getFileName() + claimSuffix );
+			try
+			{
+				Files.move( job, claimed, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( final IOException e )
+			{
+				// Claimed by someone else.
+				continue;
+			}
+
+			final String name = job.getFileName().toString();
+			final String id = name.substring( 0, name.length() - JOB_EXTENSION.length() );
+			process( id, claimed );
+			return true;
+		}
+		return false;
+	}
+
+	private void process( final String id, final Path claimed ) throws IOException, InterruptedException
+	{
+		final List< String > cmd = new ArrayList<>( commandPrefix );
+		cmd.addAll( Files.readAllLines( claimed, StandardCharsets.UTF_8 ) );
+		final Path cancel = queueDir.toPath().resolve( id + CANCEL_EXTENSION );
+		String error = null;
+		try
+		{
+			final ProcessBuilder pb = new ProcessBuilder( cmd );
+			pb.redirectOutput( ProcessBuilder.Redirect.INHERIT );
+			pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+			final Process process = pb.start();
+			try
+			{
+				while ( !process.waitFor( POLL_INTERVAL, TimeUnit.MILLISECONDS ) )
+				{
+					if ( Files.exists( cancel ) )
+					{
+						process.destroy();
+						break;
+					}
+					// Heartbeat.
+					claimed.toFile().setLastModified( System.currentTimeMillis() );
+				}
+			}
+			finally
+			{
+				if ( process.isAlive() )
+					process.destroyForcibly();
+			}
+			if ( !Files.exists( cancel ) && process.exitValue() != 0 )
+				error = "Cellpose exited with code " + process.exitValue() + " on " + hostName() + ".";
+		}
+		catch ( final IOException e )
+		{
+			error = "Could not run cellpose on " + hostName() + ": " + e.getMessage();
+		}
+
+		if ( Files.exists( cancel ) )
+		{
+			// Acknowledged by removing the cancel file, the submitter cleans up.
+			Files.deleteIfExists( claimed );
+			Files.deleteIfExists( cancel );
+			return;
+		}
+
+		// The submitter cleans up the queue once the result is published.
+		Files.deleteIfExists( claimed );
+		final Path result = queueDir.toPath().resolve( id + ( error == null ? DONE_EXTENSION : FAILED_EXTENSION ) );
+		final Path tmp = queueDir.toPath().resolve( id + ".tmp" + claimSuffix );
+		Files.write( tmp, ( error == null ? "" : error ).getBytes( StandardCharsets.UTF_8 ) );
+		Files.move( tmp, result, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private static String hostName()
+	{
+		try
+		{
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch ( final IOException e )
+		{
+			return "localhost";
+		}
+	}
+
+	public static void main( final String[] args )
+	{
+		if ( args.length < 2 )
+		{
+			System.err.println( "Usage: JobQueueConsumer <queue folder> <cellpose command...>" );
+			System.exit( 1 );
+		}
+		final List< String > prefix = Arrays.asList( args ).subList( 1, args.length );
+		new JobQueueConsumer( new File( args[ 0 ] ), prefix ).run();
+	}
+}
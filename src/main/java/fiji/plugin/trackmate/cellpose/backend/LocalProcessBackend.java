@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.plugin.Plugin;
+
+/**
+ * Runs cellpose as a new local process for each job. This is the default
+ * backend. A job fails if cellpose exits with a non-zero code, for instance
+ * when it crashes or is killed for lack of memory.
+ */
+@Plugin( type = ExecutionBackend.class, name = LocalProcessBackend.KEY )
+public class LocalProcessBackend implements ExecutionBackend
+{
+
+	public static final String KEY = "LOCAL";
+
+	private volatile Process process;
+
+	private volatile boolean canceled;
+
+	@Override
+	public File execute( final CellposeJob job ) throws IOException, InterruptedException
+	{
+		final ProcessBuilder pb = new ProcessBuilder( job.getCommand() );
+		if ( job.getDevice() != null )
+			pb.environment().put( "CUDA_VISIBLE_DEVICES", job.getDevice() );
+		pb.redirectOutput( ProcessBuilder.Redirect.INHERIT );
+		pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+
+		canceled = false;
+		final int exitCode;
+		try
+		{
+			process = pb.start();
+			exitCode = process.waitFor();
+		}
+		finally
+		{
+			process = null;
+		}
+		if ( canceled )
+			throw new InterruptedException( "Cellpose was canceled." );
+		if ( exitCode != 0 )
+			throw new IOException( "Cellpose exited with code " + exitCode + "." );
+		return job.getImagesDir();
+	}
+
+	@Override
+	public void cancel()
+	{
+		canceled = true;
+		final Process p = process;
+		if ( p != null )
+			p.destroy();
+	}
+}
@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.plugin.Plugin;
+
+/**
+ * Runs cellpose jobs in a python worker process that stays alive between
+ * jobs, so that cellpose is imported and the model is loaded only once.
+ * <p>
+ * The worker is the <code>python/cellpose_worker.py</code> script shipped
+ * with this plugin. It reads one job per line on its standard input, as the
+ * cellpose arguments separated by tabs, and answers one line per job on its
+ * standard output: <code>OK</code> or <code>ERROR</code> followed by a
+ * message. Besides the masks, the worker writes the masks as a numpy array
+ * and the cell probability map, that are used when present.
+ * <p>
+ * Workers are shared by all detections, one per python executable and GPU
+ * device, and are stopped when Fiji quits. This backend requires cellpose to
+ * be configured with a python executable, not with a standalone cellpose
+ * executable. It does not run omnipose: the worker uses the cellpose API,
+ * and would ignore the omnipose options.
+ */
+@Plugin( type = ExecutionBackend.class, name = PersistentWorkerBackend.KEY )
+public class PersistentWorkerBackend implements ExecutionBackend
+{
+
+	public static final String KEY = "WORKER";
+
+	private static final String MODULE = "cellpose";
+
+	private static final String SCRIPT = "/python/cellpose_worker.py";
+
+	private static final Map< String, Worker > WORKERS = new HashMap<>();
+
+	static
+	{
+		Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+			synchronized ( WORKERS )
+			{
+				for ( final Worker worker : WORKERS.values() )
+					worker.process.destroy();
+			}
+		} ) );
+	}
+
+	private Worker current;
+
+	@Override
+	public File execute( final CellposeJob job ) throws IOException, InterruptedException
+	{
+		final List< String > prefix = job.getCommandPrefix();
+		final int m = prefix.indexOf( "-m" );
+		if ( m >= 0 && m + 1 < prefix.size() && !MODULE.equals( prefix.get( m + 1 ) ) )
+			throw new IOException( "The persistent worker only runs " + MODULE + ", not " + prefix.get( m + 1 )
+					+ ". Use the " + LocalProcessBackend.KEY + " execution backend instead." );
+
+		// Same python, but running the worker script instead of cellpose.
+		final List< String > cmd = PythonScripts.command( job.getCommandPrefix(), SCRIPT );
+		final String key = String.join( " ", cmd ) + "|" + job.getDevice();
+
+		final Worker worker = getWorker( key, cmd, job );
+		current = worker;
+		try
+		{
+			synchronized ( worker )
+			{
+				final String reply = worker.submit( String.join( "\t", job.getArguments() ) );
+				if ( reply == null )
+				{
+					// The worker died, we will start a new one next time.
+					removeWorker( key, worker );
+					throw new IOException( "The cellpose worker stopped unexpectedly." );
+				}
+				if ( !reply.startsWith( "OK" ) )
+					throw new IOException( "The cellpose worker reported an error: " + reply );
+			}
+		}
+		finally
+		{
+			current = null;
+		}
+		return job.getImagesDir();
+	}
+
+	@Override
+	public void cancel()
+	{
+		/*
+		 * The worker cannot interrupt a job, so we stop it. A new one will be
+		 * started for the next job.
+		 */
+		final Worker worker = current;
+		if ( worker != null )
+			worker.process.destroy();
+	}
+
+	private static Worker getWorker( final String key, final List< String > cmd, final CellposeJob job ) throws IOException
+	{
+		synchronized ( WORKERS )
+		{
+			final Worker worker = WORKERS.get( key );
+			if ( worker != null && worker.process.isAlive() )
+				return worker;
+
+			job.getLogger().log( "Starting a persistent cellpose worker.\n" );
+			final ProcessBuilder pb = new ProcessBuilder( cmd );
+			if ( job.getDevice() != null )
+				pb.environment().put( "CUDA_VISIBLE_DEVICES", job.getDevice() );
+			pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+			final Worker newWorker = new Worker( pb.start() );
+			WORKERS.put( key, newWorker );
+			return newWorker;
+		}
+	}
+
+	private static void removeWorker( final String key, final Worker worker )
+	{
+		synchronized ( WORKERS )
+		{
+			WORKERS.remove( key, worker );
+		}
+		worker.process.destroy();
+	}
+
+	private static final class Worker
+	{
+
+		private final Process process;
+
+		private final BufferedWriter in;
+
+		private final BufferedReader out;
+
+		private Worker( final Process process )
+		{
+			this.process = process;
+			this.in = new BufferedWriter( new OutputStreamWriter( process.getOutputStream(), StandardCharsets.UTF_8 ) );
+			this.out = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) );
+		}
+
+		/**
+		 * Sends a job and waits for the reply. Returns <code>null</code> if
+		 * the worker stopped.
+		 */
+		private String submit( final String job )
+		{
+			try
+			{
+				in.write( job );
+				in.newLine();
+				in.flush();
+				return out.readLine();
+			}
+			catch ( final IOException e )
+			{
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utilities to run the python scripts shipped with this plugin, in the
+ * <code>python</code> folder of the resources, with the python executable of
+ * cellpose.
+ */
+public class PythonScripts
+{
+
+	private static final Map< String, Path > EXTRACTED = new HashMap<>();
+
+	private PythonScripts()
+	{}
+
+	/**
+	 * Extracts the specified script from the plugin jar to a temporary file,
+	 * the first time it is needed, and returns the path to this file.
+	 *
+	 * @param resource
+	 *            the path to the script in the resources, for instance
+	 *            <code>/python/cellpose_worker.py</code>.
+	 * @return the path to the extracted script.
+	 * @throws IOException
+	 *             if the script cannot be found or extracted.
+	 */
+	public static synchronized Path extract( final String resource ) throws IOException
+	{
+		final Path extracted = EXTRACTED.get( resource );
+		if ( extracted != null && Files.exists( extracted ) )
+			return extracted;
+
+		final Path file = Files.createTempFile( "TrackMate-cellpose_", ".py" );
+		file.toFile().deleteOnExit();
+		try (InputStream is = PythonScripts.class.getResourceAsStream( resource ))
+		{
+			if ( is == null )
+				throw new IOException( "Could not find the script " + resource );
+			Files.copy( is, file, StandardCopyOption.REPLACE_EXISTING );
+		}
+		EXTRACTED.put( resource, file );
+		return file;
+	}
+
+	/**
+	 * Returns the command that runs the specified script with the python
+	 * executable of the specified cellpose command line.
+	 *
+	 * @param cellposeCommand
+	 *            the cellpose command line, as built by the cellpose settings.
+	 * @param resource
+	 *            the path to the script in the resources.
+	 * @return a new list, with the command that runs the script, without
+	 *         arguments.
+	 * @throws IOException
+	 *             if cellpose is not run from a python executable, or if the
+	 *             script cannot be extracted.
+	 */
+	public static List< String > command( final List< String > cellposeCommand, final String resource ) throws IOException
+	{
+		final int m = cellposeCommand.indexOf( "-m" );
+		if ( m < 0 )
+			throw new IOException( "Running " + resource + " requires cellpose to be run from a python executable." );
+
+		final List< String > cmd = new ArrayList<>( cellposeCommand.subList( 0, m ) );
+		cmd.add( extract( resource ).toString() );
+		return cmd;
+	}
+}
@@ -81,12 +81,13 @@ public class OmniposeDetectorConfigurationPanel extends CellposeDetectorConfigur
 		ftfDiameter.setValue( settings.get( KEY_CELL_DIAMETER ) );
 		chckbxUseGPU.setSelected( ( boolean ) settings.get( KEY_USE_GPU ) );
 		chckbxSimplify.setSelected( ( boolean ) settings.get( KEY_SIMPLIFY_CONTOURS ) );
+		setInferenceSettings( settings );
 	}
 
 	@Override
 	public Map< String, Object > getSettings()
 	{
-		final HashMap< String, Object > settings = new HashMap<>( 9 );
+		final HashMap< String, Object > settings = new HashMap<>( 13 );
 
 		settings.put( KEY_OMNIPOSE_PYTHON_FILEPATH, tfCellposeExecutable.getText() );
 		settings.put( KEY_OMNIPOSE_CUSTOM_MODEL_FILEPATH, tfCustomPath.getText() );
@@ -99,6 +100,7 @@ public class OmniposeDetectorConfigurationPanel extends CellposeDetectorConfigur
 		settings.put( KEY_CELL_DIAMETER, diameter );
 		settings.put( KEY_SIMPLIFY_CONTOURS, chckbxSimplify.isSelected() );
 		settings.put( KEY_USE_GPU, chckbxUseGPU.isSelected() );
+		putInferenceSettings( settings );
 
 		settings.put( KEY_LOGGER, logger );
 
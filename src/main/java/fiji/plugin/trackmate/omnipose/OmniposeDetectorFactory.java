@@ -32,6 +32,7 @@ import static fiji.plugin.trackmate.io.IOUtils.writeTargetChannel;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -151,6 +152,10 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				.diameter( diameter )
 				.useGPU( useGPU )
 				.simplifyContours( simplifyContours )
+				.batchSize( getOptional( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE ) )
+				.tile( getOptional( KEY_TILE, DEFAULT_TILE ) )
+				.tileOverlap( getOptional( KEY_TILE_OVERLAP, DEFAULT_TILE_OVERLAP ) )
+				.resample( getOptional( KEY_RESAMPLE, DEFAULT_RESAMPLE ) )
 				.get();
 
 		// Logger.
@@ -160,6 +165,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				interval,
 				omniposeSettings,
 				logger );
+		configureDetector( detector );
 		return detector;
 	}
 
@@ -175,6 +181,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && writeAttribute( settings, element, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok && writeRuntimeSettings( settings, element, errorHolder );
 
 		final PretrainedModelOmnipose model = ( PretrainedModelOmnipose ) settings.get( KEY_OMNIPOSE_MODEL );
 		element.setAttribute( KEY_OMNIPOSE_MODEL, model.name() );
@@ -198,6 +205,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_DIAMETER, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_USE_GPU, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		ok = ok && readRuntimeSettings( element, settings, errorHolder );
 
 		// Read model.
 		final String str = element.getAttributeValue( KEY_OMNIPOSE_MODEL );
@@ -230,6 +238,9 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		settings.put( KEY_SIMPLIFY_CONTOURS, true );
 		settings.put( KEY_LOGGER, Logger.DEFAULT_LOGGER );
 		settings.put( KEY_OMNIPOSE_CUSTOM_MODEL_FILEPATH, DEFAULT_OMNIPOSE_CUSTOM_MODEL_FILEPATH );
+		settings.put( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE );
+		settings.put( KEY_TILE, DEFAULT_TILE );
+		settings.put( KEY_TILE_OVERLAP, DEFAULT_TILE_OVERLAP );
 		return settings;
 	}
 
@@ -246,6 +257,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok & checkParameter( settings, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok & checkRuntimeSettings( settings, errorHolder );
 
 		// If we have a logger, test it is of the right class.
 		final Object loggerObj = settings.get( KEY_LOGGER );
@@ -264,9 +276,10 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				KEY_CELL_DIAMETER,
 				KEY_USE_GPU,
 				KEY_SIMPLIFY_CONTOURS );
-		final List< String > optionalKeys = Arrays.asList(
+		final List< String > optionalKeys = new ArrayList<>( Arrays.asList(
 				KEY_OMNIPOSE_CUSTOM_MODEL_FILEPATH,
-				KEY_LOGGER );
+				KEY_LOGGER ) );
+		optionalKeys.addAll( RUNTIME_KEYS.keySet() );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -26,6 +26,7 @@ import java.util.Collections;
 import java.util.List;
 
 import fiji.plugin.trackmate.cellpose.AbstractCellposeSettings;
+import fiji.plugin.trackmate.cellpose.CommandDialect;
 
 public class OmniposeSettings extends AbstractCellposeSettings
 {
@@ -43,10 +44,28 @@ public class OmniposeSettings extends AbstractCellposeSettings
 		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
 	}
 
+	public OmniposeSettings(
+			final String omniposePythonPath,
+			final PretrainedModelOmnipose model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final int batchSize,
+			final boolean tile,
+			final double tileOverlap,
+			final Boolean resample )
+	{
+		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				batchSize, tile, tileOverlap, resample );
+	}
+
 	@Override
-	public List< String > toCmdLine( final String imagesDir )
+	public List< String > toCmdLine( final String imagesDir, final CommandDialect dialect )
 	{
-		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir ) );
+		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir, dialect ) );
 		// omnipose executable adds it anyway, but let's make sure.
 		cmd.add( "--omni" );
 		return Collections.unmodifiableList( cmd );
@@ -82,6 +101,14 @@ public class OmniposeSettings extends AbstractCellposeSettings
 
 		protected String customModelPath = "";
 
+		protected int batchSize = DEFAULT_BATCH_SIZE;
+
+		protected boolean tile = DEFAULT_TILE;
+
+		protected double tileOverlap = DEFAULT_TILE_OVERLAP;
+
+		protected Boolean resample = DEFAULT_RESAMPLE;
+
 		public Builder channel1( final int ch )
 		{
 			this.chan = ch;
@@ -130,6 +157,30 @@ public class OmniposeSettings extends AbstractCellposeSettings
 			return this;
 		}
 
+		public Builder batchSize( final int batchSize )
+		{
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Builder tile( final boolean tile )
+		{
+			this.tile = tile;
+			return this;
+		}
+
+		public Builder tileOverlap( final double tileOverlap )
+		{
+			this.tileOverlap = tileOverlap;
+			return this;
+		}
+
+		public Builder resample( final Boolean resample )
+		{
+			this.resample = resample;
+			return this;
+		}
+
 		public OmniposeSettings get()
 		{
 			return new OmniposeSettings(
@@ -140,7 +191,11 @@ public class OmniposeSettings extends AbstractCellposeSettings
 					chan2,
 					diameter,
 					useGPU,
-					simplifyContours );
+					simplifyContours,
+					batchSize,
+					tile,
+					tileOverlap,
+					resample );
 		}
 
 	}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import fiji.plugin.trackmate.cellpose.CommandDialect;
 import fiji.plugin.trackmate.omnipose.OmniposeSettings;
 
 public class AdvancedOmniposeSettings extends OmniposeSettings
@@ -24,22 +25,40 @@ public class AdvancedOmniposeSettings extends OmniposeSettings
 			final double flowThreshold,
 			final double cellProbThreshold )
 	{
-		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
+		this( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours, flowThreshold, cellProbThreshold,
+				DEFAULT_BATCH_SIZE, DEFAULT_TILE, DEFAULT_TILE_OVERLAP, DEFAULT_RESAMPLE );
+	}
+
+	public AdvancedOmniposeSettings(
+			final String omniposePythonPath,
+			final PretrainedModelOmnipose model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final double flowThreshold,
+			final double cellProbThreshold,
+			final int batchSize,
+			final boolean tile,
+			final double tileOverlap,
+			final Boolean resample )
+	{
+		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				batchSize, tile, tileOverlap, resample );
 		this.flowThreshold = flowThreshold;
 		this.cellProbThreshold = cellProbThreshold;
 	}
 
 	@Override
-	public List< String > toCmdLine( final String imagesDir )
+	public List< String > toCmdLine( final String imagesDir, final CommandDialect dialect )
 	{
-		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir ) );
+		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir, dialect ) );
 		cmd.add( "--flow_threshold" );
 		cmd.add( String.valueOf( flowThreshold ) );
-		/*
-		 * Careful! Because omnipose is still based on cellpose 1, the
-		 * cellprob_threshold parameter is still called mask_threshold.
-		 */
-		cmd.add( "--mask_threshold" );
+		// mask_threshold with the omnipose versions based on cellpose 1.
+		cmd.add( dialect.getCellProbThresholdFlag() );
 		cmd.add( String.valueOf( cellProbThreshold ) );
 		return Collections.unmodifiableList( cmd );
 	}
@@ -124,6 +143,34 @@ public class AdvancedOmniposeSettings extends OmniposeSettings
 			return this;
 		}
 
+		@Override
+		public Builder batchSize( final int batchSize )
+		{
+			super.batchSize( batchSize );
+			return this;
+		}
+
+		@Override
+		public Builder tile( final boolean tile )
+		{
+			super.tile( tile );
+			return this;
+		}
+
+		@Override
+		public Builder tileOverlap( final double tileOverlap )
+		{
+			super.tileOverlap( tileOverlap );
+			return this;
+		}
+
+		@Override
+		public Builder resample( final Boolean resample )
+		{
+			super.resample( resample );
+			return this;
+		}
+
 		@Override
 		public AdvancedOmniposeSettings get()
 		{
@@ -137,7 +184,11 @@ public class AdvancedOmniposeSettings extends OmniposeSettings
 					useGPU,
 					simplifyContours,
 					flowThreshold,
-					cellProbThreshold );
+					cellProbThreshold,
+					batchSize,
+					tile,
+					tileOverlap,
+					resample );
 		}
 	}
 }
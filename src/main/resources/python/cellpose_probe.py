@@ -0,0 +1,99 @@
+"""
+Environment probe for TrackMate.
+
+Takes the name of the module to probe, cellpose or omnipose, and prints on
+stdout one line starting with TRACKMATE_PROBE followed by a JSON report:
+ - version: the version of the module.
+ - gpu: whether a GPU can be used.
+ - flags: the command line flags accepted by the module, without dashes.
+ - model_dir: the folder where the pretrained models are stored.
+ - package_dir: the folder of the module.
+ - metadata_dir: the folder of the installed package metadata, whose name
+   changes with the version.
+ - error: a message if the module cannot be used.
+Everything else is printed on stderr.
+"""
+import importlib
+import json
+import os
+import re
+import subprocess
+import sys
+
+OUT = sys.stdout
+sys.stdout = sys.stderr
+
+
+def version(module, mod):
+    try:
+        from importlib import metadata
+        return metadata.version(module)
+    except Exception:
+        pass
+    try:
+        import pkg_resources
+        return pkg_resources.get_distribution(module).version
+    except Exception:
+        return str(getattr(mod, '__version__', ''))
+
+
+def gpu():
+    try:
+        import torch
+        if torch.cuda.is_available():
+            return True
+        mps = getattr(torch.backends, 'mps', None)
+        return bool(mps is not None and mps.is_available())
+    except Exception:
+        return False
+
+
+def flags(module):
+    try:
+        res = subprocess.run([sys.executable, '-m', module, '--help'],
+                             stdout=subprocess.PIPE, stderr=subprocess.STDOUT,
+                             universal_newlines=True, timeout=300)
+        return sorted(set(re.findall(r'--([A-Za-z0-9_]+)', res.stdout)))
+    except Exception:
+        return []
+
+
+def model_dir(module):
+    for name in (module + '.models', 'cellpose.models', 'cellpose_omni.models'):
+        try:
+            models = importlib.import_module(name)
+            return str(models.MODEL_DIR)
+        except Exception:
+            continue
+    return ''
+
+
+def metadata_dir(module):
+    try:
+        from importlib import metadata
+        path = getattr(metadata.distribution(module), '_path', None)
+        return str(path) if path is not None else ''
+    except Exception:
+        return ''
+
+
+def main():
+    module = sys.argv[1] if len(sys.argv) > 1 else 'cellpose'
+    try:
+        mod = importlib.import_module(module)
+        report = {
+            'version': version(module, mod),
+            'gpu': gpu(),
+            'flags': flags(module),
+            'model_dir': model_dir(module),
+            'package_dir': os.path.dirname(os.path.abspath(mod.__file__)),
+            'metadata_dir': metadata_dir(module),
+        }
+    except Exception as e:
+        report = {'error': 'Could not import %s: %s' % (module, e)}
+    OUT.write('TRACKMATE_PROBE ' + json.dumps(report) + '\n')
+    OUT.flush()
+
+
+if __name__ == '__main__':
+    main()
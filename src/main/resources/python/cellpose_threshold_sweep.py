@@ -0,0 +1,131 @@
+"""
+Threshold sweep for TrackMate.
+
+Runs the cellpose network once on each image of a folder, then rebuilds the
+masks from the same flows and cell probability map for every combination of
+flow threshold and cell probability threshold given on the command line.
+
+Takes the cellpose command line arguments, plus:
+ --flow_thresholds: comma-separated flow thresholds.
+ --cellprob_thresholds: comma-separated cell probability thresholds.
+
+The network runs with the batch size, tiling and resampling options of the
+detection. The images are already downsampled, and the diameter scaled to
+match. The masks are rebuilt as cellpose does after the network pass: with
+200 iterations of the dynamics at the nominal diameter, scaled with the
+image, and resized to the image when it was not resampled. The combinations
+are evaluated in parallel, on a pool of processes.
+
+For each image <name>.tif, and each flow threshold index i and cell
+probability threshold index j, writes <name>_sweep_<i>_<j>_cp_masks.npy next
+to it.
+"""
+import argparse
+import inspect
+import os
+from concurrent.futures import ProcessPoolExecutor
+
+import numpy as np
+
+
+def parse():
+    parser = argparse.ArgumentParser()
+    parser.add_argument('--dir', required=True)
+    parser.add_argument('--chan', type=int, default=0)
+    parser.add_argument('--chan2', type=int, default=0)
+    parser.add_argument('--use_gpu', action='store_true')
+    parser.add_argument('--diameter', type=float, default=30.)
+    parser.add_argument('--pretrained_model', default='cyto')
+    parser.add_argument('--batch_size', type=int, default=None)
+    parser.add_argument('--no_tile', action='store_true')
+    parser.add_argument('--tile_overlap', type=float, default=None)
+    parser.add_argument('--resample', action='store_true')
+    parser.add_argument('--no_resample', action='store_true')
+    parser.add_argument('--flow_thresholds', required=True)
+    parser.add_argument('--cellprob_thresholds', required=True)
+    args, _ = parser.parse_known_args()
+    return args
+
+
+def floats(csv):
+    return [float(v) for v in csv.split(',') if v.strip()]
+
+
+def eval_options(args):
+    # Only the options that were passed, so that cellpose defaults apply.
+    options = {}
+    if args.batch_size is not None:
+        options['batch_size'] = args.batch_size
+    if args.no_tile:
+        options['tile'] = False
+    if args.tile_overlap is not None:
+        options['tile_overlap'] = args.tile_overlap
+    if args.resample:
+        options['resample'] = True
+    elif args.no_resample:
+        options['resample'] = False
+    return options
+
+
+def is_resampled(model, options):
+    if 'resample' in options:
+        return options['resample']
+    # The default of the installed version.
+    param = inspect.signature(model.eval).parameters.get('resample')
+    return bool(param.default) if param is not None else False
+
+
+def sweep(path, i, j, dP, cellprob, ft, ct, niter, resize):
+    from cellpose import dynamics
+    res = dynamics.compute_masks(dP, cellprob, niter=niter, cellprob_threshold=ct,
+                                 flow_threshold=ft, resize=resize)
+    masks = res[0] if isinstance(res, tuple) else res
+    np.save(path, masks.astype(np.uint32))
+    return i, j
+
+
+def main():
+    from cellpose import core, io, models
+
+    args = parse()
+    flow_thresholds = floats(args.flow_thresholds)
+    cellprob_thresholds = floats(args.cellprob_thresholds)
+
+    gpu = args.use_gpu and core.use_gpu()
+    if os.path.exists(args.pretrained_model):
+        model = models.CellposeModel(gpu=gpu, pretrained_model=args.pretrained_model)
+    else:
+        model = models.Cellpose(gpu=gpu, model_type=args.pretrained_model)
+
+    channels = [args.chan, args.chan2]
+    diameter = args.diameter if args.diameter > 0 else None
+    options = eval_options(args)
+    resample = is_resampled(model, options)
+    diam_mean = float(getattr(model, 'diam_mean', 30.))
+
+    with ProcessPoolExecutor() as pool:
+        jobs = []
+        for f in io.get_image_files(args.dir, '_masks'):
+            img = io.imread(f)
+            # Network pass, once per image.
+            out = model.eval(img, channels=channels, diameter=diameter, **options)
+            masks, flows = out[0], out[1]
+            dP, cellprob = flows[1], flows[2]
+            # The diameter estimated by the size model, if any.
+            diam = out[3] if len(out) > 3 else diameter
+            diam = float(np.mean(diam)) if diam is not None else 0.
+            rescale = diam_mean / diam if diam > 0 else 1.
+            niter = int(200 / rescale)
+            resize = None if resample or rescale == 1. else masks.shape[:2]
+            base = os.path.splitext(f)[0]
+            # Post-processing only, for each combination.
+            for i, ft in enumerate(flow_thresholds):
+                for j, ct in enumerate(cellprob_thresholds):
+                    path = '%s_sweep_%d_%d_cp_masks.npy' % (base, i, j)
+                    jobs.append(pool.submit(sweep, path, i, j, dP, cellprob, ft, ct, niter, resize))
+        for job in jobs:
+            job.result()
+
+
+if __name__ == '__main__':
+    main()
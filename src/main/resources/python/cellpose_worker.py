@@ -0,0 +1,121 @@
+"""
+Persistent cellpose worker for TrackMate.
+
+Reads one job per line on stdin: the cellpose command line arguments,
+separated by tabs. Segments the images of the job folder with a model kept
+in memory between jobs, and answers one line per job on stdout: OK, or ERROR
+followed by a message. Everything else is printed on stderr.
+
+For each image <name>.tif, writes next to it:
+ - <name>_cp_masks.npy and, with --save_png, <name>_cp_masks.png: the masks.
+ - <name>_cp_prob.tif: the cell probability map, as logits.
+ - <name>_cp_outlines.txt, with --save_txt: the outlines.
+"""
+import argparse
+import os
+import sys
+import traceback
+
+import numpy as np
+
+# Keep stdout for the replies, and send anything printed by cellpose to stderr.
+REPLIES = sys.stdout
+sys.stdout = sys.stderr
+
+MODELS = {}
+
+
+def reply(msg):
+    REPLIES.write(msg + '\n')
+    REPLIES.flush()
+
+
+def parse(argv):
+    # Only the arguments passed by TrackMate. Unknown ones are ignored.
+    parser = argparse.ArgumentParser()
+    parser.add_argument('--dir', default='')
+    parser.add_argument('--chan', type=int, default=0)
+    parser.add_argument('--chan2', type=int, default=0)
+    parser.add_argument('--use_gpu', action='store_true')
+    parser.add_argument('--diameter', type=float, default=30.)
+    parser.add_argument('--pretrained_model', default='cyto')
+    parser.add_argument('--flow_threshold', type=float, default=0.4)
+    parser.add_argument('--cellprob_threshold', type=float, default=0.)
+    parser.add_argument('--save_png', action='store_true')
+    parser.add_argument('--save_txt', action='store_true')
+    parser.add_argument('--batch_size', type=int, default=None)
+    parser.add_argument('--no_tile', action='store_true')
+    parser.add_argument('--tile_overlap', type=float, default=None)
+    parser.add_argument('--resample', action='store_true')
+    parser.add_argument('--no_resample', action='store_true')
+    args, _ = parser.parse_known_args(argv)
+    return args
+
+
+def get_model(args):
+    from cellpose import core, models
+    key = (args.pretrained_model, args.use_gpu)
+    if key not in MODELS:
+        gpu = args.use_gpu and core.use_gpu()
+        if os.path.exists(args.pretrained_model):
+            model = models.CellposeModel(gpu=gpu, pretrained_model=args.pretrained_model)
+        else:
+            model = models.Cellpose(gpu=gpu, model_type=args.pretrained_model)
+        MODELS[key] = model
+    return MODELS[key]
+
+
+def eval_options(args):
+    # Only the options that were passed, so that cellpose defaults apply.
+    options = {}
+    if args.batch_size is not None:
+        options['batch_size'] = args.batch_size
+    if args.no_tile:
+        options['tile'] = False
+    if args.tile_overlap is not None:
+        options['tile_overlap'] = args.tile_overlap
+    if args.resample:
+        options['resample'] = True
+    elif args.no_resample:
+        options['resample'] = False
+    return options
+
+
+def run(args):
+    from cellpose import io, utils
+    import tifffile
+
+    model = get_model(args)
+    channels = [args.chan, args.chan2]
+    diameter = args.diameter if args.diameter > 0 else None
+    for f in io.get_image_files(args.dir, '_masks'):
+        img = io.imread(f)
+        out = model.eval(img, channels=channels, diameter=diameter,
+                         flow_threshold=args.flow_threshold,
+                         cellprob_threshold=args.cellprob_threshold,
+                         **eval_options(args))
+        masks, flows = out[0], out[1]
+        base = os.path.splitext(f)[0]
+        np.save(base + '_cp_masks.npy', masks.astype(np.uint32 if masks.max() > 65535 else np.uint16))
+        if args.save_png:
+            io.imsave(base + '_cp_masks.png', masks.astype(np.uint16))
+        tifffile.imwrite(base + '_cp_prob.tif', np.asarray(flows[2], dtype=np.float32))
+        if args.save_txt:
+            io.outlines_to_text(base, utils.outlines_list(masks))
+
+
+def main():
+    for line in sys.stdin:
+        line = line.rstrip('\r\n')
+        if not line:
+            continue
+        try:
+            run(parse(line.split('\t')))
+            reply('OK')
+        except Exception as e:
+            traceback.print_exc()
+            reply('ERROR ' + str(e).replace('\n', ' '))
+
+
+if __name__ == '__main__':
+    main()
@@ -1,13 +1,27 @@
 package fiji.plugin.trackmate;
 
+import java.io.File;
+import java.io.IOException;
+
+import fiji.plugin.trackmate.cellpose.CellposeSpotFile;
 import ij.ImageJ;
 
 public class LoadCellposeResultsDemo
 {
 
-	public static void main( final String[] args )
+	public static void main( final String[] args ) throws IOException
 	{
 		ImageJ.main( args );
-		new LoadTrackMatePlugIn().run( "" );
+		if ( args.length == 0 )
+		{
+			new LoadTrackMatePlugIn().run( "" );
+			return;
+		}
+
+		// A file saved with CellposeSpotFile.writeXml, ROIs from its spot file.
+		final long start = System.currentTimeMillis();
+		final Model model = CellposeSpotFile.readXml( new File( args[ 0 ] ) );
+		System.out.println( "Loaded " + model.getSpots().getNSpots( false ) + " spots in "
+				+ ( System.currentTimeMillis() - start ) + " ms." );
 	}
 }
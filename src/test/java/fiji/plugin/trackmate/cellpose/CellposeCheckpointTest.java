@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Checks that resuming a detection keeps the masks of the batches that
+ * returned and the estimated cell diameter, and trims the last mask of a
+ * batch that crashed only once.
+ */
+public class CellposeCheckpointTest
+{
+
+	private static final String KEY = "cellpose --dir <dir>\nmovie.tif";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File workDir;
+
+	private List< ImagePlus > imps;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		workDir = folder.newFolder( "work" );
+		imps = new ArrayList<>();
+		for ( int t = 0; t < 4; t++ )
+			imps.add( IJ.createImage( "frame_" + t, "8-bit black", 4, 4, 1 ) );
+	}
+
+	@Test
+	public void testCompleteBatchIsKept() throws IOException
+	{
+		final CellposeCheckpoint checkpoint = CellposeCheckpoint.open( workDir, KEY, "test" );
+		final File dir = batch( checkpoint, "task_a", 0, 1, 2, 3 );
+		assertTrue( checkpoint.markComplete( Collections.singletonList( dir.getPath() ) ).isEmpty() );
+
+		// An identical rerun has nothing to segment, and deletes nothing.
+		for ( int run = 0; run < 2; run++ )
+		{
+			final CellposeCheckpoint reopened = CellposeCheckpoint.open( workDir, KEY, "test" );
+			assertTrue( reopened.getPendingFrames( imps ).isEmpty() );
+			assertEquals( 4, masks( dir ) );
+		}
+	}
+
+	@Test
+	public void testCrashedBatchIsTrimmedOnce() throws IOException
+	{
+		final CellposeCheckpoint checkpoint = CellposeCheckpoint.open( workDir, KEY, "test" );
+		final File done = batch( checkpoint, "task_a", 0, 1 );
+		checkpoint.markComplete( Collections.singletonList( done.getPath() ) );
+		// Crashed while writing the mask of frame 3.
+		final File crashed = batch( checkpoint, "task_b", 2, 3 );
+		new File( crashed, "frame_3.tif" ).setLastModified( 0 );
+		new File( crashed, "frame_2_cp_masks.tif" ).setLastModified( 1000 );
+		new File( crashed, "frame_3_cp_masks.tif" ).setLastModified( 2000 );
+
+		final CellposeCheckpoint resumed = CellposeCheckpoint.open( workDir, KEY, "test" );
+		assertEquals( Arrays.asList( "frame_3" ), titles( resumed.getPendingFrames( imps ) ) );
+		assertFalse( new File( crashed, "frame_3_cp_masks.tif" ).exists() );
+
+		// The remaining masks are whole: later runs keep them.
+		final CellposeCheckpoint again = CellposeCheckpoint.open( workDir, KEY, "test" );
+		assertEquals( Arrays.asList( "frame_3" ), titles( again.getPendingFrames( imps ) ) );
+		assertTrue( new File( crashed, "frame_2_cp_masks.tif" ).exists() );
+		assertEquals( 2, masks( done ) );
+	}
+
+	@Test
+	public void testBatchWithMissingMaskIsNotTrimmed() throws IOException
+	{
+		final CellposeCheckpoint checkpoint = CellposeCheckpoint.open( workDir, KEY, "test" );
+		final File dir = batch( checkpoint, "task_a", 0, 1, 2 );
+		Files.write( new File( dir, "frame_3.tif" ).toPath(), new byte[ 0 ] );
+		assertEquals( Arrays.asList( "frame_3" ), checkpoint.markComplete( Collections.singletonList( dir.getPath() ) ) );
+
+		final CellposeCheckpoint resumed = CellposeCheckpoint.open( workDir, KEY, "test" );
+		assertEquals( Arrays.asList( "frame_3" ), titles( resumed.getPendingFrames( imps ) ) );
+		assertEquals( 3, masks( dir ) );
+	}
+
+	@Test
+	public void testDiameterIsKept() throws IOException
+	{
+		final CellposeCheckpoint checkpoint = CellposeCheckpoint.open( workDir, KEY, "test" );
+		assertFalse( checkpoint.hasDiameter() );
+		checkpoint.setDiameter( 17.5 );
+
+		final CellposeCheckpoint resumed = CellposeCheckpoint.open( workDir, KEY, "test" );
+		assertTrue( resumed.hasDiameter() );
+		assertEquals( 17.5, resumed.getDiameter(), 0. );
+
+		// Another detection estimates its own.
+		assertFalse( CellposeCheckpoint.open( workDir, KEY + " --flow_threshold 0.6", "test" ).hasDiameter() );
+	}
+
+	/**
+	 * Creates a task folder with the specified frames and their masks.
+	 */
+	private static File batch( final CellposeCheckpoint checkpoint, final String name, final int... frames ) throws IOException
+	{
+		final File dir = Files.createDirectory( checkpoint.getRunDir().resolve( name ) ).toFile();
+		for ( final int t : frames )
+		{
+			Files.write( new File( dir, "frame_" + t + ".tif" ).toPath(), new byte[ 0 ] );
+			Files.write( new File( dir, "frame_" + t + "_cp_masks.tif" ).toPath(), new byte[ 0 ] );
+		}
+		return dir;
+	}
+
+	private static int masks( final File dir )
+	{
+		return dir.list( ( d, name ) -> name.contains( "_cp_masks." ) ).length;
+	}
+
+	private static List< String > titles( final List< ImagePlus > imps )
+	{
+		final List< String > titles = new ArrayList<>();
+		for ( final ImagePlus imp : imps )
+			titles.add( imp.getShortTitle() );
+		return titles;
+	}
+}
@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Logger;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Checks that the frames are split over the GPU devices, each cellpose
+ * process seeing only its own device. Cellpose is replaced by a stub script
+ * that records the <code>CUDA_VISIBLE_DEVICES</code> value it received in the
+ * folder of the frames it was given.
+ */
+public class CellposeGpuDevicesTest
+{
+
+	private static final int N_FRAMES = 8;
+
+	private static final int N_TASKS = 4;
+
+	private static final String STUB = "#!/bin/sh\n"
+			+ "while [ $# -gt 0 ]; do\n"
+			+ "  if [ \"$1\" = \"--dir\" ]; then dir=\"$2\"; fi\n"
+			+ "  shift\n"
+			+ "done\n"
+			+ "echo \"$CUDA_VISIBLE_DEVICES\" > \"$dir/device.txt\"\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File stub;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		assumeFalse( IJ.isWindows() );
+		stub = folder.newFile( "cellpose-stub.sh" );
+		Files.write( stub.toPath(), STUB.getBytes( StandardCharsets.UTF_8 ) );
+		stub.setExecutable( true );
+	}
+
+	@Test
+	public void testEachShardSeesItsDevice() throws IOException
+	{
+		final Map< String, String > devices = run( true, Arrays.asList( "0", "1" ) );
+		assertEquals( N_FRAMES, devices.size() );
+		for ( int t = 0; t < N_FRAMES; t++ )
+		{
+			// Frame t goes to task t % N_TASKS, pinned to device task % 2.
+			final String expected = "" + ( ( t % N_TASKS ) % 2 );
+			assertEquals( "Device of frame " + t, expected, devices.get( "frame_" + t ) );
+		}
+	}
+
+	@Test
+	public void testSingleDevice() throws IOException
+	{
+		final Map< String, String > devices = run( true, Arrays.asList( "3" ) );
+		assertEquals( N_FRAMES, devices.size() );
+		for ( final String device : devices.values() )
+			assertEquals( "3", device );
+	}
+
+	@Test
+	public void testNoDeviceWithoutGpu() throws IOException
+	{
+		final String inherited = System.getenv( "CUDA_VISIBLE_DEVICES" );
+		final Map< String, String > devices = run( false, Arrays.asList( "0", "1" ) );
+		assertEquals( N_FRAMES, devices.size() );
+		for ( final String device : devices.values() )
+			assertEquals( inherited == null ? "" : inherited, device );
+	}
+
+	/**
+	 * Runs the stub on the test frames and returns the device received for
+	 * each frame, by frame name.
+	 */
+	private Map< String, String > run( final boolean useGPU, final List< String > gpuDevices ) throws IOException
+	{
+		final CellposeSettings settings = CellposeSettings.create()
+				.cellposePythonPath( stub.getAbsolutePath() )
+				.useGPU( useGPU )
+				.get();
+		final ImgPlus< UnsignedByteType > img = ImgPlus.wrap( ArrayImgs.unsignedBytes( 16, 16 ) );
+		final CellposeDetector< UnsignedByteType > detector = new CellposeDetector<>(
+				img, Intervals.createMinMax( 0, 0, 15, 15 ), settings, Logger.VOID_LOGGER );
+		detector.setGpuDevices( gpuDevices );
+
+		final List< ImagePlus > imps = new ArrayList<>( N_FRAMES );
+		for ( int t = 0; t < N_FRAMES; t++ )
+			imps.add( IJ.createImage( "frame_" + t, "8-bit black", 16, 16, 1 ) );
+
+		final List< String > dirs = detector.runCellpose( imps, N_TASKS );
+		assertNotNull( detector.getErrorMessage(), dirs );
+
+		final Map< String, String > devices = new HashMap<>();
+		for ( final String dir : dirs )
+		{
+			final File deviceFile = new File( dir, "device.txt" );
+			final String device = new String( Files.readAllBytes( deviceFile.toPath() ), StandardCharsets.UTF_8 ).trim();
+			final File[] frames = new File( dir ).listFiles( ( d, name ) -> name.endsWith( ".tif" ) );
+			for ( final File frame : frames )
+				devices.put( frame.getName().replace( ".tif", "" ), device );
+		}
+		return devices;
+	}
+}
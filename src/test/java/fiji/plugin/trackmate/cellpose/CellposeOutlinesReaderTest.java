@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Checks that cellpose outline files are parsed into spots at the right
+ * position, with the area in pixels as quality.
+ */
+public class CellposeOutlinesReaderTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File write( final String content ) throws IOException
+	{
+		final File file = folder.newFile( "frame_cp_outlines.txt" );
+		Files.write( file.toPath(), content.getBytes( StandardCharsets.US_ASCII ) );
+		return file;
+	}
+
+	@Test
+	public void testSquares() throws IOException
+	{
+		// A 10 x 10 square, then a 4 x 4 one, without final line break.
+		final File file = write( "0,0,10,0,10,10,0,10\n20,20,24,20,24,24,20,24" );
+		final List< Spot > spots = new CellposeOutlinesReader( new long[] { 0, 0 }, new double[] { 1., 1. } ).read( file );
+		assertEquals( 2, spots.size() );
+		assertSpot( spots.get( 0 ), 5., 5., 100. );
+		assertSpot( spots.get( 1 ), 22., 22., 16. );
+	}
+
+	@Test
+	public void testOriginAndCalibration() throws IOException
+	{
+		final File file = write( "0,0,10,0,10,10,0,10\n" );
+		final List< Spot > spots = new CellposeOutlinesReader( new long[] { 5, 100 }, new double[] { 0.5, 2. } ).read( file );
+		assertEquals( 1, spots.size() );
+		// The quality stays in pixels.
+		assertSpot( spots.get( 0 ), 0.5 * ( 5 + 5 ), 2. * ( 100 + 5 ), 100. );
+	}
+
+	@Test
+	public void testDownsampled() throws IOException
+	{
+		final File file = write( "0,0,10,0,10,10,0,10\n" );
+		final List< Spot > spots = new CellposeOutlinesReader( new long[] { 0, 0 }, new double[] { 1., 1. }, 2 ).read( file );
+		assertEquals( 1, spots.size() );
+		// Pixels mapped to the center of their 2 x 2 block.
+		assertSpot( spots.get( 0 ), 2 * 5 + 0.5, 2 * 5 + 0.5, 400. );
+	}
+
+	@Test
+	public void testSkipsDegenerateAndEmptyLines() throws IOException
+	{
+		// Windows line breaks, a blank line, a segment and a negative position.
+		final File file = write( "3,4,5,6\r\n\r\n-2,-2,2,-2,2,2,-2,2\r\n" );
+		final List< Spot > spots = new CellposeOutlinesReader( new long[] { 0, 0 }, new double[] { 1., 1. } ).read( file );
+		assertEquals( 1, spots.size() );
+		assertSpot( spots.get( 0 ), 0., 0., 16. );
+	}
+
+	@Test
+	public void testLongOutline() throws IOException
+	{
+		// More points than the initial coordinate buffer holds.
+		final int n = 2000;
+		final StringBuilder str = new StringBuilder();
+		for ( int i = 0; i < n; i++ )
+		{
+			final double a = 2 * Math.PI * i / n;
+			str.append( i == 0 ? "" : "," )
+					.append( Math.round( 1000 + 500 * Math.cos( a ) ) ).append( ',' )
+					.append( Math.round( 1000 + 500 * Math.sin( a ) ) );
+		}
+		final List< Spot > spots = new CellposeOutlinesReader( new long[] { 0, 0 }, new double[] { 1., 1. } ).read( write( str.append( '\n' ).toString() ) );
+		assertEquals( 1, spots.size() );
+		assertSpot( spots.get( 0 ), 1000., 1000., Math.PI * 500 * 500, 1e-3 );
+	}
+
+	private static void assertSpot( final Spot spot, final double x, final double y, final double quality )
+	{
+		assertSpot( spot, x, y, quality, 1e-9 );
+	}
+
+	private static void assertSpot( final Spot spot, final double x, final double y, final double quality, final double relativeTolerance )
+	{
+		assertEquals( x, spot.getFeature( Spot.POSITION_X ), 1e-9 + relativeTolerance * Math.abs( x ) );
+		assertEquals( y, spot.getFeature( Spot.POSITION_Y ), 1e-9 + relativeTolerance * Math.abs( y ) );
+		assertEquals( quality, spot.getFeature( Spot.QUALITY ), 1e-9 + relativeTolerance * quality );
+	}
+}
@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * Checks that spots survive a round-trip through a spot file, compressed or
+ * not.
+ */
+public class CellposeSpotFileTest
+{
+
+	private static final String FEATURE = "AREA";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static SpotCollection createSpots()
+	{
+		final SpotCollection spots = new SpotCollection();
+		for ( int t = 0; t < 3; t++ )
+		{
+			for ( int i = 0; i < 4; i++ )
+			{
+				final Spot spot = new Spot( 10. * i, 5. * t, 0., 2.5, 1. / ( i + 1 ) );
+				// Missing on some spots, written as NaN.
+				if ( i % 2 == 0 )
+					spot.putFeature( FEATURE, Double.valueOf( 100. + i ) );
+				// Large and negative steps, several bytes per coordinate.
+				if ( i != 3 )
+					spot.setRoi( new SpotRoi(
+							new double[] { -1000.5, 3.25, 2000., 0. },
+							new double[] { 0.001, -0.002, 123456.789, -7. } ) );
+				spots.add( spot, Integer.valueOf( t ) );
+			}
+		}
+		return spots;
+	}
+
+	private static void assertSameSpots( final SpotCollection expected, final SpotCollection actual )
+	{
+		assertEquals( expected.getNSpots( false ), actual.getNSpots( false ) );
+		final Map< Integer, Spot > byId = new HashMap<>();
+		for ( final Spot spot : actual.iterable( false ) )
+			byId.put( Integer.valueOf( spot.ID() ), spot );
+
+		for ( final Integer frame : expected.keySet() )
+		{
+			for ( final Spot spot : expected.iterable( frame, false ) )
+			{
+				final Spot read = byId.get( Integer.valueOf( spot.ID() ) );
+				assertNotNull( read );
+				assertEquals( frame.intValue(), read.getFeature( Spot.FRAME ).intValue() );
+				for ( final String feature : new String[] { Spot.POSITION_X, Spot.POSITION_Y, Spot.RADIUS, Spot.QUALITY } )
+					assertEquals( spot.getFeature( feature ), read.getFeature( feature ), 0. );
+
+				if ( spot.getFeature( FEATURE ) == null )
+					assertNull( read.getFeature( FEATURE ) );
+				else
+					assertEquals( spot.getFeature( FEATURE ), read.getFeature( FEATURE ), 0. );
+
+				if ( spot.getRoi() == null )
+				{
+					assertNull( read.getRoi() );
+					continue;
+				}
+				assertArrayEquals( spot.getRoi().x, read.getRoi().x, CellposeSpotFile.DEFAULT_QUANTUM / 2 );
+				assertArrayEquals( spot.getRoi().y, read.getRoi().y, CellposeSpotFile.DEFAULT_QUANTUM / 2 );
+			}
+		}
+	}
+
+	private static boolean isGzip( final File file ) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream( Files.newInputStream( file.toPath() ) ))
+		{
+			return in.readUnsignedShort() == 0x1f8b;
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final SpotCollection spots = createSpots();
+		final File file = folder.newFile( "spots.bin" );
+		CellposeSpotFile.write( spots, file, false );
+		assertFalse( isGzip( file ) );
+		assertSameSpots( spots, CellposeSpotFile.read( file ) );
+	}
+
+	@Test
+	public void testCompressedRoundTrip() throws IOException
+	{
+		final SpotCollection spots = createSpots();
+		final File file = folder.newFile( "spots.bin.gz" );
+		CellposeSpotFile.write( spots, file, true );
+		// Compression is detected from the content, not the name.
+		assertTrue( isGzip( file ) );
+		final File renamed = new File( folder.getRoot(), "renamed.bin" );
+		assertTrue( file.renameTo( renamed ) );
+		assertSameSpots( spots, CellposeSpotFile.read( renamed ) );
+	}
+
+	@Test
+	public void testEmptyCollection() throws IOException
+	{
+		final File file = folder.newFile( "empty.bin" );
+		CellposeSpotFile.write( new SpotCollection(), file, true );
+		assertEquals( 0, CellposeSpotFile.read( file ).getNSpots( false ) );
+	}
+
+	@Test( expected = IOException.class )
+	public void testNotASpotFile() throws IOException
+	{
+		final File file = folder.newFile( "other.bin" );
+		Files.write( file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 } );
+		CellposeSpotFile.read( file );
+	}
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Checks the perimeter and moment ellipse of the label statistics on shapes
+ * whose values are known.
+ */
+public class LabelStatisticsTest
+{
+
+	private static final double CORNER = 2. - Math.sqrt( 2. );
+
+	private static void fill( final FloatProcessor labels, final int label, final int x0, final int y0, final int w, final int h )
+	{
+		for ( int y = y0; y < y0 + h; y++ )
+			for ( int x = x0; x < x0 + w; x++ )
+				labels.setf( x, y, label );
+	}
+
+	@Test
+	public void testRectangle()
+	{
+		final FloatProcessor labels = new FloatProcessor( 20, 10 );
+		fill( labels, 1, 3, 2, 12, 4 );
+		final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+
+		assertEquals( 2, stats.getNLabels() );
+		assertEquals( 48, stats.getCount( 1 ) );
+		assertEquals( 3 + 5.5, stats.getCentroid( 1 )[ 0 ], 1e-12 );
+		assertEquals( 2 + 1.5, stats.getCentroid( 1 )[ 1 ], 1e-12 );
+		// 4 edges, 4 corners.
+		assertEquals( 2 * ( 12 + 4 ) - 4 * CORNER, stats.getPerimeter( 1 ), 1e-12 );
+
+		// The variance of a uniform segment of length L is L^2 / 12.
+		final double[] ellipse = stats.getEllipse( 1 );
+		assertEquals( 12. / Math.sqrt( 3. ), ellipse[ 0 ], 1e-9 );
+		assertEquals( 4. / Math.sqrt( 3. ), ellipse[ 1 ], 1e-9 );
+		assertEquals( 0., ellipse[ 2 ], 1e-12 );
+	}
+
+	@Test
+	public void testVerticalRectangle()
+	{
+		final FloatProcessor labels = new FloatProcessor( 10, 20 );
+		fill( labels, 1, 2, 3, 4, 12 );
+		final double[] ellipse = LabelStatistics.compute( labels, null, false ).getEllipse( 1 );
+		assertEquals( 12. / Math.sqrt( 3. ), ellipse[ 0 ], 1e-9 );
+		assertEquals( 4. / Math.sqrt( 3. ), ellipse[ 1 ], 1e-9 );
+		assertEquals( Math.PI / 2., Math.abs( ellipse[ 2 ] ), 1e-12 );
+	}
+
+	@Test
+	public void testSinglePixelAtBorder()
+	{
+		final FloatProcessor labels = new FloatProcessor( 3, 3 );
+		labels.setf( 0, 0, 1 );
+		final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+		assertEquals( 1, stats.getCount( 1 ) );
+		// As ImageJ: every other corner of the one-pixel sides.
+		assertEquals( 4 - 2 * CORNER, stats.getPerimeter( 1 ), 1e-12 );
+	}
+
+	@Test
+	public void testBar()
+	{
+		// A run of one-pixel sides at each end: two corners counted.
+		final FloatProcessor labels = new FloatProcessor( 10, 3 );
+		fill( labels, 1, 1, 1, 8, 1 );
+		assertEquals( 18 - 2 * CORNER, LabelStatistics.compute( labels, null, false ).getPerimeter( 1 ), 1e-12 );
+	}
+
+	@Test
+	public void testDiagonalStaircase()
+	{
+		// A 45 degrees side of n steps is about n sqrt(2) long.
+		final int n = 20;
+		final FloatProcessor labels = new FloatProcessor( n + 2, n + 2 );
+		for ( int y = 0; y < n; y++ )
+			fill( labels, 1, 1, 1 + y, y + 1, 1 );
+		final double expected = n + n + n * Math.sqrt( 2. );
+		assertEquals( expected, LabelStatistics.compute( labels, null, false ).getPerimeter( 1 ), 2. );
+	}
+
+	@Test
+	public void testHoleIsInPerimeter()
+	{
+		final FloatProcessor labels = new FloatProcessor( 12, 12 );
+		fill( labels, 1, 1, 1, 10, 10 );
+		fill( labels, 0, 4, 4, 4, 4 );
+		final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+		assertEquals( 100 - 16, stats.getCount( 1 ) );
+		assertEquals( 40 + 16 - 8 * CORNER, stats.getPerimeter( 1 ), 1e-12 );
+	}
+
+	@Test
+	public void testTouchingObjects()
+	{
+		final FloatProcessor labels = new FloatProcessor( 10, 6 );
+		fill( labels, 1, 1, 1, 4, 4 );
+		fill( labels, 2, 5, 1, 4, 4 );
+		final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+		// The shared side belongs to both outlines.
+		assertEquals( 16 - 4 * CORNER, stats.getPerimeter( 1 ), 1e-12 );
+		assertEquals( 16 - 4 * CORNER, stats.getPerimeter( 2 ), 1e-12 );
+		assertEquals( 1, stats.match( 2.5, 2.5 ) );
+		assertEquals( 2, stats.match( 6.5, 2.5 ) );
+	}
+
+	@Test
+	public void testDiagonalPixels()
+	{
+		// Two pixels touching by a corner: two corners where they meet.
+		final FloatProcessor labels = new FloatProcessor( 4, 4 );
+		labels.setf( 1, 1, 1 );
+		labels.setf( 2, 2, 1 );
+		final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+		assertEquals( 8 - 4 * CORNER, stats.getPerimeter( 1 ), 1e-12 );
+		// Elongated along the diagonal.
+		assertEquals( Math.PI / 4., stats.getEllipse( 1 )[ 2 ], 1e-12 );
+	}
+
+	@Test
+	public void testDisc()
+	{
+		final int r = 40;
+		final FloatProcessor labels = new FloatProcessor( 2 * r + 10, 2 * r + 10 );
+		for ( int y = 0; y < labels.getHeight(); y++ )
+			for ( int x = 0; x < labels.getWidth(); x++ )
+				if ( ( x - r - 5 ) * ( x - r - 5 ) + ( y - r - 5 ) * ( y - r - 5 ) <= r * r )
+					labels.setf( x, y, 1 );
+		final LabelStatistics stats = LabelStatistics.compute( labels, null, false );
+
+		assertEquals( Math.PI * r * r, stats.getCount( 1 ), 0.01 * Math.PI * r * r );
+		// ImageJ measures 265.42 on the traced outline of this disc.
+		assertEquals( 265.42, stats.getPerimeter( 1 ), 0.01 * 265.42 );
+		// Below 1, since the traced outline is longer than the circle.
+		assertTrue( stats.getCircularity( 1 ) > 0.85 && stats.getCircularity( 1 ) < 1. );
+		final double[] ellipse = stats.getEllipse( 1 );
+		assertEquals( r, ellipse[ 0 ], 0.01 * r );
+		assertEquals( r, ellipse[ 1 ], 0.01 * r );
+	}
+
+	@Test
+	public void testMeanQuality()
+	{
+		final FloatProcessor labels = new FloatProcessor( 4, 4 );
+		fill( labels, 1, 0, 0, 2, 2 );
+		final FloatProcessor quality = new FloatProcessor( 4, 4 );
+		quality.setf( 0, 0, 4 );
+		assertEquals( 1., LabelStatistics.compute( labels, quality, false ).getMeanQuality( 1 ), 1e-12 );
+		// Logits of 0 give a probability of 0.5.
+		final FloatProcessor logits = new FloatProcessor( 4, 4 );
+		assertEquals( 0.5, LabelStatistics.compute( labels, logits, true ).getMeanQuality( 1 ), 1e-12 );
+	}
+}
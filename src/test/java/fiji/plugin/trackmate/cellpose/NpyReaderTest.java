@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Checks that numpy arrays are exposed with the right type, dimensions and
+ * pixel order.
+ */
+public class NpyReaderTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Writes a version 1.0 <code>.npy</code> file.
+	 */
+	private File writeNpy( final String descr, final boolean fortran, final String shape, final byte[] data ) throws IOException
+	{
+		String header = "{'descr': '" + descr + "', 'fortran_order': " + ( fortran ? "True" : "False" ) + ", 'shape': (" + shape + "), }";
+		// Padded so that the data is aligned on 64 bytes.
+		final StringBuilder str = new StringBuilder( header );
+		while ( ( 10 + str.length() + 1 ) % 64 != 0 )
+			str.append( ' ' );
+		header = str.append( '\n' ).toString();
+
+		final ByteBuffer buffer = ByteBuffer.allocate( 10 + header.length() + data.length ).order( ByteOrder.LITTLE_ENDIAN );
+		buffer.put( new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 } );
+		buffer.putShort( ( short ) header.length() );
+		buffer.put( header.getBytes( StandardCharsets.ISO_8859_1 ) );
+		buffer.put( data );
+		final File file = folder.newFile();
+		Files.write( file.toPath(), buffer.array() );
+		return file;
+	}
+
+	private static byte[] shorts( final ByteOrder order, final int... values )
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( 2 * values.length ).order( order );
+		for ( final int v : values )
+			buffer.putShort( ( short ) v );
+		return buffer.array();
+	}
+
+	private static < T extends RealType< T > > double get( final RandomAccessibleInterval< T > img, final long... position )
+	{
+		final RandomAccess< T > ra = img.randomAccess();
+		ra.setPosition( position );
+		return ra.get().getRealDouble();
+	}
+
+	@Test
+	public void testCOrder() throws IOException
+	{
+		// Shape (2, 3): 2 rows of 3 values, row after row.
+		final File file = writeNpy( "<u2", false, "2, 3", shorts( ByteOrder.LITTLE_ENDIAN, 0, 1, 2, 3, 4, 5 ) );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			assertArrayEquals( new long[] { 3, 2 }, reader.getDimensions() );
+			assertTrue( reader.isIntegerType() );
+			final RandomAccessibleInterval< UnsignedShortType > img = reader.getImg();
+			assertArrayEquals( new long[] { 3, 2 }, dimensions( img ) );
+			for ( int y = 0; y < 2; y++ )
+				for ( int x = 0; x < 3; x++ )
+					assertEquals( 3 * y + x, get( img, x, y ), 0. );
+		}
+	}
+
+	@Test
+	public void testFortranOrder() throws IOException
+	{
+		// The same array, column after column.
+		final File file = writeNpy( "<u2", true, "2, 3", shorts( ByteOrder.LITTLE_ENDIAN, 0, 3, 1, 4, 2, 5 ) );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			assertArrayEquals( new long[] { 3, 2 }, reader.getDimensions() );
+			final RandomAccessibleInterval< UnsignedShortType > img = reader.getImg();
+			assertArrayEquals( new long[] { 3, 2 }, dimensions( img ) );
+			for ( int y = 0; y < 2; y++ )
+				for ( int x = 0; x < 3; x++ )
+					assertEquals( 3 * y + x, get( img, x, y ), 0. );
+		}
+	}
+
+	@Test
+	public void testBigEndian() throws IOException
+	{
+		final File file = writeNpy( ">u2", false, "3,", shorts( ByteOrder.BIG_ENDIAN, 1, 256, 65535 ) );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			final RandomAccessibleInterval< UnsignedShortType > img = reader.getImg();
+			assertEquals( 1., get( img, 0 ), 0. );
+			assertEquals( 256., get( img, 1 ), 0. );
+			assertEquals( 65535., get( img, 2 ), 0. );
+		}
+	}
+
+	@Test
+	public void testSignedByte() throws IOException
+	{
+		final File file = writeNpy( "|i1", false, "2,", new byte[] { -5, 7 } );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			final RandomAccessibleInterval< ByteType > img = reader.getImg();
+			assertTrue( img.randomAccess().get() instanceof ByteType );
+			assertEquals( -5., get( img, 0 ), 0. );
+			assertEquals( 7., get( img, 1 ), 0. );
+		}
+	}
+
+	@Test
+	public void testFloat() throws IOException
+	{
+		final ByteBuffer data = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		data.putFloat( -1.5f ).putFloat( 2.25f );
+		final File file = writeNpy( "<f4", false, "1, 2", data.array() );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			assertFalse( reader.isIntegerType() );
+			final RandomAccessibleInterval< FloatType > img = reader.getImg();
+			assertEquals( -1.5, get( img, 0, 0 ), 0. );
+			assertEquals( 2.25, get( img, 1, 0 ), 0. );
+		}
+	}
+
+	@Test
+	public void testUnsignedLong() throws IOException
+	{
+		final ByteBuffer data = ByteBuffer.allocate( 16 ).order( ByteOrder.LITTLE_ENDIAN );
+		data.putLong( 42L ).putLong( -1L );
+		final File file = writeNpy( "<u8", false, "2,", data.array() );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			final RandomAccessibleInterval< UnsignedLongType > img = reader.getLabels();
+			assertTrue( img.randomAccess().get() instanceof UnsignedLongType );
+			assertEquals( 42., get( img, 0 ), 0. );
+			// 2^64 - 1, not -1.
+			assertEquals( 18446744073709551615., get( img, 1 ), 1. );
+		}
+	}
+
+	@Test( expected = IOException.class )
+	public void testFloatIsNotALabelImage() throws IOException
+	{
+		final File file = writeNpy( "<f4", false, "1,", new byte[ 4 ] );
+		try (NpyReader reader = new NpyReader( file ))
+		{
+			reader.getLabels();
+		}
+	}
+
+	@Test( expected = IOException.class )
+	public void testObjectArrayIsRejected() throws IOException
+	{
+		// A pickled dictionary, as the _seg.npy files of cellpose.
+		try (NpyReader reader = new NpyReader( writeNpy( "|O", false, "", new byte[ 16 ] ) ))
+		{}
+	}
+
+	@Test( expected = IOException.class )
+	public void testTruncatedFileIsRejected() throws IOException
+	{
+		try (NpyReader reader = new NpyReader( writeNpy( "<u2", false, "4, 4", new byte[ 8 ] ) ))
+		{}
+	}
+
+	private static long[] dimensions( final RandomAccessibleInterval< ? > img )
+	{
+		final long[] dims = new long[ img.numDimensions() ];
+		img.dimensions( dims );
+		return dims;
+	}
+}
@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.cellpose.backend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.IJ;
+
+/**
+ * Runs a {@link JobQueueConsumer} on a thread against a temporary queue
+ * folder, with a stub script in place of cellpose, and submits jobs to it
+ * with the {@link JobQueueBackend}.
+ */
+public class JobQueueTest
+{
+
+	private static final String STUB = "#!/bin/sh\n"
+			+ "while [ $# -gt 0 ]; do\n"
+			+ "  case \"$1\" in\n"
+			+ "    --dir) dir=\"$2\" ;;\n"
+			+ "    --fail) exit 3 ;;\n"
+			+ "    --slow) exec sleep 30 ;;\n"
+			+ "  esac\n"
+			+ "  shift\n"
+			+ "done\n"
+			+ "echo masks > \"$dir/frame_cp_masks.txt\"\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File queueDir;
+
+	private File imagesDir;
+
+	private JobQueueConsumer consumer;
+
+	private Thread thread;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		assumeFalse( IJ.isWindows() );
+		final File stub = folder.newFile( "cellpose-stub.sh" );
+		Files.write( stub.toPath(), STUB.getBytes( StandardCharsets.UTF_8 ) );
+		stub.setExecutable( true );
+
+		queueDir = folder.newFolder( "queue" );
+		imagesDir = folder.newFolder( "images" );
+		Files.write( new File( imagesDir, "frame.tif" ).toPath(), new byte[] { 1, 2, 3 } );
+
+		consumer = new JobQueueConsumer( queueDir, Arrays.asList( stub.getAbsolutePath() ) );
+		thread = new Thread( consumer, "Test queue consumer" );
+		thread.start();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException
+	{
+		if ( consumer == null )
+			return;
+		consumer.stop();
+		thread.interrupt();
+		thread.join( 10000 );
+		consumer = null;
+	}
+
+	@Test
+	public void testJobIsProcessedAndCleanedUp() throws Exception
+	{
+		final File resultDir = new JobQueueBackend().execute( job( "--dir", imagesDir.getAbsolutePath() ) );
+
+		assertEquals( imagesDir, resultDir );
+		final File masks = new File( resultDir, "frame_cp_masks.txt" );
+		assertTrue( "The results should be moved back to the images folder.", masks.exists() );
+		assertEquals( "masks", new String( Files.readAllBytes( masks.toPath() ), StandardCharsets.UTF_8 ).trim() );
+		assertArrayEquals( new byte[] { 1, 2, 3 }, Files.readAllBytes( new File( resultDir, "frame.tif" ).toPath() ) );
+		assertArrayEquals( "The queue should be empty.", new String[ 0 ], queueDir.list() );
+	}
+
+	@Test
+	public void testFailedJobIsReportedAndCleanedUp() throws Exception
+	{
+		try
+		{
+			new JobQueueBackend().execute( job( "--dir", imagesDir.getAbsolutePath(), "--fail" ) );
+			fail( "A job whose cellpose run fails should fail." );
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e.getMessage(), e.getMessage().contains( "exited with code 3" ) );
+		}
+		assertArrayEquals( "The queue should be empty.", new String[ 0 ], queueDir.list() );
+	}
+
+	@Test
+	public void testCanceledJobIsStoppedAndCleanedUp() throws Exception
+	{
+		final JobQueueBackend backend = new JobQueueBackend();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			final Future< File > result = executor.submit( () -> backend.execute( job( "--dir", imagesDir.getAbsolutePath(), "--slow" ) ) );
+			waitFor( () -> claims() > 0 );
+			backend.cancel();
+			try
+			{
+				result.get( 30, TimeUnit.SECONDS );
+				fail( "A canceled job should be interrupted." );
+			}
+			catch ( final ExecutionException e )
+			{
+				assertTrue( e.getCause().toString(), e.getCause() instanceof InterruptedException );
+			}
+			assertArrayEquals( "The queue should be empty.", new String[ 0 ], queueDir.list() );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testAbandonedJobFails() throws Exception
+	{
+		// No consumer: the job is claimed by hand, and never touched.
+		tearDown();
+		final JobQueueBackend backend = new JobQueueBackend();
+		backend.setStaleTimeout( 2000 );
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			final Future< File > result = executor.submit( () -> backend.execute( job( "--dir", imagesDir.getAbsolutePath() ) ) );
+			waitFor( () -> jobs().length > 0 );
+			final File jobFile = jobs()[ 0 ];
+			assertTrue( jobFile.renameTo( new File( queueDir, jobFile.getName() + JobQueueBackend.CLAIM_INFIX + "dead" ) ) );
+			try
+			{
+				result.get( 30, TimeUnit.SECONDS );
+				fail( "An abandoned job should fail." );
+			}
+			catch ( final ExecutionException e )
+			{
+				assertTrue( e.getCause().toString(), e.getCause() instanceof IOException );
+			}
+			assertArrayEquals( "The queue should be empty.", new String[ 0 ], queueDir.list() );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private File[] jobs()
+	{
+		return queueDir.listFiles( ( d, name ) -> name.endsWith( JobQueueBackend.JOB_EXTENSION ) );
+	}
+
+	private int claims()
+	{
+		return queueDir.list( ( d, name ) -> name.contains( JobQueueBackend.CLAIM_INFIX ) ).length;
+	}
+
+	private static void waitFor( final BooleanSupplier condition ) throws InterruptedException
+	{
+		final long start = System.currentTimeMillis();
+		while ( !condition.getAsBoolean() )
+		{
+			if ( System.currentTimeMillis() - start > 30000 )
+				fail( "Timed out." );
+			Thread.sleep( 50 );
+		}
+	}
+
+	private CellposeJob job( final String... args )
+	{
+		final List< String > cmd = new ArrayList<>();
+		cmd.add( "cellpose" );
+		cmd.addAll( Arrays.asList( args ) );
+		return new CellposeJob( cmd, imagesDir, null, queueDir, null );
+	}
+}